@@ -0,0 +1,119 @@
+package com.cherry.cropper.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.cherry.cropper.handler.CropImageOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 回放一次拖动, 检查触摸处理和绘制过程中没有创建对象
+ */
+@RunWith(AndroidJUnit4.class)
+public class CropOverlayViewAllocationTest {
+
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+    private static final int MOVE_STEPS = 60;
+
+    private CropOverlayView mView;
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    private MotionEvent[] mEvents;
+
+    @Before
+    public void setUp() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mView = new CropOverlayView(InstrumentationRegistry.getTargetContext());
+                mView.setInitialAttributeValues(new CropImageOptions());
+                mView.setCropWindowLimits(VIEW_WIDTH, VIEW_HEIGHT, 1, 1);
+                // 精确模式下所有的触摸点都在 ACTION_UP 时回放, 不依赖帧回调
+                mView.setPreciseMoveEnabled(true);
+                mView.measure(View.MeasureSpec.makeMeasureSpec(VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+                mView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+                mView.setCropWindowType(CropOverlayView.CREATE_ENCLOSE_CROP_WINDOW);
+                mView.setCropWindowRect(new RectF(200, 300, 600, 700));
+                mView.setBounds(new float[]{0, 0, VIEW_WIDTH, 0, VIEW_WIDTH, VIEW_HEIGHT, 0, VIEW_HEIGHT},
+                        VIEW_WIDTH, VIEW_HEIGHT);
+            }
+        });
+        mBitmap = Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+        mEvents = obtainDrag(400, 500, 300, 900);
+    }
+
+    @After
+    public void tearDown() {
+        for (MotionEvent event : mEvents) {
+            event.recycle();
+        }
+        mBitmap.recycle();
+    }
+
+    @Test
+    public void replayedDragDoesNotAllocate() {
+        final int[] allocCount = new int[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // 第一次拖动用来填充池和扩容数组, 第二次才计数
+                replay(mEvents);
+                replay(mEvents);
+
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                try {
+                    replay(mEvents);
+                } finally {
+                    Debug.stopAllocCounting();
+                }
+                allocCount[0] = Debug.getThreadAllocCount();
+            }
+        });
+        assertEquals("allocations during a replayed drag", 0, allocCount[0]);
+    }
+
+    private void replay(MotionEvent[] events) {
+        for (MotionEvent event : events) {
+            mView.onTouchEvent(event);
+            mView.draw(mCanvas);
+        }
+    }
+
+    /**
+     * 生成一次从 (fromX, fromY) 拖到 (toX, toY) 的完整事件序列, 来回各拖一次让剪切框回到原位
+     */
+    private static MotionEvent[] obtainDrag(float fromX, float fromY, float toX, float toY) {
+        MotionEvent[] events = new MotionEvent[MOVE_STEPS * 2 + 2];
+        long downTime = SystemClock.uptimeMillis();
+        long eventTime = downTime;
+        int index = 0;
+        events[index++] = MotionEvent.obtain(downTime, eventTime, MotionEvent.ACTION_DOWN, fromX, fromY, 0);
+        for (int i = 1; i <= MOVE_STEPS * 2; i++) {
+            float fraction = i <= MOVE_STEPS ? (float) i / MOVE_STEPS : (float) (MOVE_STEPS * 2 - i) / MOVE_STEPS;
+            eventTime += 16;
+            events[index++] = MotionEvent.obtain(downTime, eventTime, MotionEvent.ACTION_MOVE,
+                    fromX + (toX - fromX) * fraction, fromY + (toY - fromY) * fraction, 0);
+        }
+        events[index] = MotionEvent.obtain(downTime, eventTime + 16, MotionEvent.ACTION_UP, fromX, fromY, 0);
+        return events;
+    }
+}
@@ -9,8 +9,8 @@ import android.os.Build;
 import android.os.Environment;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
-import android.util.Log;
 
+import com.cherry.cropper.utils.CropLog;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -31,8 +31,8 @@ public class CropFileUtils {
     public static final String CAMERA_PATH = "/image/OCR/";
 
     public static boolean copyFile(String filePath, String destPath) {
-        Log.d(TAG, "filePath: " + filePath);
-        Log.d(TAG, "destPath : " + destPath);
+        CropLog.d(TAG, "filePath: " + filePath);
+        CropLog.d(TAG, "destPath : " + destPath);
         File originFile = new File(filePath);
         File destFile = new File(destPath);
         BufferedInputStream reader = null;
@@ -40,7 +40,7 @@ public class CropFileUtils {
         try {
             if (!destFile.exists()) {
                 boolean result = destFile.createNewFile();
-                Log.d(TAG, "create new file result: " + result + " file : " + destPath);
+                CropLog.d(TAG, "create new file result: " + result + " file : " + destPath);
             }
             InputStream in = new FileInputStream(originFile);
             OutputStream out = new FileOutputStream(destFile);
@@ -76,7 +76,7 @@ public class CropFileUtils {
         File rootDir = state.equals(Environment.MEDIA_MOUNTED) ? Environment.getExternalStorageDirectory() : context.getCacheDir();
         File folderDir = new File(rootDir.getAbsolutePath() + CAMERA_PATH);
         if (!folderDir.exists() && folderDir.mkdirs()) {
-            Log.i(TAG, "create File: " + folderDir.getAbsolutePath());
+            CropLog.i(TAG, "create File: " + folderDir.getAbsolutePath());
         }
 //        int random = (int) (1 + Math.random() * 10);
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmssSSS", Locale.CHINA).format(new Date());
@@ -184,7 +184,7 @@ public class CropFileUtils {
                 return cursor.getString(column_index);
             }
         } catch (IllegalArgumentException ex) {
-            Log.i(TAG, String.format(Locale.getDefault(), "getDataColumn: _data - [%s]", ex.getMessage()));
+            CropLog.i(TAG, String.format(Locale.getDefault(), "getDataColumn: _data - [%s]", ex.getMessage()));
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -7,7 +7,8 @@ import android.os.Build;
 import android.os.Environment;
 import android.provider.MediaStore;
 import android.support.v4.content.FileProvider;
-import android.util.Log;
+
+import com.cherry.cropper.utils.CropLog;
 
 import java.io.File;
 
@@ -59,8 +60,8 @@ public class CropHelper {
             // 生成File://开头的uri
             imageUri = Uri.fromFile(file);
         }
-        Log.d(TAG, "imageUri: " + imageUri);
-        Log.d(TAG, "cameraPath: " + file.getAbsolutePath());
+        CropLog.d(TAG, "imageUri: " + imageUri);
+        CropLog.d(TAG, "cameraPath: " + file.getAbsolutePath());
         return imageUri;
     }
 
@@ -124,7 +125,7 @@ public class CropHelper {
             for (File file : cacheFolder.listFiles()) {
                 if (file.getName().contains("SPLIT")) {
                 boolean result = file.delete();
-                Log.d(TAG, "Delete " + file.getAbsolutePath() + (result ? " succeeded" : " failed"));
+                CropLog.d(TAG, "Delete " + file.getAbsolutePath() + (result ? " succeeded" : " failed"));
                 }
             }
         }
@@ -141,7 +142,7 @@ public class CropHelper {
         File file = new File(uri.getPath());
         if (file.exists()) {
             boolean result = file.delete();
-            Log.d(TAG, "Delete " + file.getAbsolutePath() + (result ? " succeeded" : " failed"));
+            CropLog.d(TAG, "Delete " + file.getAbsolutePath() + (result ? " succeeded" : " failed"));
             return result;
         }
         return false;
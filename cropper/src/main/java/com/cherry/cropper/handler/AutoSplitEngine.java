@@ -0,0 +1,275 @@
+package com.cherry.cropper.handler;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import com.cherry.cropper.utils.CropLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 自动拆题
+ * 在缩小后的灰度图({@link PageImage})上统计每一行的笔迹像素数(水平投影), 连续的空白行组成题目之间的间隔,
+ * 间隔之间的内容就是一道题, 返回与拆题剪切框一样的整行宽度的矩形(原图坐标)。
+ * 图片旋转了 90 或 270 度显示时, 屏幕上的竖直方向是原图的列, 这时按列统计(竖直投影), 返回整列高度的矩形。
+ * 投影按照行或列分成多段在线程池中并行计算。
+ */
+public final class AutoSplitEngine {
+
+    private static final String TAG = "OCR:" + AutoSplitEngine.class.getName();
+
+    /**
+     * 每段至少的行数, 太少时线程切换的开销比计算还大
+     */
+    private static final int MIN_STRIPE_ROWS = 32;
+
+    private static volatile Executor sDefaultExecutor;
+
+    /**
+     * 拆题的参数, 比例都是相对于页面的宽度或者高度
+     */
+    public static final class Options {
+
+        /**
+         * 缩小后的最大宽度
+         */
+        public int maxPageWidth = PageImage.DEFAULT_MAX_WIDTH;
+
+        /**
+         * 笔迹像素不超过行宽的这个比例时当作空白行, 容忍噪点和纸张的纹理
+         */
+        public float blankRowInkRatio = 0.004f;
+
+        /**
+         * 题目之间的间隔至少是页面高度的这个比例, 更小的间隔是题目内部的行距
+         */
+        public float minGapRatio = 0.015f;
+
+        /**
+         * 题目至少是页面高度的这个比例, 更小的当作噪点丢弃
+         */
+        public float minBandRatio = 0.01f;
+
+        /**
+         * 题目上下留出的空白, 页面高度的比例, 不会超过间隔的一半
+         */
+        public float paddingRatio = 0.005f;
+    }
+
+    private AutoSplitEngine() {
+    }
+
+    /**
+     * 默认用于并行计算投影的线程池, 线程数等于 CPU 核数, 空闲时回收
+     */
+    public static Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            synchronized (AutoSplitEngine.class) {
+                if (sDefaultExecutor == null) {
+                    sDefaultExecutor = CropImageTask.newCropExecutor(0);
+                }
+            }
+        }
+        return sDefaultExecutor;
+    }
+
+    /**
+     * 缩小位图并拆题, 在调用线程中缩小, 返回之后位图不再使用
+     *
+     * @param sampleSize 位图相对于原图的 inSampleSize
+     * @see #split(PageImage, Options, Executor)
+     */
+    public static List<RectF> split(Bitmap bitmap, int sampleSize, Options options, Executor executor) {
+        if (options == null) {
+            options = new Options();
+        }
+        return split(PageImage.from(bitmap, sampleSize, options.maxPageWidth), options, executor);
+    }
+
+    /**
+     * 拆题, 返回从上到下的题目矩形(原图坐标, 宽度是整个页面)。
+     * 会阻塞等待投影计算完成, 不能在 executor 的线程中调用。
+     *
+     * @param executor 并行计算投影的线程池, 为 null 时在调用线程中计算
+     */
+    public static List<RectF> split(PageImage page, Options options, Executor executor) {
+        return split(page, options, false, executor);
+    }
+
+    /**
+     * 拆题, 返回的矩形按照原图的行(或列)从小到大排列。
+     * 会阻塞等待投影计算完成, 不能在 executor 的线程中调用。
+     *
+     * @param columns  为 true 时按列拆分, 返回整列高度的矩形, 用于旋转了 90 或 270 度显示的图片
+     * @param executor 并行计算投影的线程池, 为 null 时在调用线程中计算
+     */
+    public static List<RectF> split(PageImage page, Options options, boolean columns, Executor executor) {
+        if (options == null) {
+            options = new Options();
+        }
+        CropMetrics.begin(CropMetrics.STAGE_ANALYZE);
+        try {
+            CropMetrics.setDetail("autoSplit");
+            long start = System.nanoTime();
+            int[] profile = computeProfile(page, page.getInkThreshold(), columns, executor);
+            List<RectF> bands = findBands(page, profile, columns, options);
+            if (CropLog.D && CropLog.isLoggable(CropLog.DEBUG)) {
+                CropLog.d(TAG, "split " + page + " into " + bands.size() + " bands in "
+                        + (System.nanoTime() - start) / 1000 + "us");
+            }
+            return bands;
+        } finally {
+            CropMetrics.end();
+        }
+    }
+
+    /**
+     * 计算每一行(或每一列)笔迹像素的数量, 按照行(或列)分段并行计算
+     */
+    static int[] computeProfile(final PageImage page, final int threshold, final boolean columns,
+                                Executor executor) {
+        final int length = columns ? page.getWidth() : page.getHeight();
+        final int[] profile = new int[length];
+        int stripes = executor == null ? 1
+                : Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), length / MIN_STRIPE_ROWS));
+        if (stripes == 1) {
+            computeStripe(page, threshold, columns, profile, 0, length);
+            return profile;
+        }
+
+        int linesPerStripe = (length + stripes - 1) / stripes;
+        final CountDownLatch latch = new CountDownLatch(stripes);
+        for (int i = 0; i < stripes; i++) {
+            final int from = i * linesPerStripe;
+            final int to = Math.min(length, from + linesPerStripe);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        computeStripe(page, threshold, columns, profile, from, to);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // 线程池已满或已关闭时在调用线程中计算
+                task.run();
+            }
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return profile;
+    }
+
+    private static void computeStripe(PageImage page, int threshold, boolean columns, int[] profile,
+                                      int from, int to) {
+        if (columns) {
+            computeColumns(page, threshold, profile, from, to);
+        } else {
+            computeRows(page, threshold, profile, from, to);
+        }
+    }
+
+    private static void computeRows(PageImage page, int threshold, int[] profile, int from, int to) {
+        byte[] luminance = page.getLuminanceData();
+        int width = page.getWidth();
+        for (int y = from; y < to; y++) {
+            int count = 0;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if ((luminance[offset + x] & 0xff) < threshold) {
+                    count++;
+                }
+            }
+            profile[y] = count;
+        }
+    }
+
+    /**
+     * 按行遍历, 每行只累加 [from, to) 的列, 保持顺序读取内存
+     */
+    private static void computeColumns(PageImage page, int threshold, int[] profile, int from, int to) {
+        byte[] luminance = page.getLuminanceData();
+        int width = page.getWidth();
+        int height = page.getHeight();
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = from; x < to; x++) {
+                if ((luminance[offset + x] & 0xff) < threshold) {
+                    profile[x]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 根据投影找到题目的范围, 两道题之间至少有 minGapRatio 的空白行(或列)。
+     * 按列拆分时 height 指投影的方向, 也就是页面的宽度, 比例都相对于它计算
+     */
+    static List<RectF> findBands(PageImage page, int[] profile, boolean columns, Options options) {
+        int width = columns ? page.getHeight() : page.getWidth();
+        int height = profile.length;
+        int blankInk = Math.max(1, Math.round(width * options.blankRowInkRatio));
+        int minGap = Math.max(1, Math.round(height * options.minGapRatio));
+        int minBand = Math.max(1, Math.round(height * options.minBandRatio));
+        int padding = Math.round(height * options.paddingRatio);
+
+        List<RectF> bands = new ArrayList<>();
+        int bandStart = -1;
+        int lastInkRow = -1;
+        int previousBottom = 0;
+        for (int y = 0; y <= height; y++) {
+            boolean ink = y < height && profile[y] > blankInk;
+            if (ink) {
+                if (bandStart < 0) {
+                    bandStart = y;
+                }
+                lastInkRow = y;
+            } else if (bandStart >= 0 && (y - lastInkRow >= minGap || y == height)) {
+                // 空白行已经足够作为题目之间的间隔, 或者到了页面底部
+                int top = bandStart;
+                int bottom = lastInkRow + 1;
+                if (bottom - top >= minBand) {
+                    int nextInk = findNextInkRow(profile, bottom, blankInk);
+                    int paddedTop = Math.max(previousBottom, top - Math.min(padding, (top - previousBottom) / 2));
+                    int paddedBottom = Math.min(height, bottom + Math.min(padding, (nextInk - bottom) / 2));
+                    RectF band = columns ? new RectF(paddedTop, 0, paddedBottom, width)
+                            : new RectF(0, paddedTop, width, paddedBottom);
+                    page.toImageRect(band);
+                    bands.add(band);
+                    previousBottom = paddedBottom;
+                }
+                bandStart = -1;
+            }
+        }
+        return bands;
+    }
+
+    private static int findNextInkRow(int[] profile, int from, int blankInk) {
+        for (int y = from; y < profile.length; y++) {
+            if (profile[y] > blankInk) {
+                return y;
+            }
+        }
+        return profile.length;
+    }
+}
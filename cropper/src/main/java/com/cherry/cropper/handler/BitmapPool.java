@@ -0,0 +1,257 @@
+package com.cherry.cropper.handler;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 全局的位图池, 按照 Config 和大小等级保存可以重用的位图
+ * 解码时通过 {@link android.graphics.BitmapFactory.Options#inBitmap} 重用, 剪切/调整大小时直接画到池中的位图上,
+ * 减少批量剪切时的 GC 和 native 内存分配。超过字节上限时按照最近最少使用的顺序回收。
+ */
+public final class BitmapPool {
+
+    private static final BitmapPool INSTANCE = new BitmapPool(defaultMaxBytes());
+
+    /**
+     * 池中位图占用的最大字节数
+     */
+    private long mMaxBytes;
+
+    /**
+     * 池中位图当前占用的字节数
+     */
+    private long mCurrentBytes;
+
+    /**
+     * 按照 Config 和大小等级分组的位图
+     */
+    private final Map<Key, ArrayDeque<Bitmap>> mGroups = new HashMap<>();
+
+    /**
+     * 按照放入池中的顺序排列的位图, 用于 LRU 回收
+     */
+    private final LinkedHashMap<Bitmap, Key> mLru = new LinkedHashMap<>(16, 0.75f, false);
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 库内共享的位图池
+     */
+    public static BitmapPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 获取指定大小的位图, 池中没有合适的位图时创建新的位图。返回的位图是可修改的, 内容已被清空。
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getReusable(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * 获取可以重用的位图, 已经调整为指定的大小, 内容没有清空(用于 inBitmap 解码)。池中没有合适的位图时返回 null。
+     */
+    public synchronized Bitmap getReusable(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0 || config == null) {
+            return null;
+        }
+        long bytes = (long) width * height * getBytesPerPixel(config);
+        int sizeClass = sizeClassCeil(bytes);
+        // 先在刚好的大小等级中查找, 再找大一级的, 避免用很大的位图保存很小的图片
+        for (int i = sizeClass; i <= sizeClass + 1; i++) {
+            ArrayDeque<Bitmap> group = mGroups.get(new Key(config, i));
+            if (group == null || group.isEmpty()) {
+                continue;
+            }
+            Bitmap bitmap = group.pollLast();
+            mLru.remove(bitmap);
+            mCurrentBytes -= bitmap.getAllocationByteCount();
+            try {
+                bitmap.reconfigure(width, height, config);
+                mHitCount++;
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                bitmap.recycle();
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * 把不再使用的位图放入池中, 不能重用的位图直接回收。放入之后调用者不能再使用该位图。
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mLru.containsKey(bitmap)) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bitmap.getAllocationByteCount() > mMaxBytes / 2) {
+            bitmap.recycle();
+            return;
+        }
+        Key key = new Key(bitmap.getConfig(), sizeClassFloor(bitmap.getAllocationByteCount()));
+        ArrayDeque<Bitmap> group = mGroups.get(key);
+        if (group == null) {
+            group = new ArrayDeque<>();
+            mGroups.put(key, group);
+        }
+        group.addLast(bitmap);
+        mLru.put(bitmap, key);
+        mCurrentBytes += bitmap.getAllocationByteCount();
+        mPutCount++;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * 设置池中位图占用的最大字节数
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * 回收池中全部的位图
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getCurrentBytes() {
+        return mCurrentBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "BitmapPool:{" +
+                "bytes:" + mCurrentBytes + "/" + mMaxBytes + "," +
+                "hits:" + mHitCount + "," +
+                "misses:" + mMissCount + "," +
+                "hitRate:" + hitPercent + "%," +
+                "puts:" + mPutCount + "," +
+                "evictions:" + mEvictionCount +
+                "}";
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Bitmap, Key>> iterator = mLru.entrySet().iterator();
+        while (mCurrentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Bitmap, Key> eldest = iterator.next();
+            Bitmap bitmap = eldest.getKey();
+            iterator.remove();
+            ArrayDeque<Bitmap> group = mGroups.get(eldest.getValue());
+            if (group != null) {
+                group.remove(bitmap);
+            }
+            mCurrentBytes -= bitmap.getAllocationByteCount();
+            mEvictionCount++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * 每个像素占用的字节数
+     */
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.RGBA_F16) {
+            return 8;
+        }
+        return 4;
+    }
+
+    /**
+     * 满足给定字节数的最小大小等级(2 的幂), 该等级中的位图都不小于给定的字节数
+     */
+    private static int sizeClassCeil(long bytes) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(1, bytes) - 1);
+    }
+
+    /**
+     * 给定字节数的位图所属的大小等级
+     */
+    private static int sizeClassFloor(long bytes) {
+        return 63 - Long.numberOfLeadingZeros(Math.max(1, bytes));
+    }
+
+    private static long defaultMaxBytes() {
+        return Math.min(Runtime.getRuntime().maxMemory() / 8, 32L * 1024 * 1024);
+    }
+
+    /**
+     * 位图分组的 key: Config + 大小等级
+     */
+    private static final class Key {
+
+        final Bitmap.Config config;
+
+        final int sizeClass;
+
+        Key(Bitmap.Config config, int sizeClass) {
+            this.config = config;
+            this.sizeClass = sizeClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return sizeClass == key.sizeClass && config == key.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * config.hashCode() + sizeClass;
+        }
+    }
+}
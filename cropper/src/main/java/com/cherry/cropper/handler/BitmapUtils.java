@@ -6,16 +6,18 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.provider.MediaStore;
-import android.util.Log;
 
 import com.cherry.cropper.utils.Enum;
-import com.cherry.cropper.utils.SimpleLog;
+import com.cherry.cropper.utils.CropLog;
 
 
 import java.io.Closeable;
@@ -23,7 +25,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -40,24 +43,17 @@ public final class BitmapUtils {
     public static final RectF EMPTY_RECT_F = new RectF();
 
     /**
-     * 可重用矩形, 一般内部使用
+     * 画到池中的位图上时使用的画笔, 只读, 多个剪切线程可以共享
      */
-    public static final RectF RECT = new RectF();
+    private static final Paint FILTER_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
 
-    /**
-     * 一般内部使用的可重用点
-     */
-    public static final float[] POINTS = new float[6];
-
-    /**
-     * Reusable point for general internal usage
-     */
-    public static final float[] POINTS2 = new float[6];
+    private static final Paint ROTATE_FILTER_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
 
     /**
      * Used to know the max texture size allowed to be rendered
+     * 多个剪切线程可能同时读取, 计算结果与线程无关, 重复计算也没有问题
      */
-    private static int mMaxTextureSize;
+    private static volatile int mMaxTextureSize;
 
 //    public static ArrayList<Rect> encloseRestList = new ArrayList<Rect>();
 
@@ -69,7 +65,7 @@ public final class BitmapUtils {
         try {
             File file = getFileFromUri(context, uri);
             if (file.exists()) {
-                Log.i("BitmapUtils", "base image AbsolutePath:" + file.getAbsolutePath());
+                CropLog.i("BitmapUtils", "base image AbsolutePath:" + file.getAbsolutePath());
                 ExifInterface ei = new ExifInterface(file.getAbsolutePath());
                 return rotateBitmapByExif(bitmap, ei);
             }
@@ -84,6 +80,26 @@ public final class BitmapUtils {
      * 创建新的位图，并回收旧的位图。
      */
     public static RotateBitmapResult rotateBitmapByExif(Bitmap bitmap, ExifInterface exif) {
+        return new RotateBitmapResult(bitmap, getExifDegrees(exif));
+    }
+
+    /**
+     * 读取图像(uri)的Exif中记录的旋转角度, 不需要文件路径, 读取失败时返回0
+     */
+    public static int getExifDegrees(Context context, Uri uri) {
+        InputStream stream = null;
+        try {
+            stream = context.getContentResolver().openInputStream(uri);
+            return getExifDegrees(new ExifInterface(stream));
+        } catch (Exception e) {
+            CropLog.w("BitmapUtils", "Failed to read exif orientation: " + uri, e);
+            return 0;
+        } finally {
+            closeSafe(stream);
+        }
+    }
+
+    private static int getExifDegrees(ExifInterface exif) {
         int degrees;
         int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
         switch (orientation) {
@@ -100,26 +116,72 @@ public final class BitmapUtils {
                 degrees = 0;
                 break;
         }
-        return new RotateBitmapResult(bitmap, degrees);
+        return degrees;
     }
 
     /**
      * Decode bitmap from stream using sampling to get bitmap with the requested limit.
      */
     public static BitmapSampled decodeSampledBitmap(Context context, Uri uri, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options;
         try {
-            ContentResolver resolver = context.getContentResolver();
-            // 首先用inJustDecodeBounds=true进行解码，检查尺寸
-            BitmapFactory.Options options = decodeImageForOption(resolver, uri);
-            // 计算实例大小
-            options.inSampleSize = Math.max(
-                    calculateInSampleSizeByReqestedSize(options.outWidth, options.outHeight, reqWidth, reqHeight),
-                    calculateInSampleSizeByMaxTextureSize(options.outWidth, options.outHeight));
+            options = decodeBoundsForSampling(context, uri, reqWidth, reqHeight);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load sampled bitmap: " + uri + "\r\n" + e.getMessage(), e);
+        }
+        return decodeSampledBitmap(context, uri, options);
+    }
+
+    /**
+     * 使用 inJustDecodeBounds 获取图片的尺寸, 并根据请求的大小和最大纹理尺寸计算 inSampleSize。
+     */
+    static BitmapFactory.Options decodeBoundsForSampling(Context context, Uri uri, int reqWidth, int reqHeight) throws FileNotFoundException {
+        CropMemoryPlanner.attach(context);
+        // 首先用inJustDecodeBounds=true进行解码，检查尺寸
+        BitmapFactory.Options options = decodeImageForOption(context.getContentResolver(), uri);
+        // 计算实例大小
+        options.inSampleSize = Math.max(
+                calculateInSampleSizeByReqestedSize(options.outWidth, options.outHeight, reqWidth, reqHeight),
+                calculateInSampleSizeByMaxTextureSize(options.outWidth, options.outHeight));
+        return options;
+    }
+
+    /**
+     * 按照 {@link #decodeBoundsForSampling(Context, Uri, int, int)} 得到的选项解码图片
+     */
+    static BitmapSampled decodeSampledBitmap(Context context, Uri uri, BitmapFactory.Options options) {
+        CropMetrics.begin(CropMetrics.STAGE_DECODE);
+        try {
+            // 预先检查内存是否足够, 不够时继续增大实例大小
+            options.inSampleSize = CropMemoryPlanner.planDecodeSampleSize(options.outWidth, options.outHeight, options.inSampleSize);
             // 解码位图与inSampleSize集
-            Bitmap bitmap = decodeImage(resolver, uri, options);
+            Bitmap bitmap = decodeImage(context.getContentResolver(), uri, options);
+            CropMetrics.setSampleSize(options.inSampleSize);
+            CropMetrics.addBytesAllocated(bitmap);
+            return new BitmapSampled(bitmap, options.inSampleSize);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load sampled bitmap: " + uri + "\r\n" + e.getMessage(), e);
+        } finally {
+            CropMetrics.end();
+        }
+    }
+
+    /**
+     * 按照给定的 inSampleSize 完整解码图片, inSampleSize 应该已经由 {@link CropMemoryPlanner} 检查过
+     */
+    static BitmapSampled decodeBitmap(Context context, Uri uri, int sampleSize) {
+        CropMetrics.begin(CropMetrics.STAGE_DECODE);
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Bitmap bitmap = decodeImage(context.getContentResolver(), uri, options);
+            CropMetrics.setSampleSize(options.inSampleSize);
+            CropMetrics.addBytesAllocated(bitmap);
             return new BitmapSampled(bitmap, options.inSampleSize);
         } catch (Exception e) {
             throw new RuntimeException("Failed to load sampled bitmap: " + uri + "\r\n" + e.getMessage(), e);
+        } finally {
+            CropMetrics.end();
         }
     }
 
@@ -129,15 +191,33 @@ public final class BitmapUtils {
     public static BitmapSampled cropBitmapObjectHandleOOM(Bitmap bitmap, float[] points, int degreesRotated,
                                                           boolean fixAspectRatio, int aspectRatioX,
                                                           int aspectRatioY, boolean isEnclose, boolean isSplit) {
-        int scale = 1;
-        while (true) {
-            try {
-                Bitmap cropBitmap = cropBitmapObjectWithScale(bitmap, points, degreesRotated, fixAspectRatio,
-                        aspectRatioX, aspectRatioY, 1 / (float) scale, isEnclose, isSplit);
-                return new BitmapSampled(cropBitmap, scale);
-            } catch (Exception e) {
-                e.printStackTrace();
+        return cropBitmapObjectHandleOOM(bitmap, points, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY,
+                isEnclose, isSplit, 0, 0, Enum.RequestSizeOptions.NONE);
+    }
+
+    /**
+     * 针对带有图片选项的题目, 进行图片选项的剪切。返回的位图已经是按照 options 调整后的最终大小,
+     * 不需要再调用 {@link #resizeBitmap(Bitmap, int, int, Enum.RequestSizeOptions)}。
+     * 剪切之前由 {@link CropMemoryPlanner} 检查内存, 不够时增大缩小的倍数, 剪切只执行一次。
+     */
+    public static BitmapSampled cropBitmapObjectHandleOOM(Bitmap bitmap, float[] points, int degreesRotated,
+                                                          boolean fixAspectRatio, int aspectRatioX,
+                                                          int aspectRatioY, boolean isEnclose, boolean isSplit,
+                                                          int reqWidth, int reqHeight, Enum.RequestSizeOptions options) {
+        CropMetrics.begin(CropMetrics.STAGE_CROP);
+        try {
+            int scale = CropMemoryPlanner.planCropSampleSize((int) getRectWidth(points), (int) getRectHeight(points),
+                    reqWidth, reqHeight, options, false,
+                    calculateSampleSizeForOptions(points, reqWidth, reqHeight, options));
+            Bitmap cropBitmap = cropBitmapObjectWithScale(bitmap, points, degreesRotated, fixAspectRatio,
+                    aspectRatioX, aspectRatioY, 1 / (float) scale, isEnclose, isSplit, reqWidth, reqHeight, options);
+            CropMetrics.setSampleSize(scale);
+            if (cropBitmap != bitmap) {
+                CropMetrics.addBytesAllocated(cropBitmap);
             }
+            return new BitmapSampled(cropBitmap, scale);
+        } finally {
+            CropMetrics.end();
         }
     }
 
@@ -146,7 +226,8 @@ public final class BitmapUtils {
      */
     private static Bitmap cropBitmapObjectWithScale(Bitmap bitmap, float[] points, int degreesRotated,
                                                     boolean fixAspectRatio, int aspectRatioX, int aspectRatioY,
-                                                    float scale, boolean isEnclose, boolean isSplit) {
+                                                    float scale, boolean isEnclose, boolean isSplit,
+                                                    int reqWidth, int reqHeight, Enum.RequestSizeOptions options) {
 
         try {
             // 获取原始图像中包含所需裁剪区域的矩形(对于非矩形裁剪区域较大)
@@ -164,21 +245,10 @@ public final class BitmapUtils {
 //                    }
 //                }
 //            }
-            // 在一个操作中裁剪并旋转裁剪后的图像
-            Matrix matrix = new Matrix();
-            matrix.setScale(scale, scale);
-            matrix.postRotate(degreesRotated, bitmap.getWidth() / 2, bitmap.getHeight() / 2);
-            Bitmap result = Bitmap.createBitmap(bitmap, rect.left, rect.top, rect.width(), rect.height(), matrix, true);
-            if (result == bitmap) {
-                // corner case when all bitmap is selected, no worth optimizing for it
-                result = bitmap.copy(bitmap.getConfig(), false);
-            }
-            // 旋转0、90、180或270度不需要额外裁剪
-            if (degreesRotated % 90 != 0) {
-                // 额外的裁剪，因为非矩形裁剪不能直接在图像上完成，除非先旋转
-                result = cropForRotatedImage(result, points, rect, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY);
-            }
-            return result;
+            // 在一次绘制中完成裁剪、旋转、非直角旋转后的额外裁剪和调整大小
+            // 结果总是画到池中的新位图上, 选中整张图片时也不会返回原图
+            return transformBitmap(bitmap, rect, points, rect, scale, degreesRotated, fixAspectRatio,
+                    aspectRatioX, aspectRatioY, reqWidth, reqHeight, options);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -187,26 +257,27 @@ public final class BitmapUtils {
 
     /**
      * Crop image bitmap from URI by decoding it with specific width and height to down-sample if required.<br>
-     * Additionally if OOM is thrown try to increase the sampling (2,4,8).
+     * The sampling is planned up front by {@link CropMemoryPlanner} so the crop fits in the available memory.
      */
     public static BitmapSampled cropBitmap(Context context, Uri loadedImageUri, float[] points,
                                            int degreesRotated, int orgWidth, int orgHeight, boolean fixAspectRatio,
                                            int aspectRatioX, int aspectRatioY, int reqWidth, int reqHeight) {
-        int sampleMulti = 1;
-        while (true) {
-            try {
-                // 如果成功，就返回结果位图
-                return cropBitmap(context, loadedImageUri, points,
-                        degreesRotated, orgWidth, orgHeight, fixAspectRatio,
-                        aspectRatioX, aspectRatioY, reqWidth, reqHeight,
-                        sampleMulti);
-            } catch (OutOfMemoryError e) {
-                // 如果OOM试图增加实例以降低内存使用
-                sampleMulti *= 2;
-                if (sampleMulti > 16) {
-                    throw new RuntimeException("Failed to handle OOM by sampling (" + sampleMulti + "): " + loadedImageUri + "\r\n" + e.getMessage(), e);
-                }
-            }
+        CropMetrics.begin(CropMetrics.STAGE_CROP);
+        try {
+            // 获取原始图像中包含所需裁剪区域的矩形(对于非矩形裁剪区域较大)
+            Rect rect = getRectFromPoints(points, orgWidth, orgHeight, fixAspectRatio, aspectRatioX, aspectRatioY);
+            int width = reqWidth > 0 ? reqWidth : rect.width();
+            int height = reqHeight > 0 ? reqHeight : rect.height();
+            int sampleSize = CropMemoryPlanner.planCropSampleSize(rect.width(), rect.height(),
+                    reqWidth, reqHeight, Enum.RequestSizeOptions.NONE, true,
+                    calculateInSampleSizeByReqestedSize(rect.width(), rect.height(), width, height));
+            BitmapSampled result = cropBitmap(context, loadedImageUri, points, degreesRotated, orgWidth, orgHeight,
+                    fixAspectRatio, aspectRatioX, aspectRatioY, rect, sampleSize);
+            CropMetrics.setSampleSize(result.sampleSize);
+            CropMetrics.addBytesAllocated(result.bitmap);
+            return result;
+        } finally {
+            CropMetrics.end();
         }
     }
 
@@ -275,8 +346,8 @@ public final class BitmapUtils {
         int top = Math.round(Math.max(0, getRectTop(points)));
         int right = Math.round(Math.min(imageWidth, getRectRight(points)));
         int bottom = Math.round(Math.min(imageHeight, getRectBottom(points)));
-        for (int i = 0; i < points.length; i++) {
-            SimpleLog.i("BitMapUtils", "points" + i + ": " + points[i]);
+        if (CropLog.V && CropLog.isLoggable(CropLog.VERBOSE)) {
+            CropLog.v("BitmapUtils", "points: " + Arrays.toString(points));
         }
         Rect rect = new Rect(left, top, right, bottom);
         if (fixAspectRatio) {
@@ -301,46 +372,72 @@ public final class BitmapUtils {
 
     /**
      * Write the given bitmap to the given uri using the given compression.
+     * 压缩到可以重用的缓冲区后通过 {@link CropImageWriter} 写入, 不调用 fsync。
      */
-    public static void writeBitmapToUri(Context context, Bitmap bitmap, Uri uri, Bitmap.CompressFormat compressFormat, int compressQuality) throws FileNotFoundException {
-        OutputStream outputStream = null;
+    public static void writeBitmapToUri(Context context, Bitmap bitmap, Uri uri, Bitmap.CompressFormat compressFormat, int compressQuality) throws IOException {
+        CropImageWriter.EncodeBuffer buffer;
+        CropMetrics.begin(CropMetrics.STAGE_ENCODE);
         try {
-            outputStream = context.getContentResolver().openOutputStream(uri);
-            bitmap.compress(compressFormat, compressQuality, outputStream);
+            buffer = CropImageWriter.encode(bitmap, compressFormat, compressQuality);
+            CropMetrics.addBytesAllocated(buffer.size());
         } finally {
-            closeSafe(outputStream);
+            CropMetrics.end();
         }
+        try {
+            writeBytesToUri(context, buffer.getData(), uri);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * 把已经压缩好的图片数据写入给定的 uri
+     */
+    public static void writeBytesToUri(Context context, byte[] data, Uri uri) throws IOException {
+        writeBytesToUri(context, ByteBuffer.wrap(data), uri);
+    }
+
+    private static void writeBytesToUri(Context context, ByteBuffer data, Uri uri) throws IOException {
+        CropMetrics.begin(CropMetrics.STAGE_WRITE);
+        try {
+            CropImageWriter.write(context, data, uri, false);
+            CropMetrics.setDetail(uri.toString());
+            CropMetrics.addBytesWritten(data.remaining());
+        } finally {
+            CropMetrics.end();
+        }
+    }
+
+    /**
+     * 根据给定的选项计算剪切时使用的 inSampleSize, 只有 {@link Enum.RequestSizeOptions#SAMPLING} 在剪切时降低分辨率,
+     * 其它选项在剪切的同一次绘制中缩放到 {@link #getResizedSize(int, int, int, int, Enum.RequestSizeOptions)}。
+     */
+    static int calculateSampleSizeForOptions(float[] points, int reqWidth, int reqHeight, Enum.RequestSizeOptions options) {
+        if (options == Enum.RequestSizeOptions.SAMPLING && reqWidth > 0 && reqHeight > 0) {
+            return calculateInSampleSizeByReqestedSize((int) getRectWidth(points), (int) getRectHeight(points), reqWidth, reqHeight);
+        }
+        return 1;
     }
 
     /**
      * 根据给定的选项将给定的位图调整到给定的宽度/高度。
+     * {@link Enum.RequestSizeOptions#SAMPLING} 只在解码/剪切时降低分辨率, 这里不再调整大小。
      */
     static Bitmap resizeBitmap(Bitmap bitmap, int reqWidth, int reqHeight, Enum.RequestSizeOptions options) {
+        CropMetrics.begin(CropMetrics.STAGE_RESIZE);
         try {
-            if (reqWidth > 0 && reqHeight > 0 && (options == Enum.RequestSizeOptions.RESIZE_FIT ||
-                    options == Enum.RequestSizeOptions.RESIZE_INSIDE ||
-                    options == Enum.RequestSizeOptions.RESIZE_EXACT)) {
-
-                Bitmap resized = null;
-                if (options == Enum.RequestSizeOptions.RESIZE_EXACT) {
-                    resized = Bitmap.createScaledBitmap(bitmap, reqWidth, reqHeight, false);
-                } else {
-                    int width = bitmap.getWidth();
-                    int height = bitmap.getHeight();
-                    float scale = Math.max(width / (float) reqWidth, height / (float) reqHeight);
-                    if (scale > 1 || options == Enum.RequestSizeOptions.RESIZE_FIT) {
-                        resized = Bitmap.createScaledBitmap(bitmap, (int) (width / scale), (int) (height / scale), false);
-                    }
-                }
-                if (resized != null) {
-                    if (resized != bitmap) {
-                        bitmap.recycle();
-                    }
-                    return resized;
-                }
+            Point size = getResizedSize(bitmap.getWidth(), bitmap.getHeight(), reqWidth, reqHeight, options);
+            if (size != null) {
+                Bitmap resized = createPooledScaledBitmap(bitmap, size.x, size.y);
+                CropMetrics.addBytesAllocated(resized);
+                // 剪切的中间结果, 放回位图池
+                BitmapPool.getInstance().put(bitmap);
+                return resized;
             }
         } catch (Exception e) {
-            Log.w("AIC", "Failed to resize cropped image, return bitmap before resize", e);
+            CropLog.w("AIC", "Failed to resize cropped image, return bitmap before resize", e);
+        } finally {
+            CropMetrics.end();
         }
         return bitmap;
     }
@@ -348,50 +445,39 @@ public final class BitmapUtils {
     //region: Private methods
 
     /**
-     * Crop image bitmap from URI by decoding it with specific width and height to down-sample if required.
+     * Crop image bitmap from URI by decoding only the given rectangle with the given sampling.
      *
-     * @param orgWidth    used to get rectangle from points (handle edge cases to limit rectangle)
-     * @param orgHeight   used to get rectangle from points (handle edge cases to limit rectangle)
-     * @param sampleMulti used to increase the sampling of the image to handle memory issues.
+     * @param orgWidth   used to limit the full decode fallback
+     * @param orgHeight  used to limit the full decode fallback
+     * @param rect       the rectangle of the points in the original image
+     * @param sampleSize the planned sampling of the decoded region
      */
     private static BitmapSampled cropBitmap(Context context, Uri loadedImageUri, float[] points,
                                             int degreesRotated, int orgWidth, int orgHeight, boolean fixAspectRatio,
-                                            int aspectRatioX, int aspectRatioY, int reqWidth, int reqHeight, int sampleMulti) {
-
-        // 获取原始图像中包含所需裁剪区域的矩形(对于非矩形裁剪区域较大)
-        Rect rect = getRectFromPoints(points, orgWidth, orgHeight, fixAspectRatio, aspectRatioX, aspectRatioY);
-        int width = reqWidth > 0 ? reqWidth : rect.width();
-        int height = reqHeight > 0 ? reqHeight : rect.height();
+                                            int aspectRatioX, int aspectRatioY, Rect rect, int sampleSize) {
         Bitmap result = null;
-        int sampleSize = 1;
         try {
             // 只从URI解码所需的图像，如果给定reqWidth/reqHeight，则可以选择子采样。
-            BitmapSampled bitmapSampled = decodeSampledBitmapRegion(context, loadedImageUri, rect, width, height, sampleMulti);
+            BitmapSampled bitmapSampled = decodeSampledBitmapRegion(context, loadedImageUri, rect, sampleSize);
             result = bitmapSampled.bitmap;
             sampleSize = bitmapSampled.sampleSize;
         } catch (Exception ignored) {
         }
         if (result != null) {
             try {
-                // rotate the decoded region by the required amount
-                result = rotateBitmapInt(result, degreesRotated);
-
-                // rotating by 0, 90, 180 or 270 degrees doesn't require extra cropping
-                if (degreesRotated % 90 != 0) {
-
-                    // extra crop because non rectangular crop cannot be done directly on the image without rotating first
-                    result = cropForRotatedImage(result, points, rect, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY);
-                }
+                // rotate the decoded region and crop the rotated rectangle in one pass
+                result = transformRegion(result, points, rect, sampleSize, degreesRotated, fixAspectRatio,
+                        aspectRatioX, aspectRatioY, 0, 0, Enum.RequestSizeOptions.NONE);
             } catch (OutOfMemoryError e) {
-                if (result != null) {
-                    result.recycle();
-                }
+                BitmapPool.getInstance().put(result);
                 throw e;
             }
             return new BitmapSampled(result, sampleSize);
         } else {
             // failed to decode region, may be skia issue, try full decode and then crop
-            return cropBitmap(context, loadedImageUri, points, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, sampleMulti, rect, width, height);
+            CropMetrics.addFallbacks(1);
+            return cropBitmap(context, loadedImageUri, points, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY,
+                    CropMemoryPlanner.planDecodeSampleSize(orgWidth, orgHeight, sampleSize));
         }
     }
 
@@ -400,34 +486,27 @@ public final class BitmapUtils {
      */
     private static BitmapSampled cropBitmap(Context context, Uri loadedImageUri, float[] points,
                                             int degreesRotated, boolean fixAspectRatio, int aspectRatioX, int aspectRatioY,
-                                            int sampleMulti, Rect rect, int width, int height) {
+                                            int sampleSize) {
         Bitmap result = null;
-        int sampleSize;
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = sampleSize = sampleMulti * calculateInSampleSizeByReqestedSize(rect.width(), rect.height(), width, height);
-
-            Bitmap fullBitmap = decodeImage(context.getContentResolver(), loadedImageUri, options);
+            // 完整解码的原图通过缓存共享, 同一张图片的其它剪切框不需要再次解码, 所以不能放入位图池
+            Bitmap fullBitmap = DecodedImageCache.getInstance().getBitmap(context, loadedImageUri, sampleSize).bitmap;
             if (fullBitmap != null) {
-                try {
-                    // adjust crop points by the sampling because the image is smaller
-                    float[] points2 = new float[points.length];
-                    System.arraycopy(points, 0, points2, 0, points.length);
-                    for (int i = 0; i < points2.length; i++) {
-                        points2[i] = points2[i] / options.inSampleSize;
-                    }
-
-                    result = cropBitmapObjectWithScale(fullBitmap, points2, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, 1, false, false);
-                } finally {
-                    if (result != fullBitmap) {
-                        fullBitmap.recycle();
-                    }
+                // adjust crop points by the sampling because the image is smaller
+                float[] points2 = new float[points.length];
+                System.arraycopy(points, 0, points2, 0, points.length);
+                for (int i = 0; i < points2.length; i++) {
+                    points2[i] = points2[i] / sampleSize;
+                }
+
+                result = cropBitmapObjectWithScale(fullBitmap, points2, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, 1, false, false,
+                        0, 0, Enum.RequestSizeOptions.NONE);
+                if (result == fullBitmap) {
+                    throw new IllegalStateException("Failed to crop full bitmap");
                 }
             }
         } catch (OutOfMemoryError e) {
-            if (result != null) {
-                result.recycle();
-            }
+            BitmapPool.getInstance().put(result);
             throw e;
         } catch (Exception e) {
             throw new RuntimeException("Failed to load sampled bitmap: " + loadedImageUri + "\r\n" + e.getMessage(), e);
@@ -445,7 +524,7 @@ public final class BitmapUtils {
             stream = resolver.openInputStream(uri);
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(stream, EMPTY_RECT, options);
+            BitmapFactory.decodeStream(stream, null, options);
             options.inJustDecodeBounds = false;
             return options;
         } finally {
@@ -454,98 +533,208 @@ public final class BitmapUtils {
     }
 
     /**
-     * Decode image from uri using given "inSampleSize", but if failed due to out-of-memory then raise
-     * the inSampleSize until success.
+     * Decode image from uri using given "inSampleSize", the sampling should already be planned by
+     * {@link CropMemoryPlanner} so the decode is done once.
      */
     private static Bitmap decodeImage(ContentResolver resolver, Uri uri, BitmapFactory.Options options) throws FileNotFoundException {
-        do {
-            InputStream stream = null;
-            try {
-                stream = resolver.openInputStream(uri);
-                return BitmapFactory.decodeStream(stream, EMPTY_RECT, options);
-            } catch (OutOfMemoryError e) {
-                options.inSampleSize *= 2;
-            } finally {
-                closeSafe(stream);
+        setReusableBitmap(options, options.outWidth, options.outHeight);
+        try {
+            return decodeStream(resolver, uri, options);
+        } catch (IllegalArgumentException e) {
+            // 池中的位图不能用于解码, 不重用位图再解码一次
+            if (options.inBitmap == null) {
+                throw e;
             }
-        } while (options.inSampleSize <= 512);
-        throw new RuntimeException("Failed to decode image: " + uri);
+            releaseReusableBitmap(options);
+            return decodeStream(resolver, uri, options);
+        }
+    }
+
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri, BitmapFactory.Options options) throws FileNotFoundException {
+        InputStream stream = null;
+        try {
+            stream = resolver.openInputStream(uri);
+            Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
+            if (bitmap == null) {
+                releaseReusableBitmap(options);
+            }
+            return bitmap;
+        } finally {
+            closeSafe(stream);
+        }
     }
 
     /**
-     * Decode specific rectangle bitmap from stream using sampling to get bitmap with the requested limit.
-     *
-     * @param sampleMulti used to increase the sampling of the image to handle memory issues.
+     * Decode specific rectangle bitmap from stream using the given (already planned) sampling.
      */
-    private static BitmapSampled decodeSampledBitmapRegion(Context context, Uri uri, Rect rect, int reqWidth, int reqHeight, int sampleMulti) {
+    private static BitmapSampled decodeSampledBitmapRegion(Context context, Uri uri, Rect rect, int sampleSize) {
         InputStream stream = null;
         BitmapRegionDecoder decoder = null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        CropMetrics.begin(CropMetrics.STAGE_DECODE);
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = sampleMulti * calculateInSampleSizeByReqestedSize(rect.width(), rect.height(), reqWidth, reqHeight);
+            options.inSampleSize = sampleSize;
 
             stream = context.getContentResolver().openInputStream(uri);
             decoder = BitmapRegionDecoder.newInstance(stream, false);
-            do {
-                try {
-                    return new BitmapSampled(decoder.decodeRegion(rect, options), options.inSampleSize);
-                } catch (OutOfMemoryError e) {
-                    options.inSampleSize *= 2;
-                }
-            } while (options.inSampleSize <= 512);
+            setReusableRegionBitmap(options, rect);
+            Bitmap bitmap = decoder.decodeRegion(rect, options);
+            if (bitmap == null) {
+                releaseReusableBitmap(options);
+            }
+            CropMetrics.setSampleSize(options.inSampleSize);
+            CropMetrics.addBytesAllocated(bitmap);
+            return new BitmapSampled(bitmap, options.inSampleSize);
         } catch (Exception e) {
+            releaseReusableBitmap(options);
             throw new RuntimeException("Failed to load sampled bitmap: " + uri + "\r\n" + e.getMessage(), e);
         } finally {
             closeSafe(stream);
             if (decoder != null) {
                 decoder.recycle();
             }
+            CropMetrics.end();
         }
-        return new BitmapSampled(null, 1);
     }
 
     /**
-     * Special crop of bitmap rotated by not stright angle, in this case the original crop bitmap contains parts
-     * beyond the required crop area, this method crops the already cropped and rotated bitmap to the final
-     * rectangle.<br>
+     * Special crop of bitmap rotated by not stright angle, in this case the rotated crop rectangle contains parts
+     * beyond the required crop area, this method returns the final rectangle inside the rotated rectangle
+     * (in the units of the original image, relative to the rotated bounds).<br>
      * Note: rotating by 0, 90, 180 or 270 degrees doesn't require extra cropping.
      */
-    private static Bitmap cropForRotatedImage(Bitmap bitmap, float[] points, Rect rect, int degreesRotated,
-                                              boolean fixAspectRatio, int aspectRatioX, int aspectRatioY) {
-        if (degreesRotated % 90 != 0) {
-
-            int adjLeft = 0, adjTop = 0, width = 0, height = 0;
-            double rads = Math.toRadians(degreesRotated);
-            int compareTo = degreesRotated < 90 || (degreesRotated > 180 && degreesRotated < 270) ? rect.left : rect.right;
-            for (int i = 0; i < points.length; i += 2) {
-                if (points[i] >= compareTo - 1 && points[i] <= compareTo + 1) {
-                    adjLeft = (int) Math.abs(Math.sin(rads) * (rect.bottom - points[i + 1]));
-                    adjTop = (int) Math.abs(Math.cos(rads) * (points[i + 1] - rect.top));
-                    width = (int) Math.abs((points[i + 1] - rect.top) / Math.sin(rads));
-                    height = (int) Math.abs((rect.bottom - points[i + 1]) / Math.cos(rads));
-                    break;
-                }
+    private static Rect getRotatedCropRect(float[] points, Rect rect, int degreesRotated,
+                                           boolean fixAspectRatio, int aspectRatioX, int aspectRatioY) {
+        int adjLeft = 0, adjTop = 0, width = 0, height = 0;
+        double rads = Math.toRadians(degreesRotated);
+        int compareTo = degreesRotated < 90 || (degreesRotated > 180 && degreesRotated < 270) ? rect.left : rect.right;
+        for (int i = 0; i < points.length; i += 2) {
+            if (points[i] >= compareTo - 1 && points[i] <= compareTo + 1) {
+                adjLeft = (int) Math.abs(Math.sin(rads) * (rect.bottom - points[i + 1]));
+                adjTop = (int) Math.abs(Math.cos(rads) * (points[i + 1] - rect.top));
+                width = (int) Math.abs((points[i + 1] - rect.top) / Math.sin(rads));
+                height = (int) Math.abs((rect.bottom - points[i + 1]) / Math.cos(rads));
+                break;
             }
+        }
 
-            rect.set(adjLeft, adjTop, adjLeft + width, adjTop + height);
-            if (fixAspectRatio) {
-                fixRectForAspectRatio(rect, aspectRatioX, aspectRatioY);
-            }
+        Rect cropRect = new Rect(adjLeft, adjTop, adjLeft + width, adjTop + height);
+        if (fixAspectRatio) {
+            fixRectForAspectRatio(cropRect, aspectRatioX, aspectRatioY);
+        }
+        return cropRect;
+    }
 
-            Bitmap bitmapTmp = bitmap;
-            bitmap = Bitmap.createBitmap(bitmap, rect.left, rect.top, rect.width(), rect.height());
-            if (bitmapTmp != bitmap) {
-                bitmapTmp.recycle();
+    /**
+     * 根据给定的选项计算调整后的大小, 不需要调整大小时返回 null。
+     * {@link Enum.RequestSizeOptions#SAMPLING} 只在解码/剪切时降低分辨率, 这里不调整大小。
+     */
+    static Point getResizedSize(int width, int height, int reqWidth, int reqHeight, Enum.RequestSizeOptions options) {
+        if (reqWidth > 0 && reqHeight > 0 && (options == Enum.RequestSizeOptions.RESIZE_FIT ||
+                options == Enum.RequestSizeOptions.RESIZE_INSIDE ||
+                options == Enum.RequestSizeOptions.RESIZE_EXACT)) {
+            if (options == Enum.RequestSizeOptions.RESIZE_EXACT) {
+                return new Point(reqWidth, reqHeight);
+            }
+            float scale = Math.max(width / (float) reqWidth, height / (float) reqHeight);
+            if (scale > 1 || options == Enum.RequestSizeOptions.RESIZE_FIT) {
+                return new Point(Math.max(1, (int) (width / scale)), Math.max(1, (int) (height / scale)));
             }
         }
-        return bitmap;
+        return null;
+    }
+
+    /**
+     * 把原图中的一个区域一次画到最终大小的位图上: 剪切的偏移、缩小、旋转、非直角旋转后的额外剪切、宽高比修正和调整大小
+     * 合并为一个矩阵, 每个剪切框只分配一个位图(来自 {@link BitmapPool}), 只重新采样一次。源位图不会被修改或回收。
+     *
+     * @param source     包含剪切区域的位图, 可以是原图, 也可以是只解码了该区域的位图
+     * @param sourceRect 剪切区域在 source 中的位置
+     * @param points     剪切框在原图中的4个点
+     * @param rect       剪切区域在原图中的位置
+     * @param scale      结果相对于原图的缩小比例(调整大小之前)
+     */
+    static Bitmap transformBitmap(Bitmap source, Rect sourceRect, float[] points, Rect rect, float scale,
+                                  int degreesRotated, boolean fixAspectRatio, int aspectRatioX, int aspectRatioY,
+                                  int reqWidth, int reqHeight, Enum.RequestSizeOptions options) {
+        float width = rect.width() * scale;
+        float height = rect.height() * scale;
+
+        // source 中的像素 -> 缩小后的剪切区域 -> 旋转
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-sourceRect.left, -sourceRect.top);
+        matrix.postScale(width / sourceRect.width(), height / sourceRect.height());
+        matrix.postRotate(degreesRotated);
+        RectF bounds = new RectF(0, 0, width, height);
+        Matrix rotate = new Matrix();
+        rotate.setRotate(degreesRotated);
+        rotate.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+
+        // 旋转0、90、180或270度不需要额外裁剪
+        RectF cropRect;
+        if (degreesRotated % 90 != 0) {
+            Rect rotatedRect = getRotatedCropRect(points, rect, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY);
+            cropRect = new RectF(rotatedRect.left * scale, rotatedRect.top * scale,
+                    rotatedRect.right * scale, rotatedRect.bottom * scale);
+        } else {
+            cropRect = new RectF(0, 0, bounds.width(), bounds.height());
+        }
+        int cropWidth = Math.max(1, Math.round(cropRect.width()));
+        int cropHeight = Math.max(1, Math.round(cropRect.height()));
+        matrix.postTranslate(-cropRect.left, -cropRect.top);
+
+        int outWidth = cropWidth;
+        int outHeight = cropHeight;
+        Point size = getResizedSize(cropWidth, cropHeight, reqWidth, reqHeight, options);
+        if (size != null) {
+            outWidth = size.x;
+            outHeight = size.y;
+            matrix.postScale(outWidth / (float) cropWidth, outHeight / (float) cropHeight);
+        }
+
+        Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        Paint paint = FILTER_PAINT;
+        if (degreesRotated % 90 != 0) {
+            // 非直角的旋转会露出透明的角
+            config = Bitmap.Config.ARGB_8888;
+            paint = ROTATE_FILTER_PAINT;
+        }
+        Bitmap target = BitmapPool.getInstance().obtain(outWidth, outHeight, config);
+        Canvas canvas = new Canvas(target);
+        canvas.concat(matrix);
+        canvas.drawBitmap(source, sourceRect, new RectF(sourceRect), paint);
+        canvas.setBitmap(null);
+        target.setDensity(source.getDensity());
+        return target;
+    }
+
+    /**
+     * 把只解码了剪切区域的位图变换为最终的结果, 区域位图放回位图池。不需要旋转和调整大小时直接返回区域位图。
+     *
+     * @param region     只包含剪切区域的位图
+     * @param rect       剪切区域在原图中的位置
+     * @param sampleSize 解码区域时使用的 inSampleSize
+     */
+    static Bitmap transformRegion(Bitmap region, float[] points, Rect rect, int sampleSize, int degreesRotated,
+                                  boolean fixAspectRatio, int aspectRatioX, int aspectRatioY,
+                                  int reqWidth, int reqHeight, Enum.RequestSizeOptions options) {
+        if (degreesRotated % 360 == 0
+                && getResizedSize(region.getWidth(), region.getHeight(), reqWidth, reqHeight, options) == null) {
+            return region;
+        }
+        Bitmap result = transformBitmap(region, new Rect(0, 0, region.getWidth(), region.getHeight()), points, rect,
+                1 / (float) sampleSize, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY,
+                reqWidth, reqHeight, options);
+        BitmapPool.getInstance().put(region);
+        return result;
     }
 
     /**
      * Calculate the largest inSampleSize value that is a power of 2 and keeps both
      * height and width larger than the requested height and width.
      */
-    private static int calculateInSampleSizeByReqestedSize(int width, int height, int reqWidth, int reqHeight) {
+    static int calculateInSampleSizeByReqestedSize(int width, int height, int reqWidth, int reqHeight) {
         int inSampleSize = 1;
         if (height > reqHeight || width > reqWidth) {
             while ((height / 2 / inSampleSize) > reqHeight && (width / 2 / inSampleSize) > reqWidth) {
@@ -606,20 +795,85 @@ public final class BitmapUtils {
     }
 
     /**
-     * Rotate the given bitmap by the given degrees.<br>
-     * New bitmap is created and the old one is recycled.
+     * 与 {@link Bitmap#createBitmap(Bitmap, int, int, int, int, Matrix, boolean)} 相同, 但是结果画到
+     * {@link BitmapPool} 中的位图上, 而不是每次都分配新的位图。源位图不会被修改或回收。
      */
-    private static Bitmap rotateBitmapInt(Bitmap bitmap, int degrees) {
-        if (degrees > 0) {
-            Matrix matrix = new Matrix();
-            matrix.setRotate(degrees);
-            Bitmap newBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, false);
-            if (newBitmap != bitmap) {
-                bitmap.recycle();
+    private static Bitmap createPooledBitmap(Bitmap source, Rect rect, Matrix matrix, boolean filter) {
+        RectF srcRect = new RectF(0, 0, rect.width(), rect.height());
+        RectF dstRect = new RectF(srcRect);
+        Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        Paint paint = filter ? FILTER_PAINT : null;
+        if (matrix != null && !matrix.isIdentity()) {
+            matrix.mapRect(dstRect);
+            if (!matrix.rectStaysRect()) {
+                // 非直角的旋转会露出透明的角
+                config = Bitmap.Config.ARGB_8888;
+                if (filter) {
+                    paint = ROTATE_FILTER_PAINT;
+                }
             }
-            return newBitmap;
-        } else {
-            return bitmap;
+        }
+        int width = Math.max(1, Math.round(dstRect.width()));
+        int height = Math.max(1, Math.round(dstRect.height()));
+        Bitmap target = BitmapPool.getInstance().obtain(width, height, config);
+        Canvas canvas = new Canvas(target);
+        canvas.translate(-dstRect.left, -dstRect.top);
+        if (matrix != null) {
+            canvas.concat(matrix);
+        }
+        canvas.drawBitmap(source, rect, srcRect, paint);
+        canvas.setBitmap(null);
+        target.setDensity(source.getDensity());
+        return target;
+    }
+
+    /**
+     * 与 {@link Bitmap#createScaledBitmap(Bitmap, int, int, boolean)} 相同, 但是结果画到 {@link BitmapPool} 中的位图上。
+     */
+    private static Bitmap createPooledScaledBitmap(Bitmap source, int width, int height) {
+        Matrix matrix = new Matrix();
+        matrix.setScale(width / (float) source.getWidth(), height / (float) source.getHeight());
+        return createPooledBitmap(source, new Rect(0, 0, source.getWidth(), source.getHeight()), matrix, false);
+    }
+
+    /**
+     * 在 {@link BitmapFactory.Options#inBitmap} 中设置池中可以重用的位图, 需要先通过 inJustDecodeBounds 获取原图的尺寸。
+     *
+     * @param width  要解码的原图(区域)的宽度
+     * @param height 要解码的原图(区域)的高度
+     */
+    static void setReusableBitmap(BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        if (width <= 0 || height <= 0) {
+            options.inBitmap = null;
+            return;
+        }
+        int sampleSize = Math.max(1, options.inSampleSize);
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        // 按照向上取整预留空间, 解码器会把位图调整为实际的大小
+        options.inBitmap = BitmapPool.getInstance().getReusable((width + sampleSize - 1) / sampleSize,
+                (height + sampleSize - 1) / sampleSize, config);
+    }
+
+    /**
+     * 在 {@link BitmapFactory.Options#inBitmap} 中设置池中可以重用的位图, 用于 {@link BitmapRegionDecoder}。
+     * 区域解码器不会调整 inBitmap 的大小, 所以位图必须刚好是区域按照 inSampleSize 缩小后(向下取整)的大小。
+     */
+    static void setReusableRegionBitmap(BitmapFactory.Options options, Rect region) {
+        options.inMutable = true;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inBitmap = BitmapPool.getInstance().getReusable(Math.max(1, region.width() / sampleSize),
+                Math.max(1, region.height() / sampleSize), config);
+    }
+
+    /**
+     * 解码失败时把没有使用的 {@link BitmapFactory.Options#inBitmap} 放回位图池
+     */
+    static void releaseReusableBitmap(BitmapFactory.Options options) {
+        if (options.inBitmap != null) {
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
         }
     }
 
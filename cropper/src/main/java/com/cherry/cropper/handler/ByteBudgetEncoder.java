@@ -0,0 +1,129 @@
+package com.cherry.cropper.handler;
+
+import android.graphics.Bitmap;
+
+import com.cherry.cropper.utils.CropLog;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 按照字节上限压缩剪切结果
+ * 对 JPEG/WebP 的压缩质量做二分查找, 找到不超过字节上限的最高质量。
+ * 起始质量使用同一类内容(格式 + 剪切框类型)上一次找到的质量, 同一批剪切框的内容相似, 一般压缩一到两次就能满足。
+ */
+public final class ByteBudgetEncoder {
+
+    private static final String TAG = "OCR:" + ByteBudgetEncoder.class.getName();
+
+    /**
+     * 查找的最低质量
+     */
+    private static final int MIN_QUALITY = 5;
+
+    /**
+     * 结果达到上限的这个比例时就不再尝试更高的质量
+     */
+    private static final float GOOD_ENOUGH_RATIO = 0.85f;
+
+    /**
+     * 每类内容上一次找到的质量
+     */
+    private static final ConcurrentHashMap<String, Integer> sQualityEstimates = new ConcurrentHashMap<>();
+
+    private ByteBudgetEncoder() {
+    }
+
+    /**
+     * 压缩位图, 结果不超过 maxBytes。使用完之后必须调用 {@link CropImageWriter.EncodeBuffer#release()}。
+     *
+     * @param maxQuality  允许的最高质量, 一般是 outputCompressQuality
+     * @param maxBytes    字节上限, 小于等于 0 时按照 maxQuality 压缩一次
+     * @param contentType 内容的类型(例如圈图/拆题), 同一类型共享起始质量的估计
+     * @throws IOException 最低质量也超过上限时
+     */
+    public static CropImageWriter.EncodeBuffer encode(Bitmap bitmap, Bitmap.CompressFormat format, int maxQuality,
+                                                      int maxBytes, String contentType) throws IOException {
+        if (maxBytes <= 0) {
+            return CropImageWriter.encode(bitmap, format, maxQuality);
+        }
+        if (format == Bitmap.CompressFormat.PNG) {
+            // PNG 是无损的, 质量不影响大小
+            CropImageWriter.EncodeBuffer buffer = CropImageWriter.encode(bitmap, format, maxQuality);
+            return checkFits(buffer, maxBytes, format, maxQuality);
+        }
+
+        String key = format.name() + ":" + contentType;
+        Integer estimate = sQualityEstimates.get(key);
+        int low = MIN_QUALITY;
+        int high = Math.max(MIN_QUALITY, maxQuality);
+        int quality = estimate != null ? Math.max(low, Math.min(high, estimate)) : high;
+
+        CropImageWriter.EncodeBuffer best = null;
+        int bestQuality = 0;
+        int encodes = 0;
+        CropImageWriter.EncodeBuffer buffer = CropImageWriter.EncodeBuffer.obtain();
+        try {
+            while (low <= high) {
+                buffer.reset();
+                if (!bitmap.compress(format, quality, buffer)) {
+                    throw new IOException("Failed to compress bitmap: " + format + " " + quality);
+                }
+                encodes++;
+                int size = buffer.size();
+                if (size <= maxBytes) {
+                    // 保留当前结果, 换一个缓冲区继续尝试更高的质量
+                    if (best != null) {
+                        best.release();
+                    }
+                    best = buffer;
+                    bestQuality = quality;
+                    buffer = null;
+                    if (quality >= high || size >= maxBytes * GOOD_ENOUGH_RATIO) {
+                        break;
+                    }
+                    low = quality + 1;
+                    buffer = CropImageWriter.EncodeBuffer.obtain();
+                } else {
+                    high = quality - 1;
+                }
+                quality = (low + high + 1) / 2;
+            }
+        } finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+
+        if (best == null) {
+            sQualityEstimates.put(key, MIN_QUALITY);
+            throw new IOException("Cannot compress " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                    + " within " + maxBytes + " bytes");
+        }
+        sQualityEstimates.put(key, bestQuality);
+        if (CropLog.D && CropLog.isLoggable(CropLog.DEBUG)) {
+            CropLog.d(TAG, "encode " + key + " quality: " + bestQuality + " size: " + best.size()
+                    + "/" + maxBytes + " encodes: " + encodes);
+        }
+        return best;
+    }
+
+    /**
+     * 清除质量的估计, 例如修改了输出格式或者字节上限之后
+     */
+    public static void clearEstimates() {
+        sQualityEstimates.clear();
+    }
+
+    private static CropImageWriter.EncodeBuffer checkFits(CropImageWriter.EncodeBuffer buffer, int maxBytes,
+                                                          Bitmap.CompressFormat format, int quality) throws IOException {
+        if (buffer.size() > maxBytes) {
+            int size = buffer.size();
+            buffer.release();
+            throw new IOException("Encoded size " + size + " exceeds " + maxBytes + " bytes: " + format + " " + quality);
+        }
+        return buffer;
+    }
+}
@@ -14,7 +14,6 @@ package com.cherry.cropper.handler;
 
 import android.graphics.Matrix;
 import android.graphics.RectF;
-import android.util.Log;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.Animation;
 import android.view.animation.Transformation;
@@ -78,7 +77,6 @@ public final class CropImageAnimation extends Animation implements Animation.Ani
 
     @Override
     protected void applyTransformation(float interpolatedTime, Transformation t) {
-        Log.i("CropImageAnimation", "applyTransformation");
         mAnimRect.left = mStartCropWindowRect.left + (mEndCropWindowRect.left - mStartCropWindowRect.left) * interpolatedTime;
         mAnimRect.top = mStartCropWindowRect.top + (mEndCropWindowRect.top - mStartCropWindowRect.top) * interpolatedTime;
         mAnimRect.right = mStartCropWindowRect.right + (mEndCropWindowRect.right - mStartCropWindowRect.right) * interpolatedTime;
@@ -224,6 +224,11 @@ public class CropImageOptions implements Parcelable {
      */
     public int outputCompressQuality;
 
+    /**
+     * 每个剪切结果压缩后的最大字节数, 大于 0 时在 outputCompressQuality 以下查找满足的压缩质量(0 表示不限制)
+     */
+    public int outputMaxBytes;
+
     /**
      * the width to resize the cropped image to (see options)
      */
@@ -317,6 +322,7 @@ public class CropImageOptions implements Parcelable {
         outputUri = Uri.EMPTY;
         outputCompressFormat = Bitmap.CompressFormat.JPEG;
         outputCompressQuality = 100;
+        outputMaxBytes = 0;
         outputRequestWidth = 0;
         outputRequestHeight = 0;
         outputRequestSizeOptions = Enum.RequestSizeOptions.NONE;
@@ -368,6 +374,7 @@ public class CropImageOptions implements Parcelable {
         outputUri = in.readParcelable(Uri.class.getClassLoader());
         outputCompressFormat = Bitmap.CompressFormat.valueOf(in.readString());
         outputCompressQuality = in.readInt();
+        outputMaxBytes = in.readInt();
         outputRequestWidth = in.readInt();
         outputRequestHeight = in.readInt();
         outputRequestSizeOptions = Enum.RequestSizeOptions.values()[in.readInt()];
@@ -416,6 +423,7 @@ public class CropImageOptions implements Parcelable {
         dest.writeParcelable(outputUri, flags);
         dest.writeString(outputCompressFormat.name());
         dest.writeInt(outputCompressQuality);
+        dest.writeInt(outputMaxBytes);
         dest.writeInt(outputRequestWidth);
         dest.writeInt(outputRequestHeight);
         dest.writeInt(outputRequestSizeOptions.ordinal());
@@ -478,6 +486,9 @@ public class CropImageOptions implements Parcelable {
         if (maxCropResultHeight < minCropResultHeight) {
             throw new IllegalArgumentException("Cannot set max crop result height to smaller value than min crop result height");
         }
+        if (outputMaxBytes < 0) {
+            throw new IllegalArgumentException("Cannot set output max bytes value to a number < 0 ");
+        }
         if (outputRequestWidth < 0) {
             throw new IllegalArgumentException("Cannot set request width value to a number < 0 ");
         }
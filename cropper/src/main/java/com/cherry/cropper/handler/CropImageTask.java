@@ -3,14 +3,23 @@ package com.cherry.cropper.handler;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.util.Log;
-
 
+import com.cherry.cropper.utils.CropLog;
 import com.cherry.cropper.utils.CropResult;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.cherry.cropper.utils.Enum;
 
 
@@ -24,6 +33,11 @@ public class CropImageTask {
 
     private static final String TAG = "OCR:" + CropImageTask.class.getName();
 
+    /**
+     * 从 uri 剪切时同时解码区域的最大数量, 每个解码器都会占用一份解码状态
+     */
+    private static final int MAX_REGION_DECODERS = 4;
+
     public static CropResult cropBaseImage(final Context context,
                                            final Uri uri,
                                            final Bitmap bitmap,
@@ -37,29 +51,66 @@ public class CropImageTask {
                                            final Enum.RequestSizeOptions options,
                                            final Bitmap.CompressFormat saveCompressFormat,
                                            final int saveCompressQuality) {
+        return cropBaseImage(context, uri, bitmap, cropPoint, degreesRotated, fixAspectRatio, aspectRatioX,
+                aspectRatioY, reqWidth, reqHeight, options, saveCompressFormat, saveCompressQuality, 0);
+    }
+
+    /**
+     * @param saveMaxBytes 压缩后的字节上限, 大于 0 时在 saveCompressQuality 以下查找满足的压缩质量
+     */
+    public static CropResult cropBaseImage(final Context context,
+                                           final Uri uri,
+                                           final Bitmap bitmap,
+                                           final float[] cropPoint,
+                                           final int degreesRotated,
+                                           final boolean fixAspectRatio,
+                                           final int aspectRatioX,
+                                           final int aspectRatioY,
+                                           final int reqWidth,
+                                           final int reqHeight,
+                                           final Enum.RequestSizeOptions options,
+                                           final Bitmap.CompressFormat saveCompressFormat,
+                                           final int saveCompressQuality,
+                                           final int saveMaxBytes) {
 
         BitmapUtils.BitmapSampled bitmapSampled;
         if (bitmap != null) {
-            Log.d(TAG, "crop Base Image, create bitmapSampled");
+            CropLog.d(TAG, "crop Base Image, create bitmapSampled");
             bitmapSampled = BitmapUtils.cropBitmapObjectHandleOOM(bitmap, cropPoint,
-                    degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, false, false);
+                    degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, false, false,
+                    reqWidth, reqHeight, options);
         } else {
-            Log.d(TAG, "crop Base Image, Bitmap == null");
+            CropLog.d(TAG, "crop Base Image, Bitmap == null");
             return new CropResult((Bitmap) null, 1);
         }
-        Bitmap resizeBitmap = BitmapUtils.resizeBitmap(bitmapSampled.bitmap, reqWidth, reqHeight, options);
+        if (bitmapSampled.bitmap == bitmap) {
+            // 剪切失败时返回的是原图, 原图还在显示, 不能放入位图池
+            return new CropResult(uri, new IllegalStateException("Failed to crop base image: " + uri));
+        }
+        // 剪切时已经调整为最终的大小
+        Bitmap resizeBitmap = bitmapSampled.bitmap;
         if (uri != null && resizeBitmap != null) {
             try {
-                Log.d(TAG, "crop Base Image ,uri != null");
+                CropLog.d(TAG, "crop Base Image ,uri != null");
 //                Bitmap preproBitmap = bitmapPreprocessing(resizeBitmap);
-                BitmapUtils.writeBitmapToUri(context, resizeBitmap, uri, saveCompressFormat, saveCompressQuality);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+                CropImageWriter writer = new CropImageWriter(context, saveCompressFormat, saveCompressQuality,
+                        saveMaxBytes, Enum.SyncPolicy.NONE);
+                CropImageWriter.EncodeBuffer encoded = encode(writer, resizeBitmap, getContentType(false, false));
+                try {
+                    write(writer, encoded, uri);
+                } finally {
+                    encoded.release();
+                }
+            } catch (IOException e) {
+                // 超过 saveMaxBytes 或者写入失败时没有可用的文件, 不能返回成功的结果
+                CropLog.w(TAG, "Failed to save base image: " + uri, e);
+                return new CropResult(uri, e);
+            } finally {
+                BitmapPool.getInstance().put(resizeBitmap);
             }
-            resizeBitmap.recycle();
             return new CropResult(uri, bitmapSampled.sampleSize);
         } else {
-            Log.d(TAG, "crop Base Image ,uri == null");
+            CropLog.d(TAG, "crop Base Image ,uri == null");
             return new CropResult(resizeBitmap, bitmapSampled.sampleSize);
         }
     }
@@ -80,82 +131,477 @@ public class CropImageTask {
                                                                  final Enum.RequestSizeOptions options,
                                                                  final Bitmap.CompressFormat saveCompressFormat,
                                                                  final int saveCompressQuality) {
+        return cropSplitAndEncloseImage(context, bitmap, splitUriList, enCloseUriList, splitPoints, enClosePoints,
+                degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight, options,
+                saveCompressFormat, saveCompressQuality, null);
+    }
+
+    /**
+     * 剪切拆题的题目和圈图的图片, 每个剪切框作为一个独立的任务提交到给定的 executor 并行执行。<br>
+     * 返回结果的顺序与剪切框的顺序一致(先圈图, 后拆题), 某个剪切框失败时对应位置返回带有 error 的结果,
+     * 不影响其它剪切框。
+     *
+     * @param executor 用于执行剪切任务的线程池, 为 null 时在调用线程上依次执行
+     */
+    public static ArrayList<CropResult> cropSplitAndEncloseImage(final Context context,
+                                                                 final Bitmap bitmap,
+                                                                 final List<Uri> splitUriList,
+                                                                 final List<Uri> enCloseUriList,
+                                                                 final List<float[]> splitPoints,
+                                                                 final List<float[]> enClosePoints,
+                                                                 final int degreesRotated,
+                                                                 final boolean fixAspectRatio,
+                                                                 final int aspectRatioX,
+                                                                 final int aspectRatioY,
+                                                                 final int reqWidth,
+                                                                 final int reqHeight,
+                                                                 final Enum.RequestSizeOptions options,
+                                                                 final Bitmap.CompressFormat saveCompressFormat,
+                                                                 final int saveCompressQuality,
+                                                                 final Executor executor) {
+        return cropSplitAndEncloseImage(context, bitmap, splitUriList, enCloseUriList, splitPoints, enClosePoints,
+                degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight, options,
+                saveCompressFormat, saveCompressQuality, 0, executor);
+    }
+
+    /**
+     * 与 {@link #cropSplitAndEncloseImage(Context, Bitmap, List, List, List, List, int, boolean, int, int, int, int,
+     * Enum.RequestSizeOptions, Bitmap.CompressFormat, int, Executor)} 相同, 每个剪切框压缩后不超过 saveMaxBytes。
+     *
+     * @param saveMaxBytes 压缩后的字节上限, 大于 0 时在 saveCompressQuality 以下查找满足的压缩质量,
+     *                     同一类剪切框(圈图/拆题)共享起始质量的估计
+     */
+    public static ArrayList<CropResult> cropSplitAndEncloseImage(final Context context,
+                                                                 final Bitmap bitmap,
+                                                                 final List<Uri> splitUriList,
+                                                                 final List<Uri> enCloseUriList,
+                                                                 final List<float[]> splitPoints,
+                                                                 final List<float[]> enClosePoints,
+                                                                 final int degreesRotated,
+                                                                 final boolean fixAspectRatio,
+                                                                 final int aspectRatioX,
+                                                                 final int aspectRatioY,
+                                                                 final int reqWidth,
+                                                                 final int reqHeight,
+                                                                 final Enum.RequestSizeOptions options,
+                                                                 final Bitmap.CompressFormat saveCompressFormat,
+                                                                 final int saveCompressQuality,
+                                                                 final int saveMaxBytes,
+                                                                 final Executor executor) {
 
         // 用于保存剪切结果的集合, 几个剪切框就有几条数据
         final ArrayList<CropResult> results = new ArrayList<CropResult>();
-        // 剪切并保存圈图的截图
+        if (bitmap == null) {
+            CropLog.d(TAG, "crop split and enclose Image, Bitmap == null");
+            addErrorResults(results, enCloseUriList, enClosePoints, splitUriList, splitPoints,
+                    new IllegalArgumentException("Bitmap == null"));
+            return results;
+        }
+
+        List<Callable<CropResult>> tasks = newCropTasks(context, bitmap, null, splitUriList, enCloseUriList,
+                splitPoints, enClosePoints, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY,
+                reqWidth, reqHeight, options, saveCompressFormat, saveCompressQuality, saveMaxBytes);
+        runCropTasks(tasks, results, executor);
+        return results;
+    }
+
+    /**
+     * 直接从原图 uri 剪切拆题的题目和圈图的图片。<br>
+     * 原图只读取一次, 每个剪切框只解码自己所在的区域, 不需要把整张原图解码到内存中;
+     * 如果 {@link DecodedImageCache} 中已经有完整的原图, 直接从缓存的位图剪切。
+     * 剪切点必须是原图坐标(见 CropImageView.getCropPoints)。
+     *
+     * @param executor 用于执行剪切任务的线程池, 为 null 时在调用线程上依次执行
+     */
+    public static ArrayList<CropResult> cropSplitAndEncloseImage(final Context context,
+                                                                 final Uri sourceUri,
+                                                                 final List<Uri> splitUriList,
+                                                                 final List<Uri> enCloseUriList,
+                                                                 final List<float[]> splitPoints,
+                                                                 final List<float[]> enClosePoints,
+                                                                 final int degreesRotated,
+                                                                 final boolean fixAspectRatio,
+                                                                 final int aspectRatioX,
+                                                                 final int aspectRatioY,
+                                                                 final int reqWidth,
+                                                                 final int reqHeight,
+                                                                 final Enum.RequestSizeOptions options,
+                                                                 final Bitmap.CompressFormat saveCompressFormat,
+                                                                 final int saveCompressQuality,
+                                                                 final Executor executor) {
+        return cropSplitAndEncloseImage(context, sourceUri, splitUriList, enCloseUriList, splitPoints, enClosePoints,
+                degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight, options,
+                saveCompressFormat, saveCompressQuality, 0, executor);
+    }
+
+    /**
+     * 直接从原图 uri 剪切, 每个剪切框压缩后不超过 saveMaxBytes(大于 0 时)。
+     */
+    public static ArrayList<CropResult> cropSplitAndEncloseImage(final Context context,
+                                                                 final Uri sourceUri,
+                                                                 final List<Uri> splitUriList,
+                                                                 final List<Uri> enCloseUriList,
+                                                                 final List<float[]> splitPoints,
+                                                                 final List<float[]> enClosePoints,
+                                                                 final int degreesRotated,
+                                                                 final boolean fixAspectRatio,
+                                                                 final int aspectRatioX,
+                                                                 final int aspectRatioY,
+                                                                 final int reqWidth,
+                                                                 final int reqHeight,
+                                                                 final Enum.RequestSizeOptions options,
+                                                                 final Bitmap.CompressFormat saveCompressFormat,
+                                                                 final int saveCompressQuality,
+                                                                 final int saveMaxBytes,
+                                                                 final Executor executor) {
+        // 原图已经完整解码在缓存中时(例如 CropImageView 显示的就是原图)直接共享解码后的像素
+        BitmapUtils.BitmapSampled cached = DecodedImageCache.getInstance().peek(context, sourceUri, 1);
+        if (cached != null && cached.bitmap != null) {
+            return cropSplitAndEncloseImage(context, cached.bitmap, splitUriList, enCloseUriList, splitPoints,
+                    enClosePoints, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight,
+                    options, saveCompressFormat, saveCompressQuality, saveMaxBytes, executor);
+        }
+        final ArrayList<CropResult> results = new ArrayList<CropResult>();
+        CropRegionSession session;
+        try {
+            int decoders = executor == null ? 1 : Math.min(Runtime.getRuntime().availableProcessors(), MAX_REGION_DECODERS);
+            session = CropRegionSession.open(context, sourceUri, decoders);
+        } catch (Exception e) {
+            CropLog.d(TAG, "crop split and enclose Image, failed to open %s", sourceUri);
+            addErrorResults(results, enCloseUriList, enClosePoints, splitUriList, splitPoints, e);
+            return results;
+        }
+        try {
+            List<Callable<CropResult>> tasks = newCropTasks(context, null, session, splitUriList, enCloseUriList,
+                    splitPoints, enClosePoints, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY,
+                    reqWidth, reqHeight, options, saveCompressFormat, saveCompressQuality, saveMaxBytes);
+            runCropTasks(tasks, results, executor);
+        } finally {
+            session.close();
+        }
+        return results;
+    }
+
+    // 圈图在前, 拆题在后, 与结果的顺序一致
+    private static List<Callable<CropResult>> newCropTasks(Context context, Bitmap bitmap, CropRegionSession session,
+                                                           List<Uri> splitUriList, List<Uri> enCloseUriList,
+                                                           List<float[]> splitPoints, List<float[]> enClosePoints,
+                                                           int degreesRotated, boolean fixAspectRatio,
+                                                           int aspectRatioX, int aspectRatioY, int reqWidth, int reqHeight,
+                                                           Enum.RequestSizeOptions options,
+                                                           Bitmap.CompressFormat saveCompressFormat, int saveCompressQuality,
+                                                           int saveMaxBytes) {
+        final List<Callable<CropResult>> tasks = new ArrayList<Callable<CropResult>>();
         if (enClosePoints != null && enCloseUriList != null) {
             for (int i = 0; i < enClosePoints.size(); i++) {
-                BitmapUtils.BitmapSampled bitmapSampled;
-                CropResult result;
-                float[] cropPoint = enClosePoints.get(i);
-                Uri uri = enCloseUriList.get(i);
-                if (bitmap != null) {
-                    Log.d(TAG, "crop enclose Image , create bitmapSampled");
-                    bitmapSampled = BitmapUtils.cropBitmapObjectHandleOOM(bitmap, cropPoint,
-                            degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, true, false);
-                } else {
-                    Log.d(TAG, "crop enclose Image, Bitmap == null");
-                    result = new CropResult((Bitmap) null, 1);
-                    results.add(result);
-                    return results;
-                }
-                Bitmap resizeBitmap = BitmapUtils.resizeBitmap(bitmapSampled.bitmap, reqWidth, reqHeight, options);
-                if (resizeBitmap != null) {
-                    if (uri != null) {
-                        Log.d(TAG, "crop enclose Image, uri:" + i + uri);
-                        try {
-                            BitmapUtils.writeBitmapToUri(context, resizeBitmap, uri, saveCompressFormat, saveCompressQuality);
-                        } catch (FileNotFoundException e) {
-                            e.printStackTrace();
-                        }
-                        resizeBitmap.recycle();
-                        result = new CropResult(uri, bitmapSampled.sampleSize);
-                    } else {
-                        Log.d(TAG, "crop enclose Image, uri == null");
-                        result = new CropResult(resizeBitmap, bitmapSampled.sampleSize);
-                    }
-                    results.add(result);
-                }
+                tasks.add(new CropWindowCallable(context, bitmap, session, enClosePoints.get(i), toSink(enCloseUriList.get(i)),
+                        degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight,
+                        options, saveCompressFormat, saveCompressQuality, saveMaxBytes, true, false));
             }
         }
+        if (splitPoints != null && splitUriList != null) {
+            for (int i = 0; i < splitPoints.size(); i++) {
+                tasks.add(new CropWindowCallable(context, bitmap, session, splitPoints.get(i), toSink(splitUriList.get(i)),
+                        degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight,
+                        options, saveCompressFormat, saveCompressQuality, saveMaxBytes, false, true));
+            }
+        }
+        return tasks;
+    }
 
-        // 剪切并保存拆题之后的截图
-        for (int i = 0; i < splitPoints.size(); i++) {
-            BitmapUtils.BitmapSampled bitmapSampled;
+    /**
+     * 剪切剪切框并输出到对应的 {@link CropOutputSink}(uri, 内存中的 ByteBuffer 或者调用者的 OutputStream),
+     * 上传时可以直接使用 {@link CropResult#getEncodedBytes()}, 不需要读取文件或者再次压缩。<br>
+     * 返回结果的顺序与剪切框的顺序一致, sink 为 null 的剪切框返回位图。
+     *
+     * @param sinks    每个剪切框的输出位置, 与 points 一一对应
+     * @param executor 用于执行剪切任务的线程池, 为 null 时在调用线程上依次执行
+     */
+    public static ArrayList<CropResult> cropImageToSinks(final Context context,
+                                                         final Bitmap bitmap,
+                                                         final List<float[]> points,
+                                                         final List<CropOutputSink> sinks,
+                                                         final int degreesRotated,
+                                                         final boolean fixAspectRatio,
+                                                         final int aspectRatioX,
+                                                         final int aspectRatioY,
+                                                         final int reqWidth,
+                                                         final int reqHeight,
+                                                         final Enum.RequestSizeOptions options,
+                                                         final Bitmap.CompressFormat saveCompressFormat,
+                                                         final int saveCompressQuality,
+                                                         final int saveMaxBytes,
+                                                         final Executor executor) {
+        final ArrayList<CropResult> results = new ArrayList<CropResult>();
+        if (bitmap == null) {
+            CropLog.d(TAG, "crop image to sinks, Bitmap == null");
+            Exception error = new IllegalArgumentException("Bitmap == null");
+            for (int i = 0; i < points.size(); i++) {
+                CropOutputSink sink = sinks.get(i);
+                results.add(new CropResult(sink != null ? sink.getUri() : null, error));
+            }
+            return results;
+        }
+        final List<Callable<CropResult>> tasks = new ArrayList<Callable<CropResult>>();
+        for (int i = 0; i < points.size(); i++) {
+            tasks.add(new CropWindowCallable(context, bitmap, null, points.get(i), sinks.get(i),
+                    degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight,
+                    options, saveCompressFormat, saveCompressQuality, saveMaxBytes, false, false));
+        }
+        runCropTasks(tasks, results, executor);
+        return results;
+    }
+
+    private static CropOutputSink toSink(Uri uri) {
+        return uri != null ? CropOutputSink.toUri(uri) : null;
+    }
+
+    // 执行剪切任务, 按照任务的顺序记录结果
+    private static void runCropTasks(List<Callable<CropResult>> tasks, List<CropResult> results, Executor executor) {
+        if (executor == null) {
+            for (Callable<CropResult> task : tasks) {
+                results.add(callSafe(task));
+            }
+            return;
+        }
+
+        // 同时剪切的剪切框平分内存预算
+        int concurrency = Math.min(tasks.size(), executor instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) executor).getMaximumPoolSize() : Runtime.getRuntime().availableProcessors());
+        CropMemoryPlanner.beginConcurrentCrops(concurrency);
+        try {
+            runCropTasksConcurrently(tasks, results, executor);
+        } finally {
+            CropMemoryPlanner.endConcurrentCrops(concurrency);
+        }
+    }
+
+    private static void runCropTasksConcurrently(List<Callable<CropResult>> tasks, List<CropResult> results,
+                                                 Executor executor) {
+        final List<FutureTask<CropResult>> futures = new ArrayList<FutureTask<CropResult>>(tasks.size());
+        for (Callable<CropResult> task : tasks) {
+            FutureTask<CropResult> future = new FutureTask<CropResult>(task);
+            futures.add(future);
+            try {
+                executor.execute(future);
+            } catch (RejectedExecutionException e) {
+                // 线程池已满或已关闭时, 在调用线程上执行该剪切框
+                future.run();
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
             CropResult result;
-            float[] cropPoint = splitPoints.get(i);
-            Uri uri = splitUriList.get(i);
-            if (bitmap != null) {
-                Log.d(TAG, "crop split Image, create bitmapSampled");
-                bitmapSampled = BitmapUtils.cropBitmapObjectHandleOOM(bitmap, cropPoint,
-                        degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, false, true);
+            try {
+                result = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = new CropResult(((CropWindowCallable) tasks.get(i)).uri, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                result = new CropResult(((CropWindowCallable) tasks.get(i)).uri,
+                        cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+            }
+            results.add(result);
+        }
+    }
+
+    /**
+     * 创建用于并行剪切的线程池, 线程数不超过 CPU 核数, 空闲的线程会被回收。
+     *
+     * @param maxThreads 最大线程数, <= 0 时使用 CPU 核数
+     */
+    public static ThreadPoolExecutor newCropExecutor(int maxThreads) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (maxThreads > 0) {
+            threads = Math.min(threads, maxThreads);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CropWorker #" + mCount.getAndIncrement());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 剪切框的内容类型: 圈图, 拆题或者整张图片, 用于按照字节上限压缩时区分起始质量的估计
+     */
+    static String getContentType(boolean isEnclose, boolean isSplit) {
+        return isEnclose ? "enclose" : isSplit ? "split" : "base";
+    }
+
+    /**
+     * 压缩剪切的结果, 记录为 {@link CropMetrics#STAGE_ENCODE} 阶段
+     */
+    private static CropImageWriter.EncodeBuffer encode(CropImageWriter writer, Bitmap bitmap, String contentType)
+            throws IOException {
+        CropMetrics.begin(CropMetrics.STAGE_ENCODE);
+        try {
+            CropMetrics.setDetail(contentType);
+            CropImageWriter.EncodeBuffer encoded = writer.encode(bitmap, contentType);
+            CropMetrics.addBytesAllocated(encoded.size());
+            return encoded;
+        } finally {
+            CropMetrics.end();
+        }
+    }
+
+    /**
+     * 把压缩后的数据写入 uri, 记录为 {@link CropMetrics#STAGE_WRITE} 阶段
+     */
+    private static void write(CropImageWriter writer, CropImageWriter.EncodeBuffer encoded, Uri uri) throws IOException {
+        CropMetrics.begin(CropMetrics.STAGE_WRITE);
+        try {
+            CropMetrics.setDetail(uri.toString());
+            writer.write(encoded, uri);
+            CropMetrics.addBytesWritten(encoded.size());
+        } finally {
+            CropMetrics.end();
+        }
+    }
+
+    /**
+     * 把压缩后的数据写入 sink, 记录为 {@link CropMetrics#STAGE_WRITE} 阶段
+     */
+    private static CropResult write(CropOutputSink sink, CropImageWriter writer, CropImageWriter.EncodeBuffer encoded,
+                                    Uri uri, int sampleSize) throws IOException {
+        CropMetrics.begin(CropMetrics.STAGE_WRITE);
+        try {
+            CropMetrics.setDetail(uri != null ? uri.toString() : sink.getClass().getSimpleName());
+            CropResult result = sink.write(writer, encoded, sampleSize);
+            CropMetrics.addBytesWritten(encoded.size());
+            return result;
+        } finally {
+            CropMetrics.end();
+        }
+    }
+
+    // 无法剪切时每个剪切框都返回带有 error 的结果, 圈图在前, 拆题在后, 与 newCropTasks 的顺序一致
+    private static void addErrorResults(List<CropResult> results, List<Uri> enCloseUriList,
+                                        List<float[]> enClosePoints, List<Uri> splitUriList,
+                                        List<float[]> splitPoints, Exception error) {
+        if (enClosePoints != null && enCloseUriList != null) {
+            for (int i = 0; i < enClosePoints.size(); i++) {
+                results.add(new CropResult(enCloseUriList.get(i), error));
+            }
+        }
+        if (splitPoints != null && splitUriList != null) {
+            for (int i = 0; i < splitPoints.size(); i++) {
+                results.add(new CropResult(splitUriList.get(i), error));
+            }
+        }
+    }
+
+    // 每个剪切框都有一个结果, 失败时是带有 error 的结果, 与剪切框一一对应
+    private static CropResult callSafe(Callable<CropResult> task) {
+        try {
+            return task.call();
+        } catch (Exception e) {
+            return new CropResult(((CropWindowCallable) task).uri, e);
+        } catch (OutOfMemoryError e) {
+            return new CropResult(((CropWindowCallable) task).uri, new RuntimeException(e));
+        }
+    }
+
+    /**
+     * 剪切单个剪切框: 剪切, 调整大小, 压缩并写入 uri。<br>
+     * 原图只读, 可以在多个线程中同时剪切。
+     */
+    private static final class CropWindowCallable implements Callable<CropResult> {
+
+        private final Context context;
+        private final Bitmap bitmap;
+        private final CropRegionSession session;
+        private final float[] cropPoint;
+        private final CropOutputSink sink;
+        private final Uri uri;
+        private final int degreesRotated;
+        private final boolean fixAspectRatio;
+        private final int aspectRatioX;
+        private final int aspectRatioY;
+        private final int reqWidth;
+        private final int reqHeight;
+        private final Enum.RequestSizeOptions options;
+        private final Bitmap.CompressFormat saveCompressFormat;
+        private final int saveCompressQuality;
+        private final int saveMaxBytes;
+        private final boolean isEnclose;
+        private final boolean isSplit;
+
+        CropWindowCallable(Context context, Bitmap bitmap, CropRegionSession session, float[] cropPoint, CropOutputSink sink, int degreesRotated,
+                           boolean fixAspectRatio, int aspectRatioX, int aspectRatioY, int reqWidth, int reqHeight,
+                           Enum.RequestSizeOptions options, Bitmap.CompressFormat saveCompressFormat,
+                           int saveCompressQuality, int saveMaxBytes, boolean isEnclose, boolean isSplit) {
+            this.context = context;
+            this.bitmap = bitmap;
+            this.session = session;
+            this.cropPoint = cropPoint;
+            this.sink = sink;
+            this.uri = sink != null ? sink.getUri() : null;
+            this.degreesRotated = degreesRotated;
+            this.fixAspectRatio = fixAspectRatio;
+            this.aspectRatioX = aspectRatioX;
+            this.aspectRatioY = aspectRatioY;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.options = options;
+            this.saveCompressFormat = saveCompressFormat;
+            this.saveCompressQuality = saveCompressQuality;
+            this.saveMaxBytes = saveMaxBytes;
+            this.isEnclose = isEnclose;
+            this.isSplit = isSplit;
+        }
+
+        @Override
+        public CropResult call() throws Exception {
+            BitmapUtils.BitmapSampled bitmapSampled;
+            if (session != null) {
+                // 只从原图中解码剪切框所在的区域
+                bitmapSampled = session.crop(cropPoint, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY,
+                        reqWidth, reqHeight, options);
             } else {
-                Log.d(TAG, "crop split Image, Bitmap == null");
-                result = new CropResult((Bitmap) null, 1);
-                results.add(result);
-                return results;
+                bitmapSampled = BitmapUtils.cropBitmapObjectHandleOOM(bitmap, cropPoint, degreesRotated,
+                        fixAspectRatio, aspectRatioX, aspectRatioY, isEnclose, isSplit,
+                        reqWidth, reqHeight, options);
             }
-            Bitmap resizeBitmap = BitmapUtils.resizeBitmap(bitmapSampled.bitmap, reqWidth, reqHeight, options);
-            if (resizeBitmap != null) {
-                if (uri != null) {
-                    Log.d(TAG, "crop split Image, uri:" + i + uri);
-                    try {
-                        BitmapUtils.writeBitmapToUri(context, resizeBitmap, uri, saveCompressFormat, saveCompressQuality);
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
+            if (bitmap != null && bitmapSampled.bitmap == bitmap) {
+                // 剪切失败时返回的是原图, 原图被其它剪切框共享, 不能放入位图池
+                return new CropResult(uri, new IllegalStateException("Failed to crop window: " + uri));
+            }
+            // 剪切、旋转和调整大小在一次绘制中完成
+            Bitmap resizeBitmap = bitmapSampled.bitmap;
+            if (resizeBitmap == null) {
+                return new CropResult(uri, new IllegalStateException("Cropped bitmap is null: " + uri));
+            }
+            if (sink != null) {
+                CropLog.d(TAG, "crop window Image, uri: %s", uri);
+                CropImageWriter writer = new CropImageWriter(context, saveCompressFormat, saveCompressQuality,
+                        saveMaxBytes, Enum.SyncPolicy.NONE);
+                CropImageWriter.EncodeBuffer encoded = null;
+                try {
+                    encoded = encode(writer, resizeBitmap, getContentType(isEnclose, isSplit));
+                    return write(sink, writer, encoded, uri, bitmapSampled.sampleSize);
+                } catch (IOException e) {
+                    return new CropResult(uri, e);
+                } finally {
+                    if (encoded != null) {
+                        encoded.release();
                     }
-                    resizeBitmap.recycle();
-                    result = new CropResult(uri, bitmapSampled.sampleSize);
-//                    CropHelper.notificationAlbumRefresh(uri, context); // 通知相册刷新
-                } else {
-                    Log.d(TAG, "crop split Image, uri == null");
-                    result = new CropResult(resizeBitmap, bitmapSampled.sampleSize);
+                    BitmapPool.getInstance().put(resizeBitmap);
                 }
-                results.add(result);
+//                CropHelper.notificationAlbumRefresh(uri, context); // 通知相册刷新
+            } else {
+                CropLog.d(TAG, "crop window Image, uri == null");
+                return new CropResult(resizeBitmap, bitmapSampled.sampleSize);
             }
         }
-        return results;
     }
 
 // 图片预处理
@@ -0,0 +1,340 @@
+package com.cherry.cropper.handler;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.cherry.cropper.utils.CropLog;
+import com.cherry.cropper.utils.Enum;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 剪切结果的压缩/写入引擎
+ * 压缩到可以重用的 direct ByteBuffer 中, file:// 的 uri 通过 FileChannel 直接写入, 其它 uri 通过大缓冲区写入;
+ * 写入后是否 fsync 由 {@link Enum.SyncPolicy} 决定。压缩和写入都是线程安全的, 可以在多个线程中同时压缩。
+ */
+public final class CropImageWriter {
+
+    private static final String TAG = "OCR:" + CropImageWriter.class.getName();
+
+    /**
+     * 压缩缓冲区的初始大小, 一般的剪切框压缩后不会超过
+     */
+    private static final int INITIAL_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * 非文件 uri 写入时每次复制的大小
+     */
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * 缓存的压缩缓冲区的最大数量, 同时压缩的线程数不超过 CPU 核数
+     */
+    private static final int MAX_POOLED_BUFFERS = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static final ArrayDeque<EncodeBuffer> sBufferPool = new ArrayDeque<>();
+
+    private final Context mContext;
+    private final Bitmap.CompressFormat mCompressFormat;
+    private final int mCompressQuality;
+
+    /**
+     * 每个剪切框压缩后的字节上限, 0 表示不限制
+     */
+    private final int mMaxBytes;
+    private final Enum.SyncPolicy mSyncPolicy;
+
+    /**
+     * 等待批量 fsync 的 uri
+     */
+    private final List<Uri> mUnsyncedUris = new ArrayList<>();
+
+    public CropImageWriter(Context context, Bitmap.CompressFormat compressFormat, int compressQuality,
+                           Enum.SyncPolicy syncPolicy) {
+        this(context, compressFormat, compressQuality, 0, syncPolicy);
+    }
+
+    /**
+     * @param maxBytes 每个剪切框压缩后的字节上限, 大于 0 时由 {@link ByteBudgetEncoder} 查找压缩质量,
+     *                 compressQuality 是允许的最高质量
+     */
+    public CropImageWriter(Context context, Bitmap.CompressFormat compressFormat, int compressQuality,
+                           int maxBytes, Enum.SyncPolicy syncPolicy) {
+        mContext = context;
+        mCompressFormat = compressFormat;
+        mCompressQuality = compressQuality;
+        mMaxBytes = Math.max(0, maxBytes);
+        mSyncPolicy = syncPolicy != null ? syncPolicy : Enum.SyncPolicy.NONE;
+    }
+
+    /**
+     * 并行压缩时使用的线程数, 不超过 CPU 核数
+     */
+    public static int getMaxEncodeThreads(int maxThreads) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return maxThreads > 0 ? Math.max(1, Math.min(threads, maxThreads)) : threads;
+    }
+
+    /**
+     * 把位图压缩到可以重用的缓冲区中, 使用完之后必须调用 {@link EncodeBuffer#release()}。
+     */
+    public EncodeBuffer encode(Bitmap bitmap) throws IOException {
+        return encode(bitmap, null);
+    }
+
+    /**
+     * 压缩位图, 设置了字节上限时同一 contentType 的剪切框共享压缩质量的估计。
+     * 使用完之后必须调用 {@link EncodeBuffer#release()}。
+     */
+    public EncodeBuffer encode(Bitmap bitmap, String contentType) throws IOException {
+        return ByteBudgetEncoder.encode(bitmap, mCompressFormat, mCompressQuality, mMaxBytes,
+                contentType != null ? contentType : "default");
+    }
+
+    /**
+     * 按照给定的格式和质量压缩位图, 使用完之后必须调用 {@link EncodeBuffer#release()}。
+     */
+    public static EncodeBuffer encode(Bitmap bitmap, Bitmap.CompressFormat format, int quality) throws IOException {
+        EncodeBuffer buffer = EncodeBuffer.obtain();
+        try {
+            if (!bitmap.compress(format, quality, buffer)) {
+                throw new IOException("Failed to compress bitmap: " + format + " " + quality);
+            }
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 把压缩好的数据写入 uri, 不会修改 buffer 的内容。
+     */
+    public void write(EncodeBuffer buffer, Uri uri) throws IOException {
+        write(mContext, buffer.getData(), uri, mSyncPolicy == Enum.SyncPolicy.PER_FILE);
+        if (mSyncPolicy == Enum.SyncPolicy.PER_BATCH) {
+            synchronized (mUnsyncedUris) {
+                mUnsyncedUris.add(uri);
+            }
+        }
+    }
+
+    /**
+     * 压缩并写入, 在调用线程中完成
+     */
+    public void write(Bitmap bitmap, Uri uri, String contentType) throws IOException {
+        EncodeBuffer buffer = encode(bitmap, contentType);
+        try {
+            write(buffer, uri);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * 一批剪切框全部写入之后调用, {@link Enum.SyncPolicy#PER_BATCH} 时对写入的每个文件 fsync。
+     * fsync 失败只记录警告, 文件内容已经写入。
+     */
+    public void sync() {
+        List<Uri> uris;
+        synchronized (mUnsyncedUris) {
+            if (mUnsyncedUris.isEmpty()) {
+                return;
+            }
+            uris = new ArrayList<>(mUnsyncedUris);
+            mUnsyncedUris.clear();
+        }
+        for (Uri uri : uris) {
+            try {
+                syncUri(mContext, uri);
+            } catch (IOException e) {
+                CropLog.w(TAG, "Failed to sync " + uri, e);
+            }
+        }
+    }
+
+    /**
+     * 把 data 中 position 到 limit 之间的数据写入 uri, 不改变 data 的 position。
+     *
+     * @param sync 写入之后是否立即 fsync
+     */
+    static void write(Context context, ByteBuffer data, Uri uri, boolean sync) throws IOException {
+        ByteBuffer src = data.duplicate();
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            FileOutputStream out = new FileOutputStream(new File(uri.getPath()));
+            try {
+                writeFully(out.getChannel(), src, sync);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+        OutputStream out = context.getContentResolver().openOutputStream(uri);
+        if (out == null) {
+            throw new FileNotFoundException("Failed to open output stream: " + uri);
+        }
+        try {
+            if (out instanceof FileOutputStream) {
+                writeFully(((FileOutputStream) out).getChannel(), src, sync);
+            } else {
+                // 不是文件的 uri 只能通过流写入, 每次复制一大块
+                byte[] chunk = new byte[Math.min(WRITE_CHUNK_SIZE, Math.max(1, src.remaining()))];
+                while (src.hasRemaining()) {
+                    int length = Math.min(chunk.length, src.remaining());
+                    src.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+                out.flush();
+                if (sync) {
+                    syncUri(context, uri);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, boolean sync) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * 对 uri 对应的文件调用 fsync
+     */
+    private static void syncUri(Context context, Uri uri) throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            RandomAccessFile file = new RandomAccessFile(uri.getPath(), "rw");
+            try {
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+            return;
+        }
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException("Failed to open file descriptor: " + uri);
+        }
+        try {
+            descriptor.getFileDescriptor().sync();
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /**
+     * 压缩用的输出流, 数据保存在可以重用的 direct ByteBuffer 中, 空间不够时加倍。
+     */
+    public static final class EncodeBuffer extends OutputStream {
+
+        private ByteBuffer mBuffer;
+
+        private EncodeBuffer(int capacity) {
+            mBuffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        /**
+         * 从缓冲池中获取一个清空的缓冲区
+         */
+        static EncodeBuffer obtain() {
+            EncodeBuffer buffer;
+            synchronized (sBufferPool) {
+                buffer = sBufferPool.pollLast();
+            }
+            if (buffer == null) {
+                buffer = new EncodeBuffer(INITIAL_BUFFER_SIZE);
+            }
+            buffer.mBuffer.clear();
+            return buffer;
+        }
+
+        /**
+         * 放回缓冲池, 之后不能再使用该缓冲区和 {@link #getData()} 返回的数据
+         */
+        public void release() {
+            synchronized (sBufferPool) {
+                if (sBufferPool.size() < MAX_POOLED_BUFFERS && !sBufferPool.contains(this)) {
+                    sBufferPool.addLast(this);
+                }
+            }
+        }
+
+        /**
+         * 压缩后的数据, 只读, position 为 0, limit 为数据长度
+         */
+        public ByteBuffer getData() {
+            ByteBuffer data = mBuffer.duplicate();
+            data.flip();
+            return data.asReadOnlyBuffer();
+        }
+
+        /**
+         * 压缩后数据的字节数
+         */
+        public int size() {
+            return mBuffer.position();
+        }
+
+        /**
+         * 复制压缩后的数据
+         */
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[size()];
+            getData().get(bytes);
+            return bytes;
+        }
+
+        /**
+         * 清空已经写入的数据, 用于重新压缩
+         */
+        public void reset() {
+            mBuffer.clear();
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            mBuffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            mBuffer.put(b, off, len);
+        }
+
+        private void ensureCapacity(int length) {
+            if (mBuffer.remaining() >= length) {
+                return;
+            }
+            int capacity = mBuffer.capacity();
+            while (capacity - mBuffer.position() < length) {
+                capacity *= 2;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+            mBuffer.flip();
+            buffer.put(mBuffer);
+            mBuffer = buffer;
+        }
+    }
+}
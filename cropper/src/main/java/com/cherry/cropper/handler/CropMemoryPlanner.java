@@ -0,0 +1,246 @@
+package com.cherry.cropper.handler;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Point;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.cherry.cropper.utils.ContextBridge;
+import com.cherry.cropper.utils.CropLog;
+import com.cherry.cropper.utils.Enum;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 剪切的内存预算
+ * 在解码/剪切之前估算 解码 -> 剪切(同时旋转和调整大小) 整个过程需要的内存峰值, 与剩余内存(或者设置的预算)比较,
+ * 预先选择合适的 inSampleSize, 不再依靠捕获 OutOfMemoryError 后加倍重试。
+ * Android 8.0 以后位图的像素在 native 内存中, 不占用 Java 堆, 剩余内存从 {@link ActivityManager} 读取;
+ * 之前的版本像素在 Java 堆中, 使用剩余的堆内存。
+ */
+public final class CropMemoryPlanner {
+
+    private static final String TAG = "OCR:" + CropMemoryPlanner.class.getName();
+
+    /**
+     * 最大的 inSampleSize
+     */
+    private static final int MAX_SAMPLE_SIZE = 512;
+
+    /**
+     * 估算时每个像素的字节数(ARGB_8888)
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * 设置的内存预算, 0 表示使用剩余的内存
+     */
+    private static volatile long sMemoryBudget;
+
+    /**
+     * 系统剩余内存的查询是一次跨进程调用, 结果缓存这么长时间(毫秒)
+     */
+    private static final long SYSTEM_MEMORY_CACHE_MILLIS = 500;
+
+    private static final ActivityManager.MemoryInfo sMemoryInfo = new ActivityManager.MemoryInfo();
+    private static long sSystemAvailableBytes;
+    private static long sSystemAvailableTime;
+
+    /**
+     * 正在同时进行的剪切数量, 每个剪切框的预算是可用内存除以它
+     */
+    private static final AtomicInteger sConcurrentCrops = new AtomicInteger();
+
+    private CropMemoryPlanner() {
+    }
+
+    /**
+     * 设置剪切可以使用的内存(字节), 小于等于 0 时使用剩余的内存(见 {@link #getAvailableBytes()})。
+     * 多个剪切框同时剪切时(见 {@link #beginConcurrentCrops(int)}), 预算由它们平分。
+     */
+    public static void setMemoryBudget(long bytes) {
+        sMemoryBudget = Math.max(0, bytes);
+    }
+
+    public static long getMemoryBudget() {
+        return sMemoryBudget;
+    }
+
+    /**
+     * 记录应用的 Context, 用于查询系统的剩余内存。解码和剪切的入口会自动调用, 已经记录时忽略
+     */
+    public static void attach(Context context) {
+        if (context != null && ContextBridge.getApplicationContext() == null) {
+            ContextBridge.init(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * 剪切可以使用的内存: 设置的预算; Android 8.0 以后是系统进入低内存状态之前剩余内存的 3/4,
+     * 之前的版本(或者还没有 Context 时)是剩余堆内存的 3/4
+     */
+    public static long getAvailableBytes() {
+        long budget = sMemoryBudget;
+        if (budget > 0) {
+            return budget;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            long available = getSystemAvailableBytes();
+            if (available >= 0) {
+                return available / 4 * 3;
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (runtime.maxMemory() - used) / 4 * 3;
+    }
+
+    /**
+     * 系统进入低内存状态(开始杀进程)之前还可以使用的内存, 没有 Context 时返回 -1
+     */
+    private static long getSystemAvailableBytes() {
+        Context context = ContextBridge.getApplicationContext();
+        if (context == null) {
+            return -1;
+        }
+        synchronized (sMemoryInfo) {
+            long now = SystemClock.uptimeMillis();
+            if (sSystemAvailableTime == 0 || now - sSystemAvailableTime > SYSTEM_MEMORY_CACHE_MILLIS) {
+                ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+                if (manager == null) {
+                    return -1;
+                }
+                manager.getMemoryInfo(sMemoryInfo);
+                sSystemAvailableBytes = Math.max(0, sMemoryInfo.availMem - sMemoryInfo.threshold);
+                sSystemAvailableTime = now;
+            }
+            return sSystemAvailableBytes;
+        }
+    }
+
+    /**
+     * 开始并行剪切, 之后每个剪切框的预算是可用内存的 1/concurrency(与其它正在进行的并行剪切一起平分),
+     * 必须在 finally 中调用 {@link #endConcurrentCrops(int)}
+     *
+     * @param concurrency 同时剪切(或者同时持有剪切结果)的剪切框数量
+     */
+    public static void beginConcurrentCrops(int concurrency) {
+        sConcurrentCrops.addAndGet(Math.max(1, concurrency));
+    }
+
+    public static void endConcurrentCrops(int concurrency) {
+        sConcurrentCrops.addAndGet(-Math.max(1, concurrency));
+    }
+
+    /**
+     * 一个剪切框可以使用的内存
+     */
+    static long getCropAvailableBytes() {
+        return getAvailableBytes() / Math.max(1, sConcurrentCrops.get());
+    }
+
+    /**
+     * 计算完整解码给定尺寸的图片时不超过内存预算的 inSampleSize(2的幂)
+     *
+     * @param minSampleSize 根据请求的大小计算的 inSampleSize, 结果不会小于它
+     */
+    public static int planDecodeSampleSize(int width, int height, int minSampleSize) {
+        int sampleSize = normalize(minSampleSize);
+        long available = getAvailableBytes();
+        long bytes;
+        int retries = 0;
+        while ((bytes = scaledSize(width, sampleSize) * scaledSize(height, sampleSize) * BYTES_PER_PIXEL) > available
+                && sampleSize < MAX_SAMPLE_SIZE) {
+            sampleSize *= 2;
+            retries++;
+        }
+        checkPlan("decode", width, height, bytes, available, retries);
+        return sampleSize;
+    }
+
+    /**
+     * 计算剪切给定区域时不超过内存预算的 inSampleSize(2的幂)。
+     * 固定大小的输出(RESIZE_EXACT 等)与 inSampleSize 无关, 增大 inSampleSize 不能再减少内存时停止,
+     * 仍然超过预算时只记录警告。
+     *
+     * @param width         剪切区域在原图中的宽度
+     * @param height        剪切区域在原图中的高度
+     * @param decodeRegion  是否需要先从原图中解码该区域(原图已经在内存中时为 false)
+     * @param minSampleSize 根据请求的大小计算的 inSampleSize, 结果不会小于它
+     */
+    public static int planCropSampleSize(int width, int height, int reqWidth, int reqHeight,
+                                         Enum.RequestSizeOptions options, boolean decodeRegion, int minSampleSize) {
+        int sampleSize = normalize(minSampleSize);
+        long available = getCropAvailableBytes();
+        long bytes = estimateCropBytes(width, height, sampleSize, reqWidth, reqHeight, options, decodeRegion);
+        int retries = 0;
+        while (bytes > available && sampleSize < MAX_SAMPLE_SIZE) {
+            long next = estimateCropBytes(width, height, sampleSize * 2, reqWidth, reqHeight, options, decodeRegion);
+            if (next >= bytes) {
+                // 剩下的是与 inSampleSize 无关的输出, 再缩小只会让结果更模糊
+                break;
+            }
+            sampleSize *= 2;
+            bytes = next;
+            retries++;
+        }
+        checkPlan("crop", width, height, bytes, available, retries);
+        return sampleSize;
+    }
+
+    /**
+     * 估算剪切过程中的内存峰值。剪切、旋转和调整大小在一次绘制中完成, 只需要同时持有解码的区域和最终的结果。
+     * 最终的结果按照 {@link BitmapUtils#getResizedSize} 计算, RESIZE_FIT 是保持宽高比的大小,
+     * RESIZE_EXACT 是固定的请求大小。
+     */
+    static long estimateCropBytes(int width, int height, int sampleSize, int reqWidth, int reqHeight,
+                                  Enum.RequestSizeOptions options, boolean decodeRegion) {
+        long w = scaledSize(width, sampleSize);
+        long h = scaledSize(height, sampleSize);
+        long region = decodeRegion ? w * h * BYTES_PER_PIXEL : 0;
+
+        // 非直角旋转后剪切的结果不会超过区域的大小
+        long result = w * h * BYTES_PER_PIXEL;
+        Point resized = BitmapUtils.getResizedSize((int) w, (int) h, reqWidth, reqHeight, options);
+        if (resized != null) {
+            result = (long) resized.x * resized.y * BYTES_PER_PIXEL;
+        }
+        return region + result;
+    }
+
+    private static long scaledSize(int size, int sampleSize) {
+        return Math.max(1, (size + sampleSize - 1) / sampleSize);
+    }
+
+    /**
+     * 调整为不小于给定值的2的幂
+     */
+    private static int normalize(int sampleSize) {
+        int result = 1;
+        while (result < sampleSize && result < MAX_SAMPLE_SIZE) {
+            result *= 2;
+        }
+        return result;
+    }
+
+    /**
+     * 因为内存不够增大 inSampleSize 的次数记录到当前的剪切阶段中({@link CropMetrics}),
+     * 最大的 inSampleSize 也超过预算时只记录警告, 仍然尝试执行
+     */
+    private static void checkPlan(String what, int width, int height, long bytes, long available, int retries) {
+        if (retries > 0) {
+            if (CropLog.D && CropLog.isLoggable(CropLog.DEBUG)) {
+                CropLog.d(TAG, "Not enough memory to " + what + " " + width + "x" + height
+                        + ", sample size doubled " + retries + " times");
+            }
+            CropMetrics.addOomRetries(retries);
+        }
+        if (bytes > available) {
+            CropLog.w(TAG, "Not enough memory to " + what + " " + width + "x" + height
+                    + ", need: " + bytes + ", available: " + available);
+        }
+    }
+}
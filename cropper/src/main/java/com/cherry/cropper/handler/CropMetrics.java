@@ -0,0 +1,345 @@
+package com.cherry.cropper.handler;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.os.Trace;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 剪切流程每个阶段的耗时统计
+ * 解码、剪切、调整大小、压缩和写入分别记录耗时、分配的字节数、使用的 inSampleSize、
+ * 因为内存不够而降低分辨率的次数、改用其它方式解码的次数和写入的字节数。每个阶段同时用 {@link Trace} 标记, 可以在 systrace 中查看。
+ * 完成的阶段回调给 {@link CropMetricsListener}, 开始记录后还可以导出为 Chrome trace 格式的 JSON
+ * (chrome://tracing 或者 Perfetto 打开)。阶段可以嵌套, 每个线程分别记录。
+ */
+public final class CropMetrics {
+
+    public static final String STAGE_DECODE = "crop.decode";
+    public static final String STAGE_CROP = "crop.crop";
+    public static final String STAGE_RESIZE = "crop.resize";
+    public static final String STAGE_ENCODE = "crop.encode";
+    public static final String STAGE_WRITE = "crop.write";
+
+    /**
+     * 剪切之前分析页面, 例如自动拆题
+     */
+    public static final String STAGE_ANALYZE = "crop.analyze";
+
+    /**
+     * 最多保存的 trace 事件数量, 超过时丢弃最早的
+     */
+    private static final int MAX_TRACE_EVENTS = 10000;
+
+    private static final ThreadLocal<ArrayList<Stage>> sStages = new ThreadLocal<ArrayList<Stage>>() {
+        @Override
+        protected ArrayList<Stage> initialValue() {
+            return new ArrayList<>();
+        }
+    };
+
+    private static final ArrayDeque<Stage> sTraceEvents = new ArrayDeque<>();
+
+    private static volatile CropMetricsListener sListener;
+
+    private static volatile boolean sTracing;
+
+    private CropMetrics() {
+    }
+
+    public static void setListener(CropMetricsListener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * 开始记录 trace 事件, 之前记录的事件会被清空
+     */
+    public static void startTrace() {
+        synchronized (sTraceEvents) {
+            sTraceEvents.clear();
+        }
+        sTracing = true;
+    }
+
+    /**
+     * 停止记录 trace 事件, 已经记录的事件仍然可以导出
+     */
+    public static void stopTrace() {
+        sTracing = false;
+    }
+
+    public static boolean isTracing() {
+        return sTracing;
+    }
+
+    /**
+     * 开始一个阶段, 必须在 finally 中调用 {@link #end()}
+     *
+     * @param name 阶段的名称, 例如 {@link #STAGE_DECODE}
+     */
+    static void begin(String name) {
+        Trace.beginSection(name);
+        sStages.get().add(new Stage(name));
+    }
+
+    /**
+     * 结束当前线程最近开始的阶段
+     */
+    static void end() {
+        ArrayList<Stage> stages = sStages.get();
+        if (stages.isEmpty()) {
+            return;
+        }
+        Stage stage = stages.remove(stages.size() - 1);
+        stage.mDurationNanos = System.nanoTime() - stage.mStartNanos;
+        Trace.endSection();
+
+        if (sTracing) {
+            synchronized (sTraceEvents) {
+                if (sTraceEvents.size() == MAX_TRACE_EVENTS) {
+                    sTraceEvents.pollFirst();
+                }
+                sTraceEvents.addLast(stage);
+            }
+        }
+        CropMetricsListener listener = sListener;
+        if (listener != null) {
+            listener.onStageFinished(stage);
+        }
+    }
+
+    /**
+     * 当前阶段的说明, 例如剪切框的类型或者 uri
+     */
+    static void setDetail(String detail) {
+        Stage stage = current();
+        if (stage != null) {
+            stage.mDetail = detail;
+        }
+    }
+
+    static void setSampleSize(int sampleSize) {
+        Stage stage = current();
+        if (stage != null) {
+            stage.mSampleSize = sampleSize;
+        }
+    }
+
+    /**
+     * 记录当前阶段得到的位图占用的字节数, 重用位图池中的位图时也计算在内
+     */
+    static void addBytesAllocated(Bitmap bitmap) {
+        if (bitmap != null) {
+            addBytesAllocated(bitmap.getAllocationByteCount());
+        }
+    }
+
+    static void addBytesAllocated(long bytes) {
+        Stage stage = current();
+        if (stage != null) {
+            stage.mBytesAllocated += bytes;
+        }
+    }
+
+    /**
+     * 记录因为内存不够而降低分辨率的次数
+     */
+    static void addOomRetries(int retries) {
+        Stage stage = current();
+        if (stage != null) {
+            stage.mOomRetries += retries;
+        }
+    }
+
+    /**
+     * 记录改用其它方式解码的次数, 例如区域解码失败后完整解码原图, 与内存无关
+     */
+    static void addFallbacks(int fallbacks) {
+        Stage stage = current();
+        if (stage != null) {
+            stage.mFallbacks += fallbacks;
+        }
+    }
+
+    static void addBytesWritten(long bytes) {
+        Stage stage = current();
+        if (stage != null) {
+            stage.mBytesWritten += bytes;
+        }
+    }
+
+    private static Stage current() {
+        ArrayList<Stage> stages = sStages.get();
+        return stages.isEmpty() ? null : stages.get(stages.size() - 1);
+    }
+
+    /**
+     * 已经记录的 trace 事件
+     */
+    public static List<Stage> getTraceEvents() {
+        synchronized (sTraceEvents) {
+            return new ArrayList<>(sTraceEvents);
+        }
+    }
+
+    /**
+     * 把记录的事件导出为 Chrome trace 格式的 JSON
+     */
+    public static String exportChromeTrace() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeChromeTrace(writer);
+        } catch (IOException e) {
+            // StringWriter 不会抛出异常
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * 把记录的事件以 Chrome trace 格式写入 writer, 每个阶段是一个完整事件("ph":"X")
+     */
+    public static void writeChromeTrace(Writer writer) throws IOException {
+        List<Stage> events = getTraceEvents();
+        int pid = Process.myPid();
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        for (int i = 0; i < events.size(); i++) {
+            Stage stage = events.get(i);
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write("{\"name\":");
+            writer.write(JSONObject.quote(stage.mName));
+            writer.write(",\"cat\":\"crop\",\"ph\":\"X\",\"ts\":");
+            writer.write(Long.toString(stage.mStartNanos / 1000));
+            writer.write(",\"dur\":");
+            writer.write(Long.toString(stage.mDurationNanos / 1000));
+            writer.write(",\"pid\":");
+            writer.write(Integer.toString(pid));
+            writer.write(",\"tid\":");
+            writer.write(Integer.toString(stage.mThreadId));
+            writer.write(",\"args\":{\"bytesAllocated\":");
+            writer.write(Long.toString(stage.mBytesAllocated));
+            writer.write(",\"sampleSize\":");
+            writer.write(Integer.toString(stage.mSampleSize));
+            writer.write(",\"oomRetries\":");
+            writer.write(Integer.toString(stage.mOomRetries));
+            writer.write(",\"fallbacks\":");
+            writer.write(Integer.toString(stage.mFallbacks));
+            writer.write(",\"bytesWritten\":");
+            writer.write(Long.toString(stage.mBytesWritten));
+            if (stage.mDetail != null) {
+                writer.write(",\"detail\":");
+                writer.write(JSONObject.quote(stage.mDetail));
+            }
+            writer.write("}}");
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    /**
+     * 一个完成的阶段
+     */
+    public static final class Stage {
+
+        private final String mName;
+        private final int mThreadId;
+        private final String mThreadName;
+        private final long mStartNanos;
+        private long mDurationNanos;
+        private String mDetail;
+        private int mSampleSize;
+        private long mBytesAllocated;
+        private int mOomRetries;
+        private int mFallbacks;
+        private long mBytesWritten;
+
+        Stage(String name) {
+            mName = name;
+            mThreadId = Process.myTid();
+            mThreadName = Thread.currentThread().getName();
+            mStartNanos = System.nanoTime();
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getThreadId() {
+            return mThreadId;
+        }
+
+        public String getThreadName() {
+            return mThreadName;
+        }
+
+        /**
+         * 开始的时间, {@link System#nanoTime()}
+         */
+        public long getStartNanos() {
+            return mStartNanos;
+        }
+
+        public long getDurationNanos() {
+            return mDurationNanos;
+        }
+
+        public String getDetail() {
+            return mDetail;
+        }
+
+        /**
+         * 使用的 inSampleSize, 0 表示该阶段没有降低分辨率
+         */
+        public int getSampleSize() {
+            return mSampleSize;
+        }
+
+        public long getBytesAllocated() {
+            return mBytesAllocated;
+        }
+
+        /**
+         * 因为内存不够而降低分辨率的次数
+         */
+        public int getOomRetries() {
+            return mOomRetries;
+        }
+
+        /**
+         * 改用其它方式解码的次数
+         */
+        public int getFallbacks() {
+            return mFallbacks;
+        }
+
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return "Stage:{" +
+                    "name:" + mName + "," +
+                    "thread:" + mThreadName + "," +
+                    "duration:" + mDurationNanos / 1000 + "us," +
+                    "detail:" + mDetail + "," +
+                    "sampleSize:" + mSampleSize + "," +
+                    "bytesAllocated:" + mBytesAllocated + "," +
+                    "oomRetries:" + mOomRetries + "," +
+                    "fallbacks:" + mFallbacks + "," +
+                    "bytesWritten:" + mBytesWritten +
+                    "}";
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.cherry.cropper.handler;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 剪切流程每个阶段完成时的回调
+ * 通过 {@link CropMetrics#setListener(CropMetricsListener)} 设置。
+ */
+public interface CropMetricsListener {
+
+    /**
+     * 在执行该阶段的线程(一般是剪切线程)中回调, 不要在回调中做耗时的工作
+     */
+    void onStageFinished(CropMetrics.Stage stage);
+}
@@ -0,0 +1,138 @@
+package com.cherry.cropper.handler;
+
+import android.net.Uri;
+
+import com.cherry.cropper.utils.CropResult;
+import com.cherry.cropper.utils.SharedCropPayload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 剪切结果压缩后的输出位置
+ * 可以写入 uri(原来的方式), 保存在内存中的 ByteBuffer 里, 或者写入调用者提供的 OutputStream(例如上传请求的 body),
+ * 上传时不需要再从文件读取或者重新压缩位图。
+ */
+public abstract class CropOutputSink {
+
+    /**
+     * 非文件输出时每次复制的大小
+     */
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * 写入给定的 uri, 结果中的 {@link CropResult#getUri()} 是该 uri
+     */
+    public static CropOutputSink toUri(Uri uri) {
+        return new UriSink(uri);
+    }
+
+    /**
+     * 保存在内存中, 结果中的 {@link CropResult#getEncodedBytes()} 是压缩后的数据
+     */
+    public static CropOutputSink toByteBuffer() {
+        return new ByteBufferSink();
+    }
+
+    /**
+     * 写入调用者提供的输出流, 写完之后 flush, 不会关闭该输出流
+     */
+    public static CropOutputSink toOutputStream(OutputStream outputStream) {
+        return new OutputStreamSink(outputStream);
+    }
+
+    /**
+     * 保存在共享内存中, 结果可以直接通过 Parcel 传给其它进程, 见 {@link CropResult#getSharedPayload()}。
+     * 需要 API 27, 接收方和发送方用完之后都需要调用 {@link CropResult#release()}。
+     */
+    public static CropOutputSink toSharedMemory() {
+        return new SharedMemorySink();
+    }
+
+    /**
+     * 输出的 uri, 不是写入 uri 时返回 null。剪切失败时用于标识是哪个剪切框。
+     */
+    public Uri getUri() {
+        return null;
+    }
+
+    /**
+     * 写入一个剪切框压缩后的数据, encoded 在返回后会被重用, 需要保留时必须复制。
+     *
+     * @param writer     压缩/写入引擎, 提供写入 uri 的方式和持久化策略
+     * @param sampleSize 剪切时使用的 inSampleSize
+     * @return 该剪切框的结果
+     */
+    public abstract CropResult write(CropImageWriter writer, CropImageWriter.EncodeBuffer encoded, int sampleSize)
+            throws IOException;
+
+    private static final class UriSink extends CropOutputSink {
+
+        private final Uri mUri;
+
+        UriSink(Uri uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public Uri getUri() {
+            return mUri;
+        }
+
+        @Override
+        public CropResult write(CropImageWriter writer, CropImageWriter.EncodeBuffer encoded, int sampleSize)
+                throws IOException {
+            writer.write(encoded, mUri);
+            return new CropResult(mUri, sampleSize);
+        }
+    }
+
+    private static final class ByteBufferSink extends CropOutputSink {
+
+        @Override
+        public CropResult write(CropImageWriter writer, CropImageWriter.EncodeBuffer encoded, int sampleSize) {
+            // 压缩缓冲区会被重用, 复制一份刚好大小的数据
+            return new CropResult(ByteBuffer.wrap(encoded.toByteArray()), encoded.size(), sampleSize);
+        }
+    }
+
+    private static final class SharedMemorySink extends CropOutputSink {
+
+        @Override
+        public CropResult write(CropImageWriter writer, CropImageWriter.EncodeBuffer encoded, int sampleSize)
+                throws IOException {
+            // 直接从压缩缓冲区复制到共享内存, 不经过 Java 堆
+            return new CropResult(SharedCropPayload.fromEncoded(encoded.getData()), sampleSize);
+        }
+    }
+
+    private static final class OutputStreamSink extends CropOutputSink {
+
+        private final OutputStream mOutputStream;
+
+        OutputStreamSink(OutputStream outputStream) {
+            mOutputStream = outputStream;
+        }
+
+        @Override
+        public CropResult write(CropImageWriter writer, CropImageWriter.EncodeBuffer encoded, int sampleSize)
+                throws IOException {
+            ByteBuffer data = encoded.getData();
+            int size = data.remaining();
+            byte[] chunk = new byte[Math.min(COPY_CHUNK_SIZE, Math.max(1, size))];
+            // 多个剪切框可能写入同一个输出流, 一个剪切框的数据必须连续
+            synchronized (mOutputStream) {
+                while (data.hasRemaining()) {
+                    int length = Math.min(chunk.length, data.remaining());
+                    data.get(chunk, 0, length);
+                    mOutputStream.write(chunk, 0, length);
+                }
+                mOutputStream.flush();
+            }
+            return new CropResult((ByteBuffer) null, size, sampleSize);
+        }
+    }
+}
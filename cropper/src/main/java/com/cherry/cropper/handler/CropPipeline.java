@@ -0,0 +1,435 @@
+package com.cherry.cropper.handler;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import com.cherry.cropper.utils.CropLog;
+import com.cherry.cropper.utils.CropResult;
+import com.cherry.cropper.utils.Enum;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 分阶段的剪切流水线: 剪切(同时调整大小) -> 压缩 -> 写入
+ * 每个阶段在自己的线程中执行, 阶段之间通过有界队列传递, 压缩(CPU)和写入(磁盘)可以同时进行。
+ * 压缩阶段有多个线程(不超过 CPU 核数和位图数量), 压缩到可以重用的 direct 缓冲区, 由 {@link CropImageWriter} 写入。
+ * 同时存在的位图数量受 maxBitmapsInFlight 限制, 不管有多少个剪切框, 内存峰值都是有上限的。
+ */
+public final class CropPipeline {
+
+    private static final String TAG = "OCR:" + CropPipeline.class.getName();
+
+    /**
+     * 默认同时存在的位图数量
+     */
+    public static final int DEFAULT_MAX_BITMAPS_IN_FLIGHT = 3;
+
+    /**
+     * 阶段结束的标记
+     */
+    private static final Job END = new Job(-1, null, null);
+
+    private final Context mContext;
+    private final int mDegreesRotated;
+    private final boolean mFixAspectRatio;
+    private final int mAspectRatioX;
+    private final int mAspectRatioY;
+    private final int mReqWidth;
+    private final int mReqHeight;
+    private final Enum.RequestSizeOptions mOptions;
+    private final Bitmap.CompressFormat mCompressFormat;
+    private final int mCompressQuality;
+    private final int mMaxBytes;
+    private final Enum.SyncPolicy mSyncPolicy;
+
+    /**
+     * 同时存在的位图数量, 剪切之前获取, 压缩之后释放
+     */
+    private final int mMaxBitmapsInFlight;
+
+    public CropPipeline(Context context, int degreesRotated, boolean fixAspectRatio, int aspectRatioX,
+                        int aspectRatioY, int reqWidth, int reqHeight, Enum.RequestSizeOptions options,
+                        Bitmap.CompressFormat compressFormat, int compressQuality, int maxBitmapsInFlight) {
+        this(context, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight, options,
+                compressFormat, compressQuality, maxBitmapsInFlight, Enum.SyncPolicy.NONE);
+    }
+
+    /**
+     * @param syncPolicy 写入文件后的持久化策略
+     */
+    public CropPipeline(Context context, int degreesRotated, boolean fixAspectRatio, int aspectRatioX,
+                        int aspectRatioY, int reqWidth, int reqHeight, Enum.RequestSizeOptions options,
+                        Bitmap.CompressFormat compressFormat, int compressQuality, int maxBitmapsInFlight,
+                        Enum.SyncPolicy syncPolicy) {
+        this(context, degreesRotated, fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight, options,
+                compressFormat, compressQuality, 0, maxBitmapsInFlight, syncPolicy);
+    }
+
+    /**
+     * @param maxBytes   每个剪切框压缩后的字节上限, 0 表示按照 compressQuality 压缩
+     * @param syncPolicy 写入文件后的持久化策略
+     */
+    public CropPipeline(Context context, int degreesRotated, boolean fixAspectRatio, int aspectRatioX,
+                        int aspectRatioY, int reqWidth, int reqHeight, Enum.RequestSizeOptions options,
+                        Bitmap.CompressFormat compressFormat, int compressQuality, int maxBytes,
+                        int maxBitmapsInFlight, Enum.SyncPolicy syncPolicy) {
+        mContext = context;
+        mDegreesRotated = degreesRotated;
+        mFixAspectRatio = fixAspectRatio;
+        mAspectRatioX = aspectRatioX;
+        mAspectRatioY = aspectRatioY;
+        mReqWidth = reqWidth;
+        mReqHeight = reqHeight;
+        mOptions = options;
+        mCompressFormat = compressFormat;
+        mCompressQuality = compressQuality;
+        mMaxBytes = maxBytes;
+        mMaxBitmapsInFlight = Math.max(1, maxBitmapsInFlight);
+        mSyncPolicy = syncPolicy;
+    }
+
+    /**
+     * 从内存中的原图剪切全部的剪切框, 在调用线程上执行剪切阶段, 所有剪切框完成后返回。
+     * 结果的顺序和数量与 windows 一致, 失败的剪切框对应位置返回带有 error 的结果。
+     */
+    public ArrayList<CropResult> run(Bitmap bitmap, List<Window> windows) {
+        return run(bitmap, null, windows);
+    }
+
+    /**
+     * 通过剪切会话只解码每个剪切框所在的区域, 在调用线程上执行剪切阶段, 所有剪切框完成后返回。
+     */
+    public ArrayList<CropResult> run(CropRegionSession session, List<Window> windows) {
+        return run(null, session, windows);
+    }
+
+    private ArrayList<CropResult> run(final Bitmap bitmap, final CropRegionSession session, List<Window> windows) {
+        final Semaphore bitmapPermits = new Semaphore(mMaxBitmapsInFlight);
+        final BlockingQueue<Job> encodeQueue = new ArrayBlockingQueue<>(mMaxBitmapsInFlight);
+        final BlockingQueue<Job> writeQueue = new ArrayBlockingQueue<>(mMaxBitmapsInFlight);
+        final CropResult[] results = new CropResult[windows.size()];
+        final CropImageWriter writer = new CropImageWriter(mContext, mCompressFormat, mCompressQuality, mMaxBytes,
+                mSyncPolicy);
+
+        // 同时存在的位图数量已经限制了同时压缩的数量, 线程数不需要更多
+        int encodeThreads = CropImageWriter.getMaxEncodeThreads(mMaxBitmapsInFlight);
+        AtomicInteger runningEncoders = new AtomicInteger(encodeThreads);
+        Stage[] encoders = new Stage[encodeThreads];
+        for (int i = 0; i < encodeThreads; i++) {
+            encoders[i] = new Stage("CropPipeline-encode-" + i, encodeQueue, writeQueue, runningEncoders) {
+                @Override
+                void process(Job job) throws Exception {
+                    try {
+                        job.encoded = writer.encode(job.bitmap, job.window.getContentType());
+                    } finally {
+                        job.recycleBitmap();
+                    }
+                }
+            };
+        }
+        Stage write = new Stage("CropPipeline-write", writeQueue, null, null) {
+            @Override
+            void process(Job job) throws Exception {
+                try {
+                    job.result = job.window.sink.write(writer, job.encoded, job.sampleSize);
+                } finally {
+                    job.releaseEncoded();
+                }
+            }
+
+            @Override
+            void complete(Job job) {
+                results[job.index] = job.result;
+            }
+        };
+        for (Stage encoder : encoders) {
+            encoder.start();
+        }
+        write.start();
+
+        // 流水线中最多同时持有 mMaxBitmapsInFlight 个剪切结果, 每个剪切框的内存预算按照它平分
+        CropMemoryPlanner.beginConcurrentCrops(mMaxBitmapsInFlight);
+        try {
+            for (int i = 0; i < windows.size(); i++) {
+                Window window = windows.get(i);
+                Job job = new Job(i, window, bitmapPermits);
+                try {
+                    bitmapPermits.acquire();
+                    // 剪切、旋转和调整大小在一次绘制中完成, 结果就是最终的大小
+                    BitmapUtils.BitmapSampled bitmapSampled;
+                    if (session != null) {
+                        bitmapSampled = session.crop(window.points, mDegreesRotated, mFixAspectRatio,
+                                mAspectRatioX, mAspectRatioY, mReqWidth, mReqHeight, mOptions);
+                    } else {
+                        bitmapSampled = BitmapUtils.cropBitmapObjectHandleOOM(bitmap, window.points, mDegreesRotated,
+                                mFixAspectRatio, mAspectRatioX, mAspectRatioY, window.isEnclose, window.isSplit,
+                                mReqWidth, mReqHeight, mOptions);
+                    }
+                    if (bitmapSampled.bitmap == null || bitmap != null && bitmapSampled.bitmap == bitmap) {
+                        throw new IllegalStateException("Failed to crop window: " + window.uri);
+                    }
+                    job.sampleSize = bitmapSampled.sampleSize;
+                    if (window.sink != null) {
+                        job.bitmap = bitmapSampled.bitmap;
+                    } else {
+                        // 不需要保存的剪切框直接返回位图, 由调用者负责回收, 不再占用流水线的位图数量
+                        bitmapPermits.release();
+                        job.result = new CropResult(bitmapSampled.bitmap, job.sampleSize);
+                        job.done = true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    job.result = new CropResult(window.uri, e);
+                    job.done = true;
+                } catch (Throwable e) {
+                    bitmapPermits.release();
+                    job.result = new CropResult(window.uri, e instanceof Exception ? (Exception) e : new RuntimeException(e));
+                    job.done = true;
+                }
+                putUninterruptibly(encodeQueue, job);
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+            }
+        } finally {
+            // 每个压缩线程收到一个结束标记, 最后一个结束的压缩线程把结束标记传给写入阶段
+            for (int i = 0; i < encoders.length; i++) {
+                putUninterruptibly(encodeQueue, END);
+            }
+            for (Stage encoder : encoders) {
+                joinUninterruptibly(encoder);
+            }
+            joinUninterruptibly(write);
+            writer.sync();
+            CropMemoryPlanner.endConcurrentCrops(mMaxBitmapsInFlight);
+        }
+
+        // 结果与剪切框一一对应, 被中断后没有提交的剪切框也返回带有 error 的结果
+        ArrayList<CropResult> list = new ArrayList<>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            CropResult result = results[i];
+            if (result == null) {
+                Uri uri = windows.get(i).uri;
+                result = new CropResult(uri, new InterruptedException("Interrupted before cropping " + uri));
+            }
+            list.add(result);
+        }
+        return list;
+    }
+
+    /**
+     * 按照圈图在前, 拆题在后的顺序创建剪切框列表, 与 {@link CropImageTask} 返回结果的顺序一致。
+     */
+    public static List<Window> newWindows(List<Uri> splitUriList, List<Uri> enCloseUriList,
+                                          List<float[]> splitPoints, List<float[]> enClosePoints) {
+        List<Window> windows = new ArrayList<>();
+        if (enClosePoints != null && enCloseUriList != null) {
+            for (int i = 0; i < enClosePoints.size(); i++) {
+                windows.add(new Window(enClosePoints.get(i), enCloseUriList.get(i), true, false));
+            }
+        }
+        if (splitPoints != null && splitUriList != null) {
+            for (int i = 0; i < splitPoints.size(); i++) {
+                windows.add(new Window(splitPoints.get(i), splitUriList.get(i), false, true));
+            }
+        }
+        return windows;
+    }
+
+    private static void putUninterruptibly(BlockingQueue<Job> queue, Job job) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(job);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 需要剪切的一个剪切框
+     */
+    public static final class Window {
+
+        /**
+         * 剪切框在原图中的4个点
+         */
+        public final float[] points;
+
+        /**
+         * 剪切结果保存的 uri, 不是保存到 uri 时为 null
+         */
+        public final Uri uri;
+
+        /**
+         * 剪切结果的输出位置, 为 null 时返回位图
+         */
+        public final CropOutputSink sink;
+
+        public final boolean isEnclose;
+
+        public final boolean isSplit;
+
+        public Window(float[] points, Uri uri, boolean isEnclose, boolean isSplit) {
+            this(points, uri != null ? CropOutputSink.toUri(uri) : null, isEnclose, isSplit);
+        }
+
+        public Window(float[] points, CropOutputSink sink, boolean isEnclose, boolean isSplit) {
+            this.points = points;
+            this.sink = sink;
+            this.uri = sink != null ? sink.getUri() : null;
+            this.isEnclose = isEnclose;
+            this.isSplit = isSplit;
+        }
+
+        /**
+         * 剪切框的内容类型, 同一类型的剪切框共享压缩质量的估计
+         */
+        String getContentType() {
+            return CropImageTask.getContentType(isEnclose, isSplit);
+        }
+    }
+
+    /**
+     * 在阶段之间传递的剪切框及其中间结果
+     */
+    private static final class Job {
+
+        final int index;
+        final Window window;
+
+        /**
+         * 流水线中位图的数量, 持有位图期间占用一个
+         */
+        final Semaphore permits;
+        Bitmap bitmap;
+        int sampleSize = 1;
+        CropImageWriter.EncodeBuffer encoded;
+        CropResult result;
+
+        /**
+         * 已经完成(失败或者不需要后续的阶段), 后续的阶段直接传递
+         */
+        boolean done;
+
+        Job(int index, Window window, Semaphore permits) {
+            this.index = index;
+            this.window = window;
+            this.permits = permits;
+        }
+
+        /**
+         * 把位图放回位图池并释放占用的位图数量
+         */
+        void recycleBitmap() {
+            if (bitmap != null) {
+                BitmapPool.getInstance().put(bitmap);
+                bitmap = null;
+                permits.release();
+            }
+        }
+
+        /**
+         * 把压缩缓冲区放回缓冲池
+         */
+        void releaseEncoded() {
+            if (encoded != null) {
+                encoded.release();
+                encoded = null;
+            }
+        }
+    }
+
+    /**
+     * 流水线的一个阶段, 从输入队列中取出剪切框处理后放到输出队列中。
+     */
+    private abstract static class Stage extends Thread {
+
+        private final BlockingQueue<Job> mInput;
+        private final BlockingQueue<Job> mOutput;
+
+        /**
+         * 同一个阶段中还在运行的线程数, 为 null 时该阶段只有一个线程
+         */
+        private final AtomicInteger mRunningWorkers;
+
+        Stage(String name, BlockingQueue<Job> input, BlockingQueue<Job> output, AtomicInteger runningWorkers) {
+            super(name);
+            mInput = input;
+            mOutput = output;
+            mRunningWorkers = runningWorkers;
+        }
+
+        abstract void process(Job job) throws Exception;
+
+        /**
+         * 剪切框经过最后一个阶段之后调用
+         */
+        void complete(Job job) {
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                try {
+                    job = mInput.take();
+                } catch (InterruptedException e) {
+                    // 不能丢弃剪切框, 否则上一个阶段会一直阻塞
+                    continue;
+                }
+                if (job != END && !job.done) {
+                    try {
+                        process(job);
+                    } catch (Throwable e) {
+                        CropLog.w(TAG, getName() + " failed: " + job.window.uri, e);
+                        job.recycleBitmap();
+                        job.releaseEncoded();
+                        job.result = new CropResult(job.window.uri,
+                                e instanceof Exception ? (Exception) e : new RuntimeException(e));
+                        job.done = true;
+                    }
+                }
+                if (job == END) {
+                    if (mOutput != null && (mRunningWorkers == null || mRunningWorkers.decrementAndGet() == 0)) {
+                        putUninterruptibly(mOutput, END);
+                    }
+                    return;
+                }
+                if (mOutput != null) {
+                    putUninterruptibly(mOutput, job);
+                } else {
+                    complete(job);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.cherry.cropper.handler;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import com.cherry.cropper.utils.Enum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 一次解码多次剪切的会话
+ * 原图只读取一次(保存压缩后的数据), 每个剪切框只从原图中解码自己需要的区域,
+ * 不需要把整张原图解码到内存中。会话内部维护一个小的 {@link BitmapRegionDecoder} 池,
+ * 多个线程可以同时解码不同的区域。
+ */
+public final class CropRegionSession implements Closeable {
+
+    private final Uri mUri;
+
+    /**
+     * 原图压缩后的数据, 所有的区域解码器共享
+     */
+    private final byte[] mData;
+
+    /**
+     * 原图的宽度
+     */
+    private final int mWidth;
+
+    /**
+     * 原图的高度
+     */
+    private final int mHeight;
+
+    /**
+     * 空闲的区域解码器
+     */
+    private final BlockingQueue<BitmapRegionDecoder> mIdleDecoders;
+
+    /**
+     * 已经创建的全部区域解码器, 用于关闭会话时回收
+     */
+    private final List<BitmapRegionDecoder> mDecoders = new ArrayList<>();
+
+    /**
+     * 区域解码器的最大数量
+     */
+    private final int mMaxDecoders;
+
+    private boolean mClosed;
+
+    private CropRegionSession(Uri uri, byte[] data, int maxDecoders) throws IOException {
+        mUri = uri;
+        mData = data;
+        mMaxDecoders = Math.max(1, maxDecoders);
+        mIdleDecoders = new ArrayBlockingQueue<>(mMaxDecoders);
+        // 先创建一个解码器, 同时获取原图的尺寸
+        BitmapRegionDecoder decoder = newDecoder();
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mIdleDecoders.offer(decoder);
+    }
+
+    /**
+     * 打开给定 uri 的剪切会话, 原图只读取一次。
+     *
+     * @param maxDecoders 同时解码区域的最大数量, 一般等于剪切线程数
+     */
+    public static CropRegionSession open(Context context, Uri uri, int maxDecoders) throws IOException {
+        CropMemoryPlanner.attach(context);
+        InputStream stream = null;
+        try {
+            stream = context.getContentResolver().openInputStream(uri);
+            if (stream == null) {
+                throw new IOException("Failed to open input stream: " + uri);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(stream.available(), 64 * 1024));
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new CropRegionSession(uri, out.toByteArray(), maxDecoders);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 原图的宽度
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * 原图的高度
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * 剪切给定的4个点(原图坐标)所在的区域, 只解码该区域, 并按照 inSampleSize 降低分辨率。<br>
+     * 给定 reqWidth/reqHeight 且 options 不是 NONE 时, 根据请求的大小计算 inSampleSize,
+     * 返回的位图已经是按照 options 调整后的最终大小。
+     */
+    public BitmapUtils.BitmapSampled crop(float[] points, int degreesRotated, boolean fixAspectRatio,
+                                          int aspectRatioX, int aspectRatioY, int reqWidth, int reqHeight,
+                                          Enum.RequestSizeOptions options) {
+        CropMetrics.begin(CropMetrics.STAGE_CROP);
+        try {
+            Rect rect = BitmapUtils.getRectFromPoints(points, mWidth, mHeight, fixAspectRatio, aspectRatioX, aspectRatioY);
+            int sampleSize = 1;
+            if (reqWidth > 0 && reqHeight > 0 && options != Enum.RequestSizeOptions.NONE) {
+                sampleSize = BitmapUtils.calculateInSampleSizeByReqestedSize(rect.width(), rect.height(), reqWidth, reqHeight);
+            }
+            // 解码之前检查整个剪切过程需要的内存, 不够时增大 inSampleSize
+            sampleSize = CropMemoryPlanner.planCropSampleSize(rect.width(), rect.height(),
+                    reqWidth, reqHeight, options, true, sampleSize);
+            BitmapUtils.BitmapSampled region = decodeRegion(rect, sampleSize);
+            Bitmap result;
+            try {
+                // 区域已经是原图的一部分, 旋转、非直角旋转后的再次剪切和调整大小在一次绘制中完成
+                result = BitmapUtils.transformRegion(region.bitmap, points, rect, region.sampleSize, degreesRotated,
+                        fixAspectRatio, aspectRatioX, aspectRatioY, reqWidth, reqHeight, options);
+            } catch (OutOfMemoryError e) {
+                BitmapPool.getInstance().put(region.bitmap);
+                throw e;
+            }
+            CropMetrics.setSampleSize(region.sampleSize);
+            CropMetrics.addBytesAllocated(result);
+            return new BitmapUtils.BitmapSampled(result, region.sampleSize);
+        } finally {
+            CropMetrics.end();
+        }
+    }
+
+    /**
+     * 按照给定的 inSampleSize 从原图中解码给定的区域, inSampleSize 应该已经由 {@link CropMemoryPlanner} 检查过。
+     */
+    public BitmapUtils.BitmapSampled decodeRegion(Rect rect, int sampleSize) {
+        BitmapRegionDecoder decoder = acquire();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        CropMetrics.begin(CropMetrics.STAGE_DECODE);
+        try {
+            options.inSampleSize = sampleSize;
+            // 重用位图池中的位图, 避免每个剪切框都分配新的内存
+            BitmapUtils.setReusableRegionBitmap(options, rect);
+            Bitmap bitmap = decoder.decodeRegion(rect, options);
+            if (bitmap == null) {
+                throw new RuntimeException("Failed to decode region " + rect + ": " + mUri);
+            }
+            CropMetrics.setSampleSize(options.inSampleSize);
+            CropMetrics.addBytesAllocated(bitmap);
+            return new BitmapUtils.BitmapSampled(bitmap, options.inSampleSize);
+        } catch (RuntimeException | OutOfMemoryError e) {
+            BitmapUtils.releaseReusableBitmap(options);
+            throw e;
+        } finally {
+            release(decoder);
+            CropMetrics.end();
+        }
+    }
+
+    /**
+     * 关闭会话, 回收全部的区域解码器。正在解码的区域会在解码完成后回收。
+     */
+    @Override
+    public void close() {
+        synchronized (mDecoders) {
+            mClosed = true;
+            BitmapRegionDecoder decoder;
+            while ((decoder = mIdleDecoders.poll()) != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * 获取空闲的解码器, 没有空闲的且数量未达到上限时创建新的解码器, 否则等待其它线程释放。
+     */
+    private BitmapRegionDecoder acquire() {
+        BitmapRegionDecoder decoder = mIdleDecoders.poll();
+        if (decoder != null) {
+            return decoder;
+        }
+        synchronized (mDecoders) {
+            if (mClosed) {
+                throw new IllegalStateException("Crop region session is closed: " + mUri);
+            }
+            if (mDecoders.size() < mMaxDecoders) {
+                try {
+                    return newDecoder();
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to create region decoder: " + mUri + "\r\n" + e.getMessage(), e);
+                }
+            }
+        }
+        try {
+            return mIdleDecoders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for region decoder: " + mUri, e);
+        }
+    }
+
+    private void release(BitmapRegionDecoder decoder) {
+        synchronized (mDecoders) {
+            if (mClosed) {
+                decoder.recycle();
+            } else {
+                mIdleDecoders.offer(decoder);
+            }
+        }
+    }
+
+    private BitmapRegionDecoder newDecoder() throws IOException {
+        synchronized (mDecoders) {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(mData, 0, mData.length, false);
+            mDecoders.add(decoder);
+            return decoder;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.cherry.cropper.handler;
+
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 剪切框的均匀网格索引
+ * 把视图划分为固定大小的格子, 每个格子记录与它相交的剪切框的槽位。
+ * 点击测试和绘制时只需要检查手指或者可见区域附近格子里的剪切框, 不需要遍历全部剪切框。
+ * 只在 UI 线程中使用。
+ */
+final class CropWindowGrid {
+
+    /**
+     * 格子的边长(像素), 与一般的圈图剪切框大小相当
+     */
+    private static final float CELL_SIZE = 128;
+
+    private final SparseArray<Cell> mCells = new SparseArray<>();
+
+    /**
+     * 已经插入的格子的范围, 查询时超出的部分直接跳过
+     */
+    private int mMinCellX = Integer.MAX_VALUE;
+    private int mMinCellY = Integer.MAX_VALUE;
+    private int mMaxCellX = Integer.MIN_VALUE;
+    private int mMaxCellY = Integer.MIN_VALUE;
+
+    /**
+     * 查询结果, 没有排序
+     */
+    private int[] mResults = new int[16];
+    private int mResultCount;
+
+    /**
+     * 用于查询结果去重, 同一个剪切框可能出现在多个格子里
+     */
+    private int[] mStamps = new int[16];
+    private int mQueryStamp;
+
+    void clear() {
+        for (int i = 0; i < mCells.size(); i++) {
+            mCells.valueAt(i).size = 0;
+        }
+        mMinCellX = Integer.MAX_VALUE;
+        mMinCellY = Integer.MAX_VALUE;
+        mMaxCellX = Integer.MIN_VALUE;
+        mMaxCellY = Integer.MIN_VALUE;
+    }
+
+    /**
+     * 预先创建覆盖 [0, width] x [0, height] 的全部格子, 之后剪切框在其中移动到新的格子时不再分配对象。
+     * 视图之外的格子仍然在第一次使用时创建。
+     */
+    void preallocate(float width, float height) {
+        int right = cell(Math.max(0, width));
+        int bottom = cell(Math.max(0, height));
+        for (int cy = 0; cy <= bottom; cy++) {
+            for (int cx = 0; cx <= right; cx++) {
+                int key = key(cx, cy);
+                if (mCells.get(key) == null) {
+                    mCells.put(key, new Cell());
+                }
+            }
+        }
+    }
+
+    void insert(int index, float l, float t, float r, float b) {
+        int left = cell(Math.min(l, r));
+        int top = cell(Math.min(t, b));
+        int right = cell(Math.max(l, r));
+        int bottom = cell(Math.max(t, b));
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                int key = key(cx, cy);
+                Cell cell = mCells.get(key);
+                if (cell == null) {
+                    cell = new Cell();
+                    mCells.put(key, cell);
+                }
+                cell.add(index);
+            }
+        }
+        mMinCellX = Math.min(mMinCellX, left);
+        mMinCellY = Math.min(mMinCellY, top);
+        mMaxCellX = Math.max(mMaxCellX, right);
+        mMaxCellY = Math.max(mMaxCellY, bottom);
+    }
+
+    /**
+     * 删除剪切框, 坐标必须是插入时的位置
+     */
+    void remove(int index, float l, float t, float r, float b) {
+        int left = cell(Math.min(l, r));
+        int top = cell(Math.min(t, b));
+        int right = cell(Math.max(l, r));
+        int bottom = cell(Math.max(t, b));
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                Cell cell = mCells.get(key(cx, cy));
+                if (cell != null) {
+                    cell.remove(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * 查询与给定区域相交的格子里的剪切框(可能包含实际不相交的), 结果通过 {@link #getResult(int)} 获取
+     *
+     * @return 结果的数量
+     */
+    int query(float left, float top, float right, float bottom) {
+        mResultCount = 0;
+        int fromX = Math.max(cell(left), mMinCellX);
+        int fromY = Math.max(cell(top), mMinCellY);
+        int toX = Math.min(cell(right), mMaxCellX);
+        int toY = Math.min(cell(bottom), mMaxCellY);
+        if (fromX > toX || fromY > toY) {
+            return 0;
+        }
+        mQueryStamp++;
+        for (int cy = fromY; cy <= toY; cy++) {
+            for (int cx = fromX; cx <= toX; cx++) {
+                Cell cell = mCells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size; i++) {
+                    addResult(cell.items[i]);
+                }
+            }
+        }
+        return mResultCount;
+    }
+
+    int getResult(int i) {
+        return mResults[i];
+    }
+
+    private void addResult(int index) {
+        if (index >= mStamps.length) {
+            mStamps = Arrays.copyOf(mStamps, Math.max(index + 1, mStamps.length * 2));
+        }
+        if (mStamps[index] == mQueryStamp) {
+            return;
+        }
+        mStamps[index] = mQueryStamp;
+        if (mResultCount == mResults.length) {
+            mResults = Arrays.copyOf(mResults, mResults.length * 2);
+        }
+        mResults[mResultCount++] = index;
+    }
+
+    private static int cell(float coordinate) {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static int key(int cx, int cy) {
+        return ((cy & 0xffff) << 16) | (cx & 0xffff);
+    }
+
+    /**
+     * 一个格子里的剪切框槽位
+     */
+    private static final class Cell {
+
+        int[] items = new int[4];
+        int size;
+
+        void add(int index) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = index;
+        }
+
+        void remove(int index) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == index) {
+                    items[i] = items[--size];
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -12,12 +12,14 @@
 
 package com.cherry.cropper.handler;
 
+import android.graphics.Matrix;
 import android.graphics.RectF;
 
-import com.cherry.cropper.utils.SimpleLog;
+import com.cherry.cropper.utils.CropLog;
 import com.cherry.cropper.utils.Enum;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -25,6 +27,13 @@ import java.util.List;
  */
 public final class CropWindowHandler {
 
+    private static final String TAG = "OCR:" + CropWindowHandler.class.getName();
+
+    /**
+     * 剪切框数组的初始容量
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
     /**
      * 当前界面可操作的矩形
      */
@@ -35,10 +44,71 @@ public final class CropWindowHandler {
      */
     private final RectF mGetEdges = new RectF();
 
-    private final List<RectF> mEdgeList = new ArrayList<>();
     private final List<RectF> mGetEdgeList = new ArrayList<>();
 
-    private int curActiveIndex = 0;
+    /**
+     * 剪切框的坐标按照槽位保存在平行的数组中, 槽位在剪切框删除之前不变
+     */
+    private float[] mLefts = new float[INITIAL_CAPACITY];
+    private float[] mTops = new float[INITIAL_CAPACITY];
+    private float[] mRights = new float[INITIAL_CAPACITY];
+    private float[] mBottoms = new float[INITIAL_CAPACITY];
+
+    /**
+     * 每个槽位上剪切框的 id, 在剪切框的整个生命周期内不变
+     */
+    private int[] mIds = new int[INITIAL_CAPACITY];
+
+    /**
+     * 从下到上的顺序 -> 槽位, 最后一个是激活的剪切框
+     */
+    private int[] mOrder = new int[INITIAL_CAPACITY];
+
+    /**
+     * 槽位 -> 在 {@link #mOrder} 中的位置
+     */
+    private int[] mZ = new int[INITIAL_CAPACITY];
+
+    /**
+     * 删除的剪切框空出来的槽位
+     */
+    private int[] mFreeSlots = new int[INITIAL_CAPACITY];
+    private int mFreeCount;
+
+    /**
+     * 已经使用过的槽位数量
+     */
+    private int mSlotCount;
+
+    /**
+     * 剪切框的数量
+     */
+    private int mCount;
+
+    private int mNextId = 1;
+
+    /**
+     * 查询结果在 {@link #mOrder} 中的位置, 从下到上
+     */
+    private int[] mQueryResults = new int[INITIAL_CAPACITY];
+
+    private final RectF mTmpRect = new RectF();
+
+    /**
+     * 未激活的剪切框的版本, 未激活的剪切框增删、移动或者换了激活的剪切框时加 1。
+     * 只移动激活的剪切框时不变, 用于判断未激活剪切框的缓存是否还有效。
+     */
+    private int mInactiveVersion;
+
+    /**
+     * 剪切框的网格索引, 按照槽位记录, 用于点击测试和绘制时的裁剪
+     */
+    private final CropWindowGrid mGrid = new CropWindowGrid();
+
+    /**
+     * 剪切框整体移动之后需要重建网格索引
+     */
+    private boolean mGridDirty = true;
 
     /**
      * 裁剪窗口可以获得的最小宽度(以像素为单位)。
@@ -104,31 +174,156 @@ public final class CropWindowHandler {
     }
 
     public void setInitRect(RectF rectF) {
-        SimpleLog.i("CropWindowHandler", "set primitive Rect: " + rectF);
+        CropLog.d(TAG, "set primitive Rect: %s", rectF);
         mEdges.set(rectF);
     }
 
+    /**
+     * 未激活的剪切框的版本, 见 {@link #mInactiveVersion}
+     */
+    public int getInactiveVersion() {
+        return mInactiveVersion;
+    }
+
+    /**
+     * 剪切框的数量
+     */
+    public int getRectCount() {
+        return mCount;
+    }
+
+    /**
+     * 第 z 个(从下到上)剪切框的左边界, z 为 {@link #getRectCount()} - 1 时是激活的剪切框
+     */
+    public float getLeft(int z) {
+        return mLefts[mOrder[z]];
+    }
+
+    public float getTop(int z) {
+        return mTops[mOrder[z]];
+    }
+
+    public float getRight(int z) {
+        return mRights[mOrder[z]];
+    }
+
+    public float getBottom(int z) {
+        return mBottoms[mOrder[z]];
+    }
+
+    /**
+     * 第 z 个剪切框的 id, 剪切框调整顺序时不变
+     */
+    public int getWindowId(int z) {
+        return mIds[mOrder[z]];
+    }
+
+    /**
+     * id 对应的剪切框当前的顺序, 剪切框已经删除时返回 -1
+     */
+    public int indexOfWindowId(int id) {
+        for (int z = 0; z < mCount; z++) {
+            if (mIds[mOrder[z]] == id) {
+                return z;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 复制第 z 个剪切框到 out 中
+     */
+    public RectF getRectAt(int z, RectF out) {
+        int slot = mOrder[z];
+        out.set(mLefts[slot], mTops[slot], mRights[slot], mBottoms[slot]);
+        return out;
+    }
+
+    /**
+     * 视图的大小变化时调用, 预先创建覆盖视图的网格, 拖动剪切框时不再分配对象
+     */
+    public void setViewSize(int width, int height) {
+        mGrid.preallocate(width, height);
+    }
+
+    /**
+     * 查询与给定区域相交的剪切框, 结果按照从下到上的顺序, 通过 {@link #getQueryResult(int)} 获取顺序。
+     * 结果可能包含实际不相交的剪切框, 只用于减少需要检查的数量。
+     *
+     * @return 结果的数量
+     */
+    public int queryRects(float left, float top, float right, float bottom) {
+        ensureGrid();
+        int count = mGrid.query(left, top, right, bottom);
+        if (count > mQueryResults.length) {
+            mQueryResults = new int[Math.max(count, mQueryResults.length * 2)];
+        }
+        for (int i = 0; i < count; i++) {
+            mQueryResults[i] = mZ[mGrid.getResult(i)];
+        }
+        Arrays.sort(mQueryResults, 0, count);
+        return count;
+    }
+
+    /**
+     * 最近一次 {@link #queryRects(float, float, float, float)} 的第 i 个结果, 是剪切框的顺序
+     */
+    public int getQueryResult(int i) {
+        return mQueryResults[i];
+    }
+
+    private void ensureGrid() {
+        if (mGridDirty) {
+            mGrid.clear();
+            for (int z = 0; z < mCount; z++) {
+                int slot = mOrder[z];
+                mGrid.insert(slot, mLefts[slot], mTops[slot], mRights[slot], mBottoms[slot]);
+            }
+            mGridDirty = false;
+        }
+    }
+
+    /**
+     * 全部剪切框的副本, 从下到上。每次调用都会创建新的矩形, 绘制和触摸时使用 {@link #getRectAt(int, RectF)}
+     */
     public List<RectF> getRects() {
         mGetEdgeList.clear();
-        for(RectF rect : mEdgeList){
-            RectF tmp = new RectF();
-            tmp.set(rect);
-            mGetEdgeList.add(tmp);
+        for (int z = 0; z < mCount; z++) {
+            mGetEdgeList.add(getRectAt(z, new RectF()));
         }
         return mGetEdgeList;
     }
 
     /**
-     * 添加新的裁剪窗口
-     * @param rect
+     * 添加新的裁剪窗口, 新的剪切框成为激活的剪切框
+     *
+     * @return 新剪切框的 id
      */
-    public void addRect(RectF rect) {
-        SimpleLog.i("CropWindowHandler", "addRect:"+rect);
-        RectF tmp = new RectF();
-        tmp.set(rect);
-        mEdgeList.add(tmp);
+    public int addRect(RectF rect) {
+        CropLog.d(TAG, "addRect: %s", rect);
+        int slot;
+        if (mFreeCount > 0) {
+            slot = mFreeSlots[--mFreeCount];
+        } else {
+            if (mSlotCount == mLefts.length) {
+                grow(mSlotCount * 2);
+            }
+            slot = mSlotCount++;
+        }
+        mLefts[slot] = rect.left;
+        mTops[slot] = rect.top;
+        mRights[slot] = rect.right;
+        mBottoms[slot] = rect.bottom;
+        mIds[slot] = mNextId++;
+        mOrder[mCount] = slot;
+        mZ[slot] = mCount;
+        mCount++;
         mEdges.set(rect);
-        curActiveIndex = mEdgeList.size() - 1;
+        mInactiveVersion++;
+        if (!mGridDirty) {
+            mGrid.insert(slot, rect.left, rect.top, rect.right, rect.bottom);
+        }
+        return mIds[slot];
     }
 
     /**
@@ -136,16 +331,125 @@ public final class CropWindowHandler {
      */
     public void setRect(RectF rect) {
         mEdges.set(rect);
-        if(mEdgeList.size() > curActiveIndex) {
-            mEdgeList.get(curActiveIndex).set(rect);
+        if (mCount > 0) {
+            int slot = mOrder[mCount - 1];
+            if (!mGridDirty) {
+                // 只有激活的剪切框移动, 在网格中更新它的位置
+                mGrid.remove(slot, mLefts[slot], mTops[slot], mRights[slot], mBottoms[slot]);
+                mGrid.insert(slot, rect.left, rect.top, rect.right, rect.bottom);
+            }
+            mLefts[slot] = rect.left;
+            mTops[slot] = rect.top;
+            mRights[slot] = rect.right;
+            mBottoms[slot] = rect.bottom;
+        }
+    }
+
+    /**
+     * 设置第 z 个剪切框的位置, 顺序和激活状态不变
+     */
+    public void setRectAt(int z, RectF rect) {
+        if (z < 0 || z >= mCount) {
+            return;
+        }
+        if (z == mCount - 1) {
+            setRect(rect);
+            return;
+        }
+        int slot = mOrder[z];
+        if (!mGridDirty) {
+            mGrid.remove(slot, mLefts[slot], mTops[slot], mRights[slot], mBottoms[slot]);
+            mGrid.insert(slot, rect.left, rect.top, rect.right, rect.bottom);
         }
-        SimpleLog.i("CropWindowHandler", "mEdgeList.size(): "+mEdgeList.size()+" rect: "+rect);
+        mLefts[slot] = rect.left;
+        mTops[slot] = rect.top;
+        mRights[slot] = rect.right;
+        mBottoms[slot] = rect.bottom;
+        mInactiveVersion++;
+    }
+
+    /**
+     * 把第 z 个剪切框调整到最上方, 成为激活的剪切框。其它剪切框的相对顺序不变。
+     */
+    public void activate(int z) {
+        int last = mCount - 1;
+        if (z < 0 || z >= last) {
+            return;
+        }
+        int slot = mOrder[z];
+        System.arraycopy(mOrder, z + 1, mOrder, z, last - z);
+        mOrder[last] = slot;
+        updateZ(z);
+        mEdges.set(mLefts[slot], mTops[slot], mRights[slot], mBottoms[slot]);
+        mInactiveVersion++;
+    }
+
+    /**
+     * 删除第 z 个剪切框, 最上方的剪切框成为激活的剪切框
+     */
+    public void remove(int z) {
+        if (z < 0 || z >= mCount) {
+            return;
+        }
+        int slot = mOrder[z];
+        if (!mGridDirty) {
+            mGrid.remove(slot, mLefts[slot], mTops[slot], mRights[slot], mBottoms[slot]);
+        }
+        System.arraycopy(mOrder, z + 1, mOrder, z, mCount - 1 - z);
+        mCount--;
+        updateZ(z);
+        mFreeSlots[mFreeCount++] = slot;
+        if (mCount > 0) {
+            int active = mOrder[mCount - 1];
+            mEdges.set(mLefts[active], mTops[active], mRights[active], mBottoms[active]);
+        } else {
+            mEdges.setEmpty();
+        }
+        mInactiveVersion++;
+    }
+
+    /**
+     * 用给定的矩阵变换全部剪切框, 例如显示的图片换成了另一个分辨率
+     */
+    public void mapRects(Matrix matrix) {
+        for (int z = 0; z < mCount; z++) {
+            int slot = mOrder[z];
+            mTmpRect.set(mLefts[slot], mTops[slot], mRights[slot], mBottoms[slot]);
+            matrix.mapRect(mTmpRect);
+            mLefts[slot] = mTmpRect.left;
+            mTops[slot] = mTmpRect.top;
+            mRights[slot] = mTmpRect.right;
+            mBottoms[slot] = mTmpRect.bottom;
+        }
+        matrix.mapRect(mEdges);
+        mInactiveVersion++;
+        mGridDirty = true;
     }
 
     public void clearRects() {
-        mEdgeList.clear();
-        curActiveIndex = 0;
-        mEdges.set(new RectF(0,0,0,0));
+        mCount = 0;
+        mSlotCount = 0;
+        mFreeCount = 0;
+        mEdges.setEmpty();
+        mInactiveVersion++;
+        mGridDirty = true;
+    }
+
+    private void updateZ(int from) {
+        for (int z = from; z < mCount; z++) {
+            mZ[mOrder[z]] = z;
+        }
+    }
+
+    private void grow(int capacity) {
+        mLefts = Arrays.copyOf(mLefts, capacity);
+        mTops = Arrays.copyOf(mTops, capacity);
+        mRights = Arrays.copyOf(mRights, capacity);
+        mBottoms = Arrays.copyOf(mBottoms, capacity);
+        mIds = Arrays.copyOf(mIds, capacity);
+        mOrder = Arrays.copyOf(mOrder, capacity);
+        mZ = Arrays.copyOf(mZ, capacity);
+        mFreeSlots = Arrays.copyOf(mFreeSlots, capacity);
     }
 
     /**
@@ -235,8 +539,20 @@ public final class CropWindowHandler {
      * @return the Handle that was pressed; null if no Handle was pressed
      */
     public CropWindowMoveHandler getMoveHandler(float x, float y, float targetRadius, Enum.CropShape cropShape, CropWindowMoveHandler.Type delPosi) {
+        return getMoveHandler(x, y, targetRadius, cropShape, delPosi, null);
+    }
+
+    /**
+     * 与 {@link #getMoveHandler(float, float, float, Enum.CropShape, CropWindowMoveHandler.Type)} 相同,
+     * reuse 不为 null 时重用该对象, 不创建新的对象
+     */
+    public CropWindowMoveHandler getMoveHandler(float x, float y, float targetRadius, Enum.CropShape cropShape,
+                                                CropWindowMoveHandler.Type delPosi, CropWindowMoveHandler reuse) {
         CropWindowMoveHandler.Type type = cropShape == Enum.CropShape.OVAL ? getOvalPressedMoveType(x, y) : getRectanglePressedMoveType(x, y, targetRadius, delPosi);
-        return type != null ? new CropWindowMoveHandler(type, this, x, y) : null;
+        if (type == null) {
+            return null;
+        }
+        return reuse != null ? reuse.reset(type, this, x, y) : new CropWindowMoveHandler(type, this, x, y);
     }
 
     //region: Private methods
@@ -282,53 +598,47 @@ public final class CropWindowHandler {
     private CropWindowMoveHandler.Type getRectanglePressedMoveType(float x, float y, float targetRadius, CropWindowMoveHandler.Type delPosi) {
         CropWindowMoveHandler.Type moveType = null;
 
-        List<RectF> rectFs = getRects();
-        for(int i=rectFs.size()-1; i>=0; i--){
+        // 只检查手指附近的剪切框, 从上到下
+        int count = queryRects(x - targetRadius, y - targetRadius, x + targetRadius, y + targetRadius);
+        for(int n=count-1; n>=0; n--){
 
-            RectF rect = rectFs.get(i);
+            int z = getQueryResult(n);
+            int slot = mOrder[z];
+            float left = mLefts[slot];
+            float top = mTops[slot];
+            float right = mRights[slot];
+            float bottom = mBottoms[slot];
 
             // 手指触摸剪切框时, 首先是角获取焦点, 其次是边, 其次是剪切框内部
-            if (CropWindowHandler.isInCornerTargetZone(x, y, rect.left, rect.top, targetRadius)) {
+            if (CropWindowHandler.isInCornerTargetZone(x, y, left, top, targetRadius)) {
                 moveType = CropWindowMoveHandler.Type.TOP_LEFT;
-            } else if (CropWindowHandler.isInCornerTargetZone(x, y, rect.right, rect.top, targetRadius)) {
+            } else if (CropWindowHandler.isInCornerTargetZone(x, y, right, top, targetRadius)) {
                 moveType = CropWindowMoveHandler.Type.TOP_RIGHT;
-            } else if (CropWindowHandler.isInCornerTargetZone(x, y, rect.left, rect.bottom, targetRadius)) {
+            } else if (CropWindowHandler.isInCornerTargetZone(x, y, left, bottom, targetRadius)) {
                 moveType = CropWindowMoveHandler.Type.BOTTOM_LEFT;
-            } else if (CropWindowHandler.isInCornerTargetZone(x, y, rect.right, rect.bottom, targetRadius)) {
+            } else if (CropWindowHandler.isInCornerTargetZone(x, y, right, bottom, targetRadius)) {
                 moveType = CropWindowMoveHandler.Type.BOTTOM_RIGHT;
-            } else if (CropWindowHandler.isInCenterTargetZone(x, y, rect.left, rect.top, rect.right, rect.bottom) && focusCenter()) {
+            } else if (CropWindowHandler.isInCenterTargetZone(x, y, left, top, right, bottom) && focusCenter()) {
                 moveType = CropWindowMoveHandler.Type.CENTER;
-            } else if (CropWindowHandler.isInHorizontalTargetZone(x, y, rect.left, rect.right, rect.top, targetRadius)) {
+            } else if (CropWindowHandler.isInHorizontalTargetZone(x, y, left, right, top, targetRadius)) {
                 moveType = CropWindowMoveHandler.Type.TOP;
-            } else if (CropWindowHandler.isInHorizontalTargetZone(x, y, rect.left, rect.right, rect.bottom, targetRadius)) {
+            } else if (CropWindowHandler.isInHorizontalTargetZone(x, y, left, right, bottom, targetRadius)) {
                 moveType = CropWindowMoveHandler.Type.BOTTOM;
-            } else if (CropWindowHandler.isInVerticalTargetZone(x, y, rect.left, rect.top, rect.bottom, targetRadius)) {
+            } else if (CropWindowHandler.isInVerticalTargetZone(x, y, left, top, bottom, targetRadius)) {
                 moveType = CropWindowMoveHandler.Type.LEFT;
-            } else if (CropWindowHandler.isInVerticalTargetZone(x, y, rect.right, rect.top, rect.bottom, targetRadius)) {
+            } else if (CropWindowHandler.isInVerticalTargetZone(x, y, right, top, bottom, targetRadius)) {
                 moveType = CropWindowMoveHandler.Type.RIGHT;
-            } else if (CropWindowHandler.isInCenterTargetZone(x, y, rect.left, rect.top, rect.right, rect.bottom) && !focusCenter()) {
+            } else if (CropWindowHandler.isInCenterTargetZone(x, y, left, top, right, bottom) && !focusCenter()) {
                 moveType = CropWindowMoveHandler.Type.CENTER;
             }
 
             if(moveType != null){
-                if(curActiveIndex != i){
-                    mEdges.set(rect);
-                    // 将激活状态的剪切框调整到列表的最上方，保证优先遍历到。
-                    mEdgeList.add(rect);
-                    mEdgeList.remove(i);
-                    curActiveIndex = mEdgeList.size()-1;
-                }else {
-                    if(moveType == delPosi){
-                        moveType = CropWindowMoveHandler.Type.DELETE;
-                        mEdgeList.remove(curActiveIndex);
-                        if(mEdgeList.size() > 0){
-                            curActiveIndex = mEdgeList.size()-1;
-                            mEdges.set(rectFs.get(curActiveIndex));
-                        }else{
-                            curActiveIndex = 0;
-                            mEdges.set(new RectF(0,0,0,0));
-                        }
-                    }
+                if(z != mCount - 1){
+                    // 将激活状态的剪切框调整到最上方，保证优先遍历到。
+                    activate(z);
+                }else if(moveType == delPosi){
+                    moveType = CropWindowMoveHandler.Type.DELETE;
+                    remove(z);
                 }
                 break;
             }
@@ -12,7 +12,6 @@
 
 package com.cherry.cropper.handler;
 
-import android.graphics.Matrix;
 import android.graphics.PointF;
 import android.graphics.RectF;
 
@@ -24,35 +23,30 @@ public final class CropWindowMoveHandler {
 
     //region: Fields and Consts
 
-    /**
-     * 用于矩形旋转处理的 Matrix
-     */
-    private static final Matrix MATRIX = new Matrix();
-
     /**
      * 裁剪窗口可以获得的最小宽度(以像素为单位
      */
-    private final float mMinCropWidth;
+    private float mMinCropWidth;
 
     /**
      * 裁剪窗口可以获得的最小宽度(以像素为单位)。
      */
-    private final float mMinCropHeight;
+    private float mMinCropHeight;
 
     /**
      * 裁剪窗口可以获得的最大像素宽度。
      */
-    private final float mMaxCropWidth;
+    private float mMaxCropWidth;
 
     /**
      * 裁剪窗口可以获得的最大像素高度。
      */
-    private final float mMaxCropHeight;
+    private float mMaxCropHeight;
 
     /**
      * The type of crop window move that is handled.
      */
-    private final Type mType;
+    private Type mType;
 
     /**
      * Holds the x and y offset between the exact touch location and the exact handle location that is activated.
@@ -72,12 +66,20 @@ public final class CropWindowMoveHandler {
      * @param touchY the location of the initial toch possition to measure move distance
      */
     public CropWindowMoveHandler(Type type, CropWindowHandler cropWindowHandler, float touchX, float touchY) {
+        reset(type, cropWindowHandler, touchX, touchY);
+    }
+
+    /**
+     * 重新初始化, 用于每次按下时重用同一个对象, 参数与构造函数相同
+     */
+    public CropWindowMoveHandler reset(Type type, CropWindowHandler cropWindowHandler, float touchX, float touchY) {
         mType = type;
         mMinCropWidth = cropWindowHandler.getMinCropWidth();
         mMinCropHeight = cropWindowHandler.getMinCropHeight();
         mMaxCropWidth = cropWindowHandler.getMaxCropWidth();
         mMaxCropHeight = cropWindowHandler.getMaxCropHeight();
         calculateTouchOffset(cropWindowHandler.getRect(), touchX, touchY);
+        return this;
     }
 
     /**
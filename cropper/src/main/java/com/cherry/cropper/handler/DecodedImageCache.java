@@ -0,0 +1,234 @@
+package com.cherry.cropper.handler;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 解码后的图片缓存
+ * 按照 uri + 最后修改时间 + inSampleSize 缓存解码后的位图, 超过字节上限时按照 LRU 移除。
+ * 同一个 key 同时只解码一次, 其它线程等待该次解码的结果(single-flight), CropImageView 和 CropImageTask 可以共享解码后的像素。
+ * 缓存中的位图是共享的, 使用者不能修改、回收或者放入 {@link BitmapPool}。
+ */
+public final class DecodedImageCache {
+
+    private static final DecodedImageCache INSTANCE = new DecodedImageCache(defaultMaxBytes());
+
+    private final LruCache<Key, BitmapUtils.BitmapSampled> mCache;
+
+    /**
+     * 正在解码的 key, 同一个 key 的请求等待同一个任务
+     */
+    private final ConcurrentHashMap<Key, FutureTask<BitmapUtils.BitmapSampled>> mInFlight = new ConcurrentHashMap<>();
+
+    public DecodedImageCache(int maxBytes) {
+        mCache = new LruCache<Key, BitmapUtils.BitmapSampled>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, BitmapUtils.BitmapSampled value) {
+                // 移除时不回收位图, 位图可能还在显示或者剪切
+                return value.bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * 库内共享的解码缓存
+     */
+    public static DecodedImageCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 与 {@link BitmapUtils#decodeSampledBitmap(Context, Uri, int, int)} 相同, 相同的 uri 和 inSampleSize 只解码一次。
+     */
+    public BitmapUtils.BitmapSampled getSampledBitmap(final Context context, final Uri uri, int reqWidth, int reqHeight) {
+        final BitmapFactory.Options options;
+        try {
+            options = BitmapUtils.decodeBoundsForSampling(context, uri, reqWidth, reqHeight);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load sampled bitmap: " + uri + "\r\n" + e.getMessage(), e);
+        }
+        // 内存预算可能会增大 inSampleSize, key 必须是实际解码使用的值
+        options.inSampleSize = CropMemoryPlanner.planDecodeSampleSize(options.outWidth, options.outHeight,
+                options.inSampleSize);
+        return get(context, uri, options.inSampleSize, new Callable<BitmapUtils.BitmapSampled>() {
+            @Override
+            public BitmapUtils.BitmapSampled call() {
+                return BitmapUtils.decodeSampledBitmap(context, uri, options);
+            }
+        });
+    }
+
+    /**
+     * 按照给定的 inSampleSize 完整解码图片, 相同的 uri 和 inSampleSize 只解码一次。
+     */
+    public BitmapUtils.BitmapSampled getBitmap(final Context context, final Uri uri, final int sampleSize) {
+        return get(context, uri, sampleSize, new Callable<BitmapUtils.BitmapSampled>() {
+            @Override
+            public BitmapUtils.BitmapSampled call() {
+                return BitmapUtils.decodeBitmap(context, uri, sampleSize);
+            }
+        });
+    }
+
+    /**
+     * 获取已经缓存的位图, 不解码。没有缓存时返回 null。
+     */
+    public BitmapUtils.BitmapSampled peek(Context context, Uri uri, int sampleSize) {
+        long lastModified = getLastModified(context, uri);
+        if (lastModified <= 0) {
+            return null;
+        }
+        return getValid(new Key(uri, lastModified, sampleSize));
+    }
+
+    /**
+     * 移除给定 uri 的全部缓存, 例如重新拍照覆盖了同一个文件之后
+     */
+    public void invalidate(Uri uri) {
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.uri.equals(uri)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    @Override
+    public String toString() {
+        return "DecodedImageCache:" + mCache.toString();
+    }
+
+    private BitmapUtils.BitmapSampled get(Context context, Uri uri, int sampleSize,
+                                          Callable<BitmapUtils.BitmapSampled> decoder) {
+        long lastModified = getLastModified(context, uri);
+        // 不知道最后修改时间的 uri 不缓存, 否则内容变化后会返回旧的图片, 只合并同时进行的解码
+        final Key key = new Key(uri, lastModified, sampleSize);
+        if (lastModified > 0) {
+            BitmapUtils.BitmapSampled cached = getValid(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        FutureTask<BitmapUtils.BitmapSampled> task = new FutureTask<>(decoder);
+        FutureTask<BitmapUtils.BitmapSampled> running = mInFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+                BitmapUtils.BitmapSampled result = task.get();
+                if (lastModified > 0 && result.bitmap != null) {
+                    // 解码时内存变少, 实际的 inSampleSize 比请求的大时按照实际的值缓存,
+                    // 不能让请求的 inSampleSize 命中更小的位图
+                    mCache.put(result.sampleSize == sampleSize ? key
+                            : new Key(uri, lastModified, result.sampleSize), result);
+                }
+            } catch (Exception ignored) {
+                // 错误由下面的 get() 抛出
+            } finally {
+                mInFlight.remove(key, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for decode: " + uri, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Failed to decode: " + uri, cause);
+        }
+    }
+
+    private BitmapUtils.BitmapSampled getValid(Key key) {
+        BitmapUtils.BitmapSampled cached = mCache.get(key);
+        if (cached != null && cached.bitmap.isRecycled()) {
+            // 使用者不应该回收缓存的位图, 这里只是防止显示已经回收的位图
+            mCache.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * uri 对应文件的最后修改时间, 不知道时返回 0
+     */
+    private static long getLastModified(Context context, Uri uri) {
+        try {
+            File file = BitmapUtils.getFileFromUri(context, uri);
+            return file.exists() ? file.lastModified() : 0;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private static int defaultMaxBytes() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 缓存的 key: uri + 最后修改时间 + inSampleSize
+     */
+    private static final class Key {
+
+        final Uri uri;
+
+        final long lastModified;
+
+        final int sampleSize;
+
+        Key(Uri uri, long lastModified, int sampleSize) {
+            this.uri = uri;
+            this.lastModified = lastModified;
+            this.sampleSize = sampleSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return lastModified == key.lastModified && sampleSize == key.sampleSize && uri.equals(key.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = uri.hashCode();
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + sampleSize;
+            return result;
+        }
+    }
+}
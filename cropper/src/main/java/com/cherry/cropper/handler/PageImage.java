@@ -0,0 +1,195 @@
+package com.cherry.cropper.handler;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 缩小后的页面灰度图
+ * 自动拆题和剪切框的统计只需要很低的分辨率, 先把显示的图片缩小到固定宽度以内并转换为灰度,
+ * 后面的分析都在这份数据上进行, 不再访问原来的位图。创建之后只读, 可以在多个线程中同时使用。
+ */
+public final class PageImage {
+
+    /**
+     * 默认的最大宽度(像素)
+     */
+    public static final int DEFAULT_MAX_WIDTH = 512;
+
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * 每个像素的亮度(0 - 255), 按行存储
+     */
+    private final byte[] mLuminance;
+
+    /**
+     * 原图坐标与本图坐标的比例(原图像素 / 本图像素)
+     */
+    private final float mScaleX;
+    private final float mScaleY;
+
+    private int mInkThreshold = -1;
+
+    private PageImage(int width, int height, byte[] luminance, float scaleX, float scaleY) {
+        mWidth = width;
+        mHeight = height;
+        mLuminance = luminance;
+        mScaleX = scaleX;
+        mScaleY = scaleY;
+    }
+
+    /**
+     * 从位图创建缩小后的灰度图, 在调用线程中完成。位图在返回之后就不再使用, 可以被替换或者放回位图池。
+     *
+     * @param sampleSize 位图相对于原图的 inSampleSize, 用于把结果换算为原图的坐标
+     * @param maxWidth   缩小后的最大宽度
+     */
+    public static PageImage from(Bitmap bitmap, int sampleSize, int maxWidth) {
+        int srcWidth = bitmap.getWidth();
+        int srcHeight = bitmap.getHeight();
+        float scale = Math.min(1f, maxWidth / (float) srcWidth);
+        int width = Math.max(1, Math.round(srcWidth * scale));
+        int height = Math.max(1, Math.round(srcHeight * scale));
+
+        int[] pixels = new int[width * height];
+        if (width == srcWidth && height == srcHeight) {
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        } else {
+            Bitmap scaled = BitmapPool.getInstance().obtain(width, height, Bitmap.Config.ARGB_8888);
+            try {
+                Canvas canvas = new Canvas(scaled);
+                canvas.drawBitmap(bitmap, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+                scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+            } finally {
+                BitmapPool.getInstance().put(scaled);
+            }
+        }
+
+        byte[] luminance = new byte[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int color = pixels[i];
+            int alpha = color >>> 24;
+            int lum = (((color >> 16) & 0xff) * 77 + ((color >> 8) & 0xff) * 150 + (color & 0xff) * 29) >> 8;
+            // 透明的部分当作白纸
+            luminance[i] = (byte) (255 - (255 - lum) * alpha / 255);
+        }
+        int orgScale = Math.max(1, sampleSize);
+        return new PageImage(width, height, luminance,
+                srcWidth * orgScale / (float) width, srcHeight * orgScale / (float) height);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 原图像素 / 本图像素
+     */
+    public float getScaleX() {
+        return mScaleX;
+    }
+
+    public float getScaleY() {
+        return mScaleY;
+    }
+
+    /**
+     * 给定像素的亮度(0 - 255)
+     */
+    public int getLuminance(int x, int y) {
+        return mLuminance[y * mWidth + x] & 0xff;
+    }
+
+    /**
+     * 按行存储的亮度数据, 不能修改
+     */
+    byte[] getLuminanceData() {
+        return mLuminance;
+    }
+
+    /**
+     * 区分笔迹和纸张的亮度阈值, 亮度小于阈值的像素是笔迹。
+     * 根据亮度直方图用 Otsu 方法计算, 只计算一次。
+     */
+    public synchronized int getInkThreshold() {
+        if (mInkThreshold < 0) {
+            int[] histogram = new int[256];
+            for (byte value : mLuminance) {
+                histogram[value & 0xff]++;
+            }
+            mInkThreshold = otsuThreshold(histogram, mLuminance.length);
+        }
+        return mInkThreshold;
+    }
+
+    private static int otsuThreshold(int[] histogram, int total) {
+        long sum = 0;
+        for (int i = 0; i < 256; i++) {
+            sum += (long) i * histogram[i];
+        }
+        long sumBackground = 0;
+        int weightBackground = 0;
+        double bestVariance = -1;
+        int threshold = 128;
+        for (int i = 0; i < 256; i++) {
+            weightBackground += histogram[i];
+            if (weightBackground == 0) {
+                continue;
+            }
+            int weightForeground = total - weightBackground;
+            if (weightForeground == 0) {
+                break;
+            }
+            sumBackground += (long) i * histogram[i];
+            double meanBackground = sumBackground / (double) weightBackground;
+            double meanForeground = (sum - sumBackground) / (double) weightForeground;
+            double diff = meanBackground - meanForeground;
+            double variance = (double) weightBackground * weightForeground * diff * diff;
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                threshold = i + 1;
+            }
+        }
+        return threshold;
+    }
+
+    /**
+     * 把本图中的矩形换算为原图的坐标
+     */
+    public void toImageRect(RectF rect) {
+        rect.left *= mScaleX;
+        rect.right *= mScaleX;
+        rect.top *= mScaleY;
+        rect.bottom *= mScaleY;
+    }
+
+    /**
+     * 把原图中的矩形换算为本图的坐标
+     */
+    public void toPageRect(RectF rect) {
+        rect.left /= mScaleX;
+        rect.right /= mScaleX;
+        rect.top /= mScaleY;
+        rect.bottom /= mScaleY;
+    }
+
+    @Override
+    public String toString() {
+        return "PageImage:{" +
+                "width:" + mWidth + "," +
+                "height:" + mHeight + "," +
+                "scaleX:" + mScaleX + "," +
+                "scaleY:" + mScaleY +
+                "}";
+    }
+}
@@ -0,0 +1,302 @@
+package com.cherry.cropper.handler;
+
+import android.graphics.RectF;
+
+import java.util.List;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 页面的积分图统计
+ * 在缩小后的灰度图({@link PageImage})上建立亮度、亮度平方和笔迹像素数的积分图(summed-area table),
+ * 之后任意矩形的笔迹密度、亮度的均值和方差都可以 O(1) 得到。
+ * 用于跳过空白的剪切框, 以及把剪切框收缩到内容的范围。每次加载图片时在后台建立一次, 之后只读。
+ */
+public final class PageStatistics {
+
+    /**
+     * 默认的空白判定: 笔迹像素不超过面积的这个比例
+     */
+    public static final float DEFAULT_BLANK_INK_DENSITY = 0.002f;
+
+    /**
+     * 收缩剪切框时, 边缘累计的笔迹像素不超过对应边长的这个比例时当作噪点继续收缩
+     */
+    private static final float TIGHTEN_NOISE_RATIO = 0.01f;
+
+    private final PageImage mPage;
+
+    /**
+     * 积分图的宽度, 页面宽度 + 1, 第一行和第一列为 0
+     */
+    private final int mStride;
+
+    private final int[] mSum;
+    private final long[] mSquareSum;
+    private final int[] mInk;
+
+    /**
+     * 矩形的统计结果
+     */
+    public static final class Stats {
+
+        /**
+         * 在缩小后的页面中的像素数
+         */
+        public int area;
+
+        /**
+         * 亮度的均值(0 - 255)
+         */
+        public float mean;
+
+        /**
+         * 亮度的方差
+         */
+        public float variance;
+
+        /**
+         * 笔迹像素占面积的比例(0 - 1)
+         */
+        public float inkDensity;
+
+        @Override
+        public String toString() {
+            return "Stats:{" +
+                    "area:" + area + "," +
+                    "mean:" + mean + "," +
+                    "variance:" + variance + "," +
+                    "inkDensity:" + inkDensity +
+                    "}";
+        }
+    }
+
+    private PageStatistics(PageImage page, int[] sum, long[] squareSum, int[] ink) {
+        mPage = page;
+        mStride = page.getWidth() + 1;
+        mSum = sum;
+        mSquareSum = squareSum;
+        mInk = ink;
+    }
+
+    /**
+     * 建立积分图, 与页面的像素数成正比, 应该在后台线程中调用
+     */
+    public static PageStatistics build(PageImage page) {
+        CropMetrics.begin(CropMetrics.STAGE_ANALYZE);
+        try {
+            CropMetrics.setDetail("pageStatistics");
+            int width = page.getWidth();
+            int height = page.getHeight();
+            int stride = width + 1;
+            int size = stride * (height + 1);
+            int[] sum = new int[size];
+            long[] squareSum = new long[size];
+            int[] ink = new int[size];
+            CropMetrics.addBytesAllocated((long) size * (4 + 8 + 4));
+
+            byte[] luminance = page.getLuminanceData();
+            int threshold = page.getInkThreshold();
+            for (int y = 0; y < height; y++) {
+                int rowSum = 0;
+                long rowSquareSum = 0;
+                int rowInk = 0;
+                int src = y * width;
+                int above = y * stride;
+                int index = above + stride;
+                for (int x = 0; x < width; x++) {
+                    int value = luminance[src + x] & 0xff;
+                    rowSum += value;
+                    rowSquareSum += value * value;
+                    if (value < threshold) {
+                        rowInk++;
+                    }
+                    // 积分图的 (x + 1, y + 1) = 上一行的 (x + 1, y) + 本行到 x 为止的和
+                    sum[index + x + 1] = sum[above + x + 1] + rowSum;
+                    squareSum[index + x + 1] = squareSum[above + x + 1] + rowSquareSum;
+                    ink[index + x + 1] = ink[above + x + 1] + rowInk;
+                }
+            }
+            return new PageStatistics(page, sum, squareSum, ink);
+        } finally {
+            CropMetrics.end();
+        }
+    }
+
+    public PageImage getPage() {
+        return mPage;
+    }
+
+    /**
+     * 原图中给定矩形的统计结果
+     *
+     * @param imageRect 原图的坐标
+     * @return out, 矩形与页面不相交时 area 为 0
+     */
+    public Stats getStats(RectF imageRect, Stats out) {
+        int left = clampX((int) Math.floor(imageRect.left / mPage.getScaleX()));
+        int top = clampY((int) Math.floor(imageRect.top / mPage.getScaleY()));
+        int right = clampX((int) Math.ceil(imageRect.right / mPage.getScaleX()));
+        int bottom = clampY((int) Math.ceil(imageRect.bottom / mPage.getScaleY()));
+        return getPageStats(left, top, right, bottom, out);
+    }
+
+    /**
+     * 缩小后的页面中 [left, right) x [top, bottom) 的统计结果
+     */
+    Stats getPageStats(int left, int top, int right, int bottom, Stats out) {
+        int area = Math.max(0, right - left) * Math.max(0, bottom - top);
+        out.area = area;
+        if (area == 0) {
+            out.mean = 0;
+            out.variance = 0;
+            out.inkDensity = 0;
+            return out;
+        }
+        double sum = sum(mSum, left, top, right, bottom);
+        double squareSum = sum(mSquareSum, left, top, right, bottom);
+        double mean = sum / area;
+        out.mean = (float) mean;
+        out.variance = (float) Math.max(0, squareSum / area - mean * mean);
+        out.inkDensity = sum(mInk, left, top, right, bottom) / (float) area;
+        return out;
+    }
+
+    /**
+     * 原图中的给定矩形是否是空白的(笔迹像素不超过 {@link #DEFAULT_BLANK_INK_DENSITY})
+     */
+    public boolean isBlank(RectF imageRect) {
+        return isBlank(imageRect, DEFAULT_BLANK_INK_DENSITY);
+    }
+
+    public boolean isBlank(RectF imageRect, float maxInkDensity) {
+        return getStats(imageRect, new Stats()).inkDensity <= maxInkDensity;
+    }
+
+    /**
+     * 把每个剪切框收缩到其中内容的范围, 四周留出 padding, 一次处理全部剪切框。
+     * 每条边用二分查找第一行/列有笔迹的位置, 每个剪切框只需要 O(log n) 次积分图查询。
+     * 空白的剪切框保持不变。
+     *
+     * @param imageRects 原图坐标的剪切框, 直接修改
+     * @param padding    留出的空白(原图像素)
+     * @return 被收缩的剪切框数量
+     */
+    public int tighten(List<RectF> imageRects, float padding) {
+        int changed = 0;
+        for (RectF rect : imageRects) {
+            if (tighten(rect, padding)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private boolean tighten(RectF rect, float padding) {
+        float scaleX = mPage.getScaleX();
+        float scaleY = mPage.getScaleY();
+        int left = clampX((int) Math.floor(rect.left / scaleX));
+        int top = clampY((int) Math.floor(rect.top / scaleY));
+        int right = clampX((int) Math.ceil(rect.right / scaleX));
+        int bottom = clampY((int) Math.ceil(rect.bottom / scaleY));
+        if (right <= left || bottom <= top) {
+            return false;
+        }
+        int rowNoise = (int) ((right - left) * TIGHTEN_NOISE_RATIO);
+        int columnNoise = (int) ((bottom - top) * TIGHTEN_NOISE_RATIO);
+        if (sum(mInk, left, top, right, bottom) <= Math.max(rowNoise, columnNoise)) {
+            return false;
+        }
+
+        // 每条边找到累计笔迹超过噪点的第一行/列, 累计值是单调的, 可以二分查找
+        int lo = top + 1;
+        int hi = bottom;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sum(mInk, left, top, right, mid) > rowNoise) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        int newTop = lo - 1;
+
+        lo = newTop;
+        hi = bottom;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sum(mInk, left, mid, right, bottom) > rowNoise) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int newBottom = lo;
+        if (newBottom <= newTop || sum(mInk, left, newTop, right, newBottom) <= columnNoise) {
+            return false;
+        }
+
+        lo = left + 1;
+        hi = right;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sum(mInk, left, newTop, mid, newBottom) > columnNoise) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        int newLeft = lo - 1;
+
+        lo = newLeft;
+        hi = right;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sum(mInk, mid, newTop, right, newBottom) > columnNoise) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int newRight = lo;
+
+        if (newRight <= newLeft || newBottom <= newTop) {
+            return false;
+        }
+        // 只收缩, 不会超出原来的剪切框
+        float l = Math.max(rect.left, newLeft * scaleX - padding);
+        float t = Math.max(rect.top, newTop * scaleY - padding);
+        float r = Math.min(rect.right, newRight * scaleX + padding);
+        float b = Math.min(rect.bottom, newBottom * scaleY + padding);
+        if (l == rect.left && t == rect.top && r == rect.right && b == rect.bottom) {
+            return false;
+        }
+        rect.set(l, t, r, b);
+        return true;
+    }
+
+    private int clampX(int x) {
+        return Math.max(0, Math.min(mPage.getWidth(), x));
+    }
+
+    private int clampY(int y) {
+        return Math.max(0, Math.min(mPage.getHeight(), y));
+    }
+
+    private int sum(int[] table, int left, int top, int right, int bottom) {
+        return table[bottom * mStride + right] - table[top * mStride + right]
+                - table[bottom * mStride + left] + table[top * mStride + left];
+    }
+
+    private long sum(long[] table, int left, int top, int right, int bottom) {
+        return table[bottom * mStride + right] - table[top * mStride + right]
+                - table[bottom * mStride + left] + table[top * mStride + left];
+    }
+
+    @Override
+    public String toString() {
+        return "PageStatistics:{" +
+                "page:" + mPage +
+                "}";
+    }
+}
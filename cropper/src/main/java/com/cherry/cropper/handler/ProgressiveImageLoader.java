@@ -0,0 +1,167 @@
+package com.cherry.cropper.handler;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+
+import com.cherry.cropper.utils.CropLog;
+
+import java.io.InputStream;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 渐进式加载图片
+ * 依次得到: JPEG 中内嵌的 EXIF 缩略图(几乎不用解码) -> 大幅缩小的预览图 -> 最终显示的位图。
+ * 每个阶段的位图都是原图按照整数 inSampleSize 缩小后的大小, 显示时可以用同一套矩阵把剪切框映射回原图。
+ */
+public final class ProgressiveImageLoader {
+
+    private static final String TAG = "OCR:" + ProgressiveImageLoader.class.getName();
+
+    /**
+     * EXIF 缩略图
+     */
+    public static final int STAGE_THUMBNAIL = 1;
+
+    /**
+     * 大幅缩小的预览图
+     */
+    public static final int STAGE_PREVIEW = 2;
+
+    /**
+     * 最终显示的位图
+     */
+    public static final int STAGE_FULL = 3;
+
+    /**
+     * 预览图的 inSampleSize 是最终位图的几倍
+     */
+    private static final int PREVIEW_SAMPLE_FACTOR = 4;
+
+    /**
+     * 缩略图与原图宽高比的最大误差, 超过时(例如加了黑边的缩略图)不使用缩略图
+     */
+    private static final float MAX_THUMBNAIL_ASPECT_ERROR = 0.02f;
+
+    private ProgressiveImageLoader() {
+    }
+
+    /**
+     * 每个阶段加载完成后在加载线程中调用
+     */
+    public interface Callback {
+
+        /**
+         * @param stage   {@link #STAGE_THUMBNAIL}, {@link #STAGE_PREVIEW} 或者 {@link #STAGE_FULL}
+         * @param sampled 该阶段的位图及相对原图的 inSampleSize
+         * @return false 表示不再需要后面的阶段
+         */
+        boolean onStageLoaded(int stage, BitmapUtils.BitmapSampled sampled);
+    }
+
+    /**
+     * 在当前线程中依次加载各个阶段, 最终位图已经在 {@link DecodedImageCache} 中时直接返回最终位图。
+     * 缩略图和预览图不会被缓存, 调用者不再显示时可以放入 {@link BitmapPool}。
+     *
+     * @return 最终显示的位图, 被 callback 取消时返回 null
+     */
+    public static BitmapUtils.BitmapSampled load(Context context, Uri uri, int reqWidth, int reqHeight, Callback callback) {
+        BitmapFactory.Options options;
+        try {
+            options = BitmapUtils.decodeBoundsForSampling(context, uri, reqWidth, reqHeight);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load sampled bitmap: " + uri + "\r\n" + e.getMessage(), e);
+        }
+        int width = options.outWidth;
+        int height = options.outHeight;
+        int sampleSize = CropMemoryPlanner.planDecodeSampleSize(width, height, options.inSampleSize);
+
+        if (DecodedImageCache.getInstance().peek(context, uri, sampleSize) == null) {
+            BitmapUtils.BitmapSampled thumbnail = decodeExifThumbnail(context, uri, width, height, sampleSize);
+            if (thumbnail != null && !callback.onStageLoaded(STAGE_THUMBNAIL, thumbnail)) {
+                return null;
+            }
+            int previewSampleSize = sampleSize * PREVIEW_SAMPLE_FACTOR;
+            // 缩略图已经不比预览图小时跳过预览图
+            if (thumbnail == null || thumbnail.sampleSize > previewSampleSize) {
+                BitmapUtils.BitmapSampled preview = decodePreview(context, uri, previewSampleSize);
+                if (preview != null && !callback.onStageLoaded(STAGE_PREVIEW, preview)) {
+                    return null;
+                }
+            }
+        }
+
+        BitmapUtils.BitmapSampled full = DecodedImageCache.getInstance().getSampledBitmap(context, uri, reqWidth, reqHeight);
+        if (full.bitmap == null || !callback.onStageLoaded(STAGE_FULL, full)) {
+            return null;
+        }
+        return full;
+    }
+
+    private static BitmapUtils.BitmapSampled decodePreview(Context context, Uri uri, int sampleSize) {
+        try {
+            BitmapUtils.BitmapSampled preview = BitmapUtils.decodeBitmap(context, uri, sampleSize);
+            return preview.bitmap != null ? preview : null;
+        } catch (Exception e) {
+            CropLog.w(TAG, "Failed to decode preview: " + uri, e);
+            return null;
+        }
+    }
+
+    /**
+     * 解码 EXIF 中的缩略图, 并缩放到原图按照 2 的幂缩小后的大小, 没有可用的缩略图时返回 null
+     *
+     * @param width          原图的宽度
+     * @param height         原图的高度
+     * @param minSampleSize  最终位图的 inSampleSize, 缩略图的 inSampleSize 不会小于它
+     */
+    private static BitmapUtils.BitmapSampled decodeExifThumbnail(Context context, Uri uri, int width, int height,
+                                                                 int minSampleSize) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        InputStream stream = null;
+        try {
+            stream = context.getContentResolver().openInputStream(uri);
+            ExifInterface exif = new ExifInterface(stream);
+            byte[] data = exif.hasThumbnail() ? exif.getThumbnail() : null;
+            if (data == null) {
+                return null;
+            }
+            Bitmap thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length);
+            if (thumbnail == null) {
+                return null;
+            }
+            float aspect = width / (float) height;
+            float thumbnailAspect = thumbnail.getWidth() / (float) thumbnail.getHeight();
+            if (Math.abs(thumbnailAspect - aspect) / aspect > MAX_THUMBNAIL_ASPECT_ERROR) {
+                thumbnail.recycle();
+                return null;
+            }
+            // 选择不小于缩略图的最小尺寸, 缩放后的位图与按照该 inSampleSize 解码的位图大小相同
+            int sampleSize = minSampleSize;
+            while (width / (sampleSize * 2) >= thumbnail.getWidth()) {
+                sampleSize *= 2;
+            }
+            Bitmap scaled = Bitmap.createScaledBitmap(thumbnail, (width + sampleSize - 1) / sampleSize,
+                    (height + sampleSize - 1) / sampleSize, true);
+            if (scaled != thumbnail) {
+                thumbnail.recycle();
+            }
+            return new BitmapUtils.BitmapSampled(scaled, sampleSize);
+        } catch (Exception e) {
+            CropLog.w(TAG, "Failed to read exif thumbnail: " + uri, e);
+            return null;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+}
@@ -32,7 +32,10 @@ public class ContextBridge {
         return mContext;
     }
 
+    /**
+     * 是否输出调试日志, 由 {@link CropLog} 的级别决定
+     */
     public static boolean isOpenDebug() {
-        return true;
+        return CropLog.isLoggable(CropLog.DEBUG);
     }
 }
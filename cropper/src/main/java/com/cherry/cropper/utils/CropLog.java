@@ -0,0 +1,315 @@
+package com.cherry.cropper.utils;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.cherry.cropper.BuildConfig;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 分级的日志工具
+ * 日志在两个地方过滤:
+ * 编译时由 {@link BuildConfig#CROP_LOG_LEVEL} 决定, release 只保留 WARN 以上, 低于它的日志不会输出;
+ * 运行时由 {@link #setLevel(int)} 决定。
+ * 消息只在需要输出时才拼接: 可以传入格式和参数(按照 {@link String#format} 格式化),
+ * 或者传入 {@link Message} 延迟生成消息, 固定参数个数的重载不会创建参数数组。
+ * 但是调用处的参数仍然会计算, 基本类型的参数会装箱, 关闭的日志并不是没有开销。
+ * 热点路径上必须先检查 {@code if (CropLog.D && CropLog.isLoggable(CropLog.DEBUG))},
+ * 编译时关闭的级别整段代码被编译器去掉, 运行时关闭的级别只有一次判断。<br>
+ * 可以打开内存中的环形缓冲区保存最近的日志, 崩溃或者出现问题之后通过 {@link #dump(Writer)} 导出。
+ * 缓冲区不加锁, 多个线程可以同时写入。
+ */
+public final class CropLog {
+
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+
+    /**
+     * 不输出任何日志
+     */
+    public static final int NONE = Log.ASSERT + 1;
+
+    /**
+     * 编译时保留的最低级别, 低于它的日志在运行时也不能打开
+     */
+    public static final int COMPILE_LEVEL = BuildConfig.CROP_LOG_LEVEL;
+
+    /**
+     * 编译时是否保留各个级别的日志, 热点路径上计算参数之前必须先检查, 为 false 时整段代码被去掉
+     */
+    public static final boolean V = COMPILE_LEVEL <= VERBOSE;
+    public static final boolean D = COMPILE_LEVEL <= DEBUG;
+    public static final boolean I = COMPILE_LEVEL <= INFO;
+
+    private static final char[] LEVEL_CHARS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+    /**
+     * 延迟生成的日志消息, 只在需要输出时调用
+     */
+    public interface Message {
+
+        String get();
+    }
+
+    /**
+     * 输出到 logcat 的最低级别
+     */
+    private static volatile int sLevel = BuildConfig.DEBUG ? DEBUG : WARN;
+
+    /**
+     * 写入环形缓冲区的最低级别, 可以低于 logcat 的级别, 以便事后查看更详细的日志
+     */
+    private static volatile int sBufferLevel = NONE;
+
+    /**
+     * 两者中较低的级别, 用于快速判断
+     */
+    private static volatile int sMinLevel = sLevel;
+
+    private static volatile RingBuffer sRingBuffer;
+
+    private CropLog() {
+    }
+
+    /**
+     * 设置输出到 logcat 的最低级别, 不能低于 {@link #COMPILE_LEVEL}
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+        updateMinLevel();
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * 打开内存中的环形缓冲区
+     *
+     * @param capacity 保存的日志条数, <= 0 时关闭缓冲区
+     * @param level    写入缓冲区的最低级别
+     */
+    public static void enableRingBuffer(int capacity, int level) {
+        if (capacity <= 0) {
+            sRingBuffer = null;
+            sBufferLevel = NONE;
+        } else {
+            sRingBuffer = new RingBuffer(capacity);
+            sBufferLevel = level;
+        }
+        updateMinLevel();
+    }
+
+    private static void updateMinLevel() {
+        sMinLevel = Math.max(COMPILE_LEVEL, Math.min(sLevel, sBufferLevel));
+    }
+
+    /**
+     * 给定级别的日志是否会被输出(到 logcat 或者环形缓冲区)
+     */
+    public static boolean isLoggable(int level) {
+        return level >= COMPILE_LEVEL && level >= sMinLevel;
+    }
+
+    public static void v(String tag, String msg) {
+        if (V && isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, msg, null);
+        }
+    }
+
+    public static void v(String tag, String format, Object arg) {
+        if (V && isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, format(format, arg), null);
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (V && isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, format(format, arg1, arg2), null);
+        }
+    }
+
+    public static void v(String tag, Message message) {
+        if (V && isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, message.get(), null);
+        }
+    }
+
+    public static void d(String tag, String msg) {
+        if (D && isLoggable(DEBUG)) {
+            println(DEBUG, tag, msg, null);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg) {
+        if (D && isLoggable(DEBUG)) {
+            println(DEBUG, tag, format(format, arg), null);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (D && isLoggable(DEBUG)) {
+            println(DEBUG, tag, format(format, arg1, arg2), null);
+        }
+    }
+
+    public static void d(String tag, Message message) {
+        if (D && isLoggable(DEBUG)) {
+            println(DEBUG, tag, message.get(), null);
+        }
+    }
+
+    public static void i(String tag, String msg) {
+        if (I && isLoggable(INFO)) {
+            println(INFO, tag, msg, null);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg) {
+        if (I && isLoggable(INFO)) {
+            println(INFO, tag, format(format, arg), null);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (I && isLoggable(INFO)) {
+            println(INFO, tag, format(format, arg1, arg2), null);
+        }
+    }
+
+    public static void i(String tag, Message message) {
+        if (I && isLoggable(INFO)) {
+            println(INFO, tag, message.get(), null);
+        }
+    }
+
+    public static void w(String tag, String msg) {
+        w(tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        if (isLoggable(WARN)) {
+            println(WARN, tag, msg, tr);
+        }
+    }
+
+    public static void e(String tag, String msg) {
+        e(tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        if (isLoggable(ERROR)) {
+            println(ERROR, tag, msg, tr);
+        }
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.US, format, args);
+    }
+
+    private static void println(int level, String tag, String msg, Throwable tr) {
+        if (tr != null) {
+            msg = msg + '\n' + Log.getStackTraceString(tr);
+        }
+        if (level >= sLevel) {
+            Log.println(level, tag, msg);
+        }
+        RingBuffer buffer = sRingBuffer;
+        if (buffer != null && level >= sBufferLevel) {
+            buffer.add(level, tag, msg);
+        }
+    }
+
+    /**
+     * 环形缓冲区中的日志, 从旧到新
+     */
+    public static List<String> getBufferedLines() {
+        RingBuffer buffer = sRingBuffer;
+        return buffer != null ? buffer.snapshot() : new ArrayList<String>();
+    }
+
+    /**
+     * 把环形缓冲区中的日志写入 writer, 每行一条
+     */
+    public static void dump(Writer writer) throws IOException {
+        for (String line : getBufferedLines()) {
+            writer.write(line);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * 一条缓存的日志, 创建之后不会修改
+     */
+    private static final class Entry {
+
+        final long sequence;
+        final long timeMillis;
+        final int level;
+        final int tid;
+        final String tag;
+        final String msg;
+
+        Entry(long sequence, int level, String tag, String msg) {
+            this.sequence = sequence;
+            this.timeMillis = System.currentTimeMillis();
+            this.level = level;
+            this.tid = Process.myTid();
+            this.tag = tag;
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * 不加锁的环形缓冲区: 每次写入先原子地取得序号, 再写入序号对应的槽位。
+     * 读取时检查条目的序号, 跳过已经被覆盖的条目。
+     */
+    private static final class RingBuffer {
+
+        private final AtomicReferenceArray<Entry> mSlots;
+        private final AtomicLong mNext = new AtomicLong();
+        private final int mCapacity;
+
+        RingBuffer(int capacity) {
+            mCapacity = capacity;
+            mSlots = new AtomicReferenceArray<>(capacity);
+        }
+
+        void add(int level, String tag, String msg) {
+            long sequence = mNext.getAndIncrement();
+            mSlots.set((int) (sequence % mCapacity), new Entry(sequence, level, tag, msg));
+        }
+
+        List<String> snapshot() {
+            long end = mNext.get();
+            long start = Math.max(0, end - mCapacity);
+            SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+            List<String> lines = new ArrayList<>((int) (end - start));
+            for (long sequence = start; sequence < end; sequence++) {
+                Entry entry = mSlots.get((int) (sequence % mCapacity));
+                if (entry == null || entry.sequence != sequence) {
+                    // 还没有写入, 或者已经被新的日志覆盖
+                    continue;
+                }
+                lines.add(dateFormat.format(new Date(entry.timeMillis)) + " " + entry.tid + " "
+                        + LEVEL_CHARS[Math.min(entry.level, LEVEL_CHARS.length - 1)] + "/" + entry.tag + ": " + entry.msg);
+            }
+            return lines;
+        }
+    }
+}
@@ -6,6 +6,9 @@ import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * @author pengxiaobao
  * @date 2019/1/24
@@ -30,6 +33,21 @@ public class CropResult implements Parcelable {
      */
     private Exception mError;
 
+    /**
+     * 保存在内存中的压缩后的数据, 不是输出到内存时为 null
+     */
+    private ByteBuffer mEncodedBytes;
+
+    /**
+     * 压缩后数据的字节数, 没有压缩时为 0
+     */
+    private int mEncodedSize;
+
+    /**
+     * 跨进程传递的共享内存, 由 {@link #toShared()} 创建或者从 Parcel 中读取, 不使用时为 null
+     */
+    private SharedCropPayload mSharedPayload;
+
     /**
      * The 4 points of the cropping window in the source image
      */
@@ -92,9 +110,54 @@ public class CropResult implements Parcelable {
 //        this.mSampleSize = 1;
 //    }
 
+    /**
+     * 压缩后输出到内存或者输出流的结果
+     *
+     * @param encodedBytes 压缩后的数据, 输出到输出流时为 null
+     * @param encodedSize  压缩后数据的字节数
+     */
+    public CropResult(ByteBuffer encodedBytes, int encodedSize, int sampleSize) {
+        this.mBitmap = null;
+        this.mUri = null;
+        this.mError = null;
+        this.mEncodedBytes = encodedBytes;
+        this.mEncodedSize = encodedSize;
+        this.isSave = true;
+        this.mSampleSize = sampleSize;
+    }
+
+    /**
+     * 放在共享内存中的结果, 可以通过 Parcel 传递到其它进程
+     */
+    public CropResult(SharedCropPayload sharedPayload, int sampleSize) {
+        this.mBitmap = null;
+        this.mUri = null;
+        this.mError = null;
+        this.mSharedPayload = sharedPayload;
+        this.mEncodedSize = sharedPayload.getType() == SharedCropPayload.TYPE_ENCODED ? sharedPayload.getSize() : 0;
+        this.isSave = sharedPayload.getType() == SharedCropPayload.TYPE_ENCODED;
+        this.mSampleSize = sampleSize;
+    }
+
+    /**
+     * 剪切失败的结果, uri 用于标识是哪个剪切框失败了
+     */
+    public CropResult(Uri uri, Exception error) {
+        this.mBitmap = null;
+        this.mUri = uri;
+        this.mError = error;
+        this.isSave = uri != null;
+        this.mSampleSize = 1;
+    }
+
     protected CropResult(Parcel in) {
         this((Uri) in.readParcelable(Uri.class.getClassLoader()));
-
+        if (in.readInt() != 0) {
+            mSharedPayload = in.readParcelable(SharedCropPayload.class.getClassLoader());
+            mSampleSize = in.readInt();
+            mEncodedSize = mSharedPayload.getType() == SharedCropPayload.TYPE_ENCODED ? mSharedPayload.getSize() : 0;
+            isSave = mSharedPayload.getType() == SharedCropPayload.TYPE_ENCODED;
+        }
     }
 
     /**
@@ -127,6 +190,64 @@ public class CropResult implements Parcelable {
         return mError;
     }
 
+    /**
+     * 保存在内存中的压缩后的数据(只读, 每次返回新的 position 为 0 的视图), 不是输出到内存时为 null
+     */
+    public ByteBuffer getEncodedBytes() {
+        return mEncodedBytes != null ? mEncodedBytes.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * 压缩后数据的字节数, 结果是位图时为 0
+     */
+    public int getEncodedSize() {
+        return mEncodedSize;
+    }
+
+    /**
+     * 共享内存中的结果, 没有时为 null。接收方读取完之后调用 {@link #release()}。
+     */
+    public SharedCropPayload getSharedPayload() {
+        return mSharedPayload;
+    }
+
+    /**
+     * 把压缩后的数据或者位图的像素放入共享内存, 返回可以跨进程传递的结果, 原结果不变。
+     * 通过 Parcel 发送之后, 发送方也需要调用返回结果的 {@link #release()}。
+     *
+     * @throws IOException 系统不支持 SharedMemory(API 27 以下)或者没有可以传递的数据时
+     */
+    public CropResult toShared() throws IOException {
+        if (mSharedPayload != null) {
+            return new CropResult(mSharedPayload.acquire(), mSampleSize);
+        }
+        if (!SharedCropPayload.isSupported()) {
+            throw new IOException("SharedMemory is not supported");
+        }
+        SharedCropPayload payload;
+        if (mEncodedBytes != null) {
+            payload = SharedCropPayload.fromEncoded(mEncodedBytes);
+        } else if (mBitmap != null && !mBitmap.isRecycled()) {
+            payload = SharedCropPayload.fromBitmap(mBitmap);
+        } else {
+            throw new IOException("No data to share: " + this);
+        }
+        CropResult result = new CropResult(payload, mSampleSize);
+        result.mCropPoints = mCropPoints;
+        result.mCropRect = mCropRect;
+        result.mRotation = mRotation;
+        return result;
+    }
+
+    /**
+     * 释放本进程持有的共享内存, 所有进程都释放之后系统回收该内存
+     */
+    public void release() {
+        if (mSharedPayload != null) {
+            mSharedPayload.release();
+        }
+    }
+
     /**
      * The 4 points of the cropping window in the source image
      */
@@ -161,12 +282,19 @@ public class CropResult implements Parcelable {
 
     @Override
     public int describeContents() {
-        return 0;
+        return mSharedPayload != null ? CONTENTS_FILE_DESCRIPTOR : 0;
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeParcelable(getUri(), flags);
+        // 只写入共享内存的描述符, 数据本身不经过 Binder
+        boolean shared = mSharedPayload != null && !mSharedPayload.isReleased();
+        dest.writeInt(shared ? 1 : 0);
+        if (shared) {
+            dest.writeParcelable(mSharedPayload, flags);
+            dest.writeInt(mSampleSize);
+        }
 //        dest.writeSerializable(getError());
 //        dest.writeParcelable(getCropRect(), flags);
 //        dest.writeInt(getRotation());
@@ -191,6 +319,8 @@ public class CropResult implements Parcelable {
         return "CropResult:{" +
                 "bitmap:" + mBitmap + "," +
                 "uri:" + mUri + "," +
+                "encodedSize:" + mEncodedSize + "," +
+                "sharedPayload:" + mSharedPayload + "," +
                 "error:" + mError + "," +
                 "cropRect:" + mCropRect + "," +
                 "rotation:" + mRotation + "," +
@@ -112,4 +112,46 @@ public class Enum {
          */
         RESIZE_EXACT
     }
+
+    /**
+     * 剪切结果写入文件后的持久化策略
+     */
+    public enum SyncPolicy {
+
+        /**
+         * 不调用 fsync, 由系统决定何时写入磁盘(最快, 断电时可能丢失最近写入的文件)
+         */
+        NONE,
+
+        /**
+         * 一批剪切框全部写入之后, 对每个文件调用一次 fsync
+         */
+        PER_BATCH,
+
+        /**
+         * 每个文件写入之后立即调用 fsync
+         */
+        PER_FILE
+    }
+
+    /**
+     * 剪切框变化中(拖动时)通知监听器的方式, 拖动结束时总是立即通知
+     */
+    public enum ChangeNotifyMode {
+
+        /**
+         * 每次变化都通知
+         */
+        IMMEDIATE,
+
+        /**
+         * 每个间隔内最多通知一次, 间隔内的最后一次变化在间隔结束时通知
+         */
+        THROTTLE,
+
+        /**
+         * 停止变化超过间隔之后才通知
+         */
+        DEBOUNCE
+    }
 }
@@ -0,0 +1,276 @@
+package com.cherry.cropper.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 通过 SharedMemory(ashmem)在进程之间传递剪切结果
+ * 像素或者压缩后的数据写入共享内存后设为只读, 经过 Binder 传递的只是文件描述符, 不受 1MB 事务大小的限制。
+ * 每个进程中的持有者用引用计数管理, 最后一个 {@link #release()} 关闭本进程的描述符;
+ * 所有进程都关闭之后系统回收该共享内存。需要 API 27。
+ */
+@TargetApi(Build.VERSION_CODES.O_MR1)
+public final class SharedCropPayload implements Parcelable {
+
+    private static final String TAG = "OCR:" + SharedCropPayload.class.getName();
+
+    /**
+     * 压缩后的数据
+     */
+    public static final int TYPE_ENCODED = 1;
+
+    /**
+     * 位图的像素
+     */
+    public static final int TYPE_PIXELS = 2;
+
+    private final int mType;
+    private final int mSize;
+
+    /**
+     * 像素的宽高和格式, 只用于 {@link #TYPE_PIXELS}
+     */
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+
+    private SharedMemory mMemory;
+
+    /**
+     * 本进程中的持有者数量, 为 0 时关闭共享内存
+     */
+    private int mRefCount = 1;
+
+    private SharedCropPayload(SharedMemory memory, int type, int size, int width, int height, Bitmap.Config config) {
+        mMemory = memory;
+        mType = type;
+        mSize = size;
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+    }
+
+    /**
+     * 当前系统是否支持 SharedMemory
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1;
+    }
+
+    /**
+     * 把压缩后的数据复制到共享内存中
+     */
+    public static SharedCropPayload fromEncoded(ByteBuffer data) throws IOException {
+        ByteBuffer src = data.duplicate();
+        int size = src.remaining();
+        SharedMemory memory = create("crop-encoded", size);
+        try {
+            ByteBuffer mapped = memory.mapReadWrite();
+            try {
+                mapped.put(src);
+            } finally {
+                SharedMemory.unmap(mapped);
+            }
+            protectReadOnly(memory);
+        } catch (ErrnoException | RuntimeException e) {
+            memory.close();
+            throw new IOException("Failed to write shared memory", e);
+        }
+        return new SharedCropPayload(memory, TYPE_ENCODED, size, 0, 0, null);
+    }
+
+    /**
+     * 把位图的像素复制到共享内存中, 接收方可以直接恢复位图, 不需要解码
+     */
+    public static SharedCropPayload fromBitmap(Bitmap bitmap) throws IOException {
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        int size = bitmap.getByteCount();
+        SharedMemory memory = create("crop-pixels", size);
+        try {
+            ByteBuffer mapped = memory.mapReadWrite();
+            try {
+                bitmap.copyPixelsToBuffer(mapped);
+            } finally {
+                SharedMemory.unmap(mapped);
+            }
+            protectReadOnly(memory);
+        } catch (ErrnoException | RuntimeException e) {
+            memory.close();
+            throw new IOException("Failed to write shared memory", e);
+        }
+        return new SharedCropPayload(memory, TYPE_PIXELS, size, bitmap.getWidth(), bitmap.getHeight(), config);
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * 数据的字节数
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * 增加一个持有者, 每次调用都需要对应一次 {@link #release()}
+     */
+    public synchronized SharedCropPayload acquire() {
+        checkOpen();
+        mRefCount++;
+        return this;
+    }
+
+    /**
+     * 释放一个持有者, 最后一个持有者释放时关闭本进程中的共享内存
+     */
+    public synchronized void release() {
+        if (mMemory == null) {
+            return;
+        }
+        if (--mRefCount <= 0) {
+            mMemory.close();
+            mMemory = null;
+        }
+    }
+
+    public synchronized boolean isReleased() {
+        return mMemory == null;
+    }
+
+    /**
+     * 只读映射共享内存, 使用完之后必须调用 {@link SharedMemory#unmap(ByteBuffer)}
+     */
+    public synchronized ByteBuffer map() throws IOException {
+        checkOpen();
+        try {
+            return mMemory.mapReadOnly();
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to map shared memory", e);
+        }
+    }
+
+    /**
+     * 复制压缩后的数据
+     */
+    public byte[] readEncodedBytes() throws IOException {
+        if (mType != TYPE_ENCODED) {
+            throw new IllegalStateException("Not encoded data: " + mType);
+        }
+        ByteBuffer mapped = map();
+        try {
+            byte[] bytes = new byte[mSize];
+            mapped.get(bytes);
+            return bytes;
+        } finally {
+            SharedMemory.unmap(mapped);
+        }
+    }
+
+    /**
+     * 从共享内存中的像素恢复位图
+     */
+    public Bitmap readBitmap() throws IOException {
+        if (mType != TYPE_PIXELS) {
+            throw new IllegalStateException("Not bitmap pixels: " + mType);
+        }
+        ByteBuffer mapped = map();
+        try {
+            Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, mConfig);
+            bitmap.copyPixelsFromBuffer(mapped);
+            return bitmap;
+        } finally {
+            SharedMemory.unmap(mapped);
+        }
+    }
+
+    private void checkOpen() {
+        if (mMemory == null) {
+            throw new IllegalStateException("Shared crop payload already released");
+        }
+    }
+
+    private static SharedMemory create(String name, int size) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("SharedMemory requires API " + Build.VERSION_CODES.O_MR1);
+        }
+        try {
+            return SharedMemory.create(name, Math.max(1, size));
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to create shared memory: " + size, e);
+        }
+    }
+
+    /**
+     * 写入完成后设为只读, 接收方不能修改其它进程看到的数据
+     */
+    private static void protectReadOnly(SharedMemory memory) {
+        if (!memory.setProtect(OsConstants.PROT_READ)) {
+            CropLog.w(TAG, "Failed to set shared memory read only");
+        }
+    }
+
+    protected SharedCropPayload(Parcel in) {
+        mType = in.readInt();
+        mSize = in.readInt();
+        mWidth = in.readInt();
+        mHeight = in.readInt();
+        String config = in.readString();
+        mConfig = config != null ? Bitmap.Config.valueOf(config) : null;
+        mMemory = in.readParcelable(SharedMemory.class.getClassLoader());
+    }
+
+    /**
+     * 写入的是复制的文件描述符, 写入之后发送方仍然需要 {@link #release()} 自己持有的部分
+     */
+    @Override
+    public synchronized void writeToParcel(Parcel dest, int flags) {
+        checkOpen();
+        dest.writeInt(mType);
+        dest.writeInt(mSize);
+        dest.writeInt(mWidth);
+        dest.writeInt(mHeight);
+        dest.writeString(mConfig != null ? mConfig.name() : null);
+        dest.writeParcelable(mMemory, flags);
+    }
+
+    @Override
+    public int describeContents() {
+        return CONTENTS_FILE_DESCRIPTOR;
+    }
+
+    public static final Creator<SharedCropPayload> CREATOR = new Creator<SharedCropPayload>() {
+
+        @Override
+        public SharedCropPayload createFromParcel(Parcel parcel) {
+            return new SharedCropPayload(parcel);
+        }
+
+        @Override
+        public SharedCropPayload[] newArray(int i) {
+            return new SharedCropPayload[i];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "SharedCropPayload:{" +
+                "type:" + mType + "," +
+                "size:" + mSize + "," +
+                "width:" + mWidth + "," +
+                "height:" + mHeight + "," +
+                "released:" + isReleased() +
+                "}";
+    }
+}
@@ -1,52 +1,40 @@
 package com.cherry.cropper.utils;
 
-import android.util.Log;
-
 /**
  * Created by lucien on 08/05/2017.
+ *
+ * @deprecated 使用 {@link CropLog}, 级别的过滤和环形缓冲区都由 CropLog 处理
  */
-
+@Deprecated
 public class SimpleLog {
 
     public static void d(String tag, String msg) {
-        if (ContextBridge.isOpenDebug()) {
-            Log.d(tag, msg);
-        }
+        CropLog.d(tag, msg);
     }
 
     public static void d(boolean isShow, String tag, String msg) {
-        if (ContextBridge.isOpenDebug() && isShow) {
-            Log.d(tag, msg);
+        if (isShow) {
+            CropLog.d(tag, msg);
         }
     }
 
     public static void e(String tag, String msg) {
-        if (ContextBridge.isOpenDebug()) {
-            Log.e(tag, msg);
-        }
+        CropLog.e(tag, msg);
     }
 
     public static void i(String tag, String msg) {
-        if (ContextBridge.isOpenDebug()) {
-            Log.i(tag, msg);
-        }
+        CropLog.i(tag, msg);
     }
 
     public static void w(String tag, String msg) {
-        if (ContextBridge.isOpenDebug()) {
-            Log.w(tag, msg);
-        }
+        CropLog.w(tag, msg);
     }
 
     public static void v(String tag, String msg) {
-        if (ContextBridge.isOpenDebug()) {
-            Log.v(tag, msg);
-        }
+        CropLog.v(tag, msg);
     }
 
     public static void e(Exception e) {
-        if (ContextBridge.isOpenDebug()) {
-            e.printStackTrace();
-        }
+        CropLog.e("SimpleLog", String.valueOf(e.getMessage()), e);
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,7 @@ import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.Matrix
 import android.graphics.RectF
+import android.graphics.drawable.BitmapDrawable
 import android.net.Uri
 import android.util.AttributeSet
 import android.view.LayoutInflater
@@ -12,14 +13,28 @@ import android.widget.FrameLayout
 import android.widget.ImageView
 import com.cherry.cropper.CropFileUtils
 import com.cherry.cropper.R
+import com.cherry.cropper.handler.AutoSplitEngine
+import com.cherry.cropper.handler.BitmapPool
+import com.cherry.cropper.handler.BitmapUtils
 import com.cherry.cropper.handler.CropImageOptions
 import com.cherry.cropper.handler.CropImageTask
+import com.cherry.cropper.handler.CropMemoryPlanner
+import com.cherry.cropper.handler.CropPipeline
+import com.cherry.cropper.handler.CropRegionSession
+import com.cherry.cropper.handler.PageImage
+import com.cherry.cropper.handler.PageStatistics
+import com.cherry.cropper.handler.ProgressiveImageLoader
 import com.cherry.cropper.utils.CropResult
 import com.cherry.cropper.utils.Enum
-import com.cherry.cropper.utils.SimpleLog
+import com.cherry.cropper.utils.CropLog
 import com.cherry.cropper.view.CropOverlayView.CREATE_ENCLOSE_CROP_WINDOW
+import com.cherry.cropper.view.CropOverlayView.CREATE_SPLIT_CROP_WINDOW
 import kotlinx.android.synthetic.main.crop_image_view.view.*
+import java.io.IOException
 import java.util.*
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 /**
  * @author pengxiaobao
@@ -83,10 +98,56 @@ class CropImageView(context: Context, attributeSet: AttributeSet) : FrameLayout(
 
     private val mCropWindowOperator: CropWindowOperator
 
+    /**
+     * 通过 uri 加载图片的线程
+     */
+    private val mLoadExecutor: ExecutorService = Executors.newSingleThreadExecutor()
+    /**
+     * 每次加载新的图片(或者直接设置位图)时加1, 之前的加载被取消, 结果直接丢弃
+     */
+    @Volatile
+    private var mLoadGeneration = 0
+    /**
+     * 正在加载或者已经加载的图片, 直接设置位图时为 null
+     */
+    private var mLoadingUri: Uri? = null
+    /**
+     * 当前显示的位图解码自的图片, 直接设置位图时为 null。
+     * 位图按照 mLoadedSampleSize 缩小, 剪切时需要从这里读取原图或者换算坐标
+     */
+    private var mLoadedUri: Uri? = null
+    /**
+     * 图片按照 EXIF 需要旋转的角度
+     */
+    private var mDegreesRotated = 0
+    /**
+     * 通过 uri 加载图片的监听器
+     */
+    private var mOnImageLoadListener: OnImageLoadListener? = null
+    /**
+     * 当前显示的是渐进式加载的哪个阶段, 0 表示还没有显示
+     */
+    private var mLoadedStage = 0
+    /**
+     * 每帧耗时的统计, 没有打开时为 null
+     */
+    private var mFrameMetrics: OverlayFrameMetrics? = null
+
+    /**
+     * 当前图片的积分图统计, 每次换图后在后台重新建立, 建立完成之前为 null
+     */
+    private var mPageStatistics: PageStatistics? = null
+
+    /**
+     * 最近一次提交建立统计的灰度图, 早于它提交的结果直接丢弃
+     */
+    private var mStatisticsPage: PageImage? = null
+
     private var maxWidth: Int? = 0
     private var maxHeight: Int? = 0
 
     init {
+        CropMemoryPlanner.attach(context)
         mOptions = CropImageOptions()
         val ta = context.obtainStyledAttributes(attributeSet, R.styleable.CropFrameLayout, 0, 0)
         try {
@@ -144,20 +205,252 @@ class CropImageView(context: Context, attributeSet: AttributeSet) : FrameLayout(
         val metrics = context.getResources().getDisplayMetrics()
         maxWidth = (metrics.widthPixels)
         maxHeight = (metrics.heightPixels) - context.resources.getDimension(R.dimen.tab_layout_height).toInt()
-        SimpleLog.i("BitmapUtils", "maxWidth:$maxWidth")
-        SimpleLog.i("BitmapUtils", "maxHeight:$maxHeight")
+        CropLog.d("BitmapUtils", "maxWidth: %s, maxHeight: %s", maxWidth, maxHeight)
         mCropWindowOperator = CropWindowOperator()
     }
 
     fun setImageBitmap(bitmap: Bitmap) {
+        // 取消之前通过 uri 的加载
+        mLoadGeneration++
+        mLoadingUri = null
+        mLoadedUri = null
         image_view.setImageBitmap(bitmap)
         reset()
         image_view.clearAnimation()
         crop_overlay_view.setCropWindowType(CREATE_ENCLOSE_CROP_WINDOW)
         mCropWindowOperator.applyImageMatrix(bitmap, RectF(0f, 0f, 0f, 0f), mBaseImageMatrix, mBaseImageInverseMatrix,
-                crop_overlay_view, 0, mScaleType, mAutoZoomEnabled, mZoom,
+                crop_overlay_view, mDegreesRotated, mScaleType, mAutoZoomEnabled, mZoom,
+                mZoomOffsetX, mZoomOffsetY, image_view, getAvailWidth().toFloat(),
+                getAvailHeight().toFloat(), mCropLayoutPadding.toFloat(), true, mLoadedSampleSize, false)
+        buildPageStatistics(bitmap, mLoadedSampleSize)
+    }
+
+    /**
+     * 显示按照 sampleSize 从 uri 解码的位图, 放大到位图不够清晰时从原图分块解码可见区域,
+     * 剪切框的坐标仍然是原图中的坐标
+     *
+     * @param degreesRotated 显示时旋转的角度, 一般是 EXIF 中记录的角度
+     */
+    fun setImageBitmap(bitmap: Bitmap, uri: Uri, sampleSize: Int, degreesRotated: Int = 0) {
+        image_view.setImageBitmap(bitmap, uri, sampleSize)
+        reset()
+        mLoadedUri = uri
+        mLoadedSampleSize = sampleSize
+        mDegreesRotated = degreesRotated
+        image_view.clearAnimation()
+        crop_overlay_view.setCropWindowType(CREATE_ENCLOSE_CROP_WINDOW)
+        mCropWindowOperator.applyImageMatrix(bitmap, RectF(0f, 0f, 0f, 0f), mBaseImageMatrix, mBaseImageInverseMatrix,
+                crop_overlay_view, mDegreesRotated, mScaleType, mAutoZoomEnabled, mZoom,
                 mZoomOffsetX, mZoomOffsetY, image_view, getAvailWidth().toFloat(),
                 getAvailHeight().toFloat(), mCropLayoutPadding.toFloat(), true, mLoadedSampleSize, false)
+        buildPageStatistics(bitmap, sampleSize)
+    }
+
+    fun setImageUri(uri: Uri) {
+        setImageUriAsync(uri)
+    }
+
+    /**
+     * 在后台线程中渐进式加载 uri 中的图片: 先显示 EXIF 缩略图, 再显示预览图, 最后换成按照请求大小解码的位图,
+     * 换图时剪切框在原图中的位置保持不变。图片按照 EXIF 中的方向旋转显示。
+     * 加载新的图片时取消之前的加载, 进度通过 [OnImageLoadListener] 通知。
+     *
+     * @param reqWidth  最终位图的请求宽度, 默认是当前View可以使用的最大宽度
+     * @param reqHeight 最终位图的请求高度, 默认是当前View可以使用的最大高度
+     */
+    fun setImageUriAsync(uri: Uri, reqWidth: Int = getAvailWidth(), reqHeight: Int = getAvailHeight()) {
+        val generation = ++mLoadGeneration
+        mLoadingUri = uri
+        mLoadedStage = 0
+        mOnImageLoadListener?.onImageLoading(uri)
+        mLoadExecutor.execute {
+            if (generation != mLoadGeneration) {
+                return@execute
+            }
+            try {
+                val degrees = BitmapUtils.getExifDegrees(context, uri)
+                val full = ProgressiveImageLoader.load(context, uri, reqWidth, reqHeight) { stage, sampled ->
+                    post { onImageStageLoaded(generation, uri, stage, sampled, degrees) }
+                    // 返回 false 时不再加载后面的阶段
+                    generation == mLoadGeneration
+                }
+                if (full == null && generation == mLoadGeneration) {
+                    post { onImageLoadFailed(generation, uri, RuntimeException("Failed to decode image: $uri")) }
+                }
+            } catch (e: Exception) {
+                CropLog.e("CropImageView", "Failed to load image: $uri", e)
+                post { onImageLoadFailed(generation, uri, e) }
+            }
+        }
+    }
+
+    /**
+     * 取消正在进行的加载, 已经显示的图片保持不变
+     */
+    fun cancelImageLoading() {
+        mLoadGeneration++
+    }
+
+    /**
+     * 当前显示的图片的 uri, 直接设置位图时为 null
+     */
+    fun getImageUri(): Uri? {
+        return mLoadingUri
+    }
+
+    fun setOnImageLoadListener(listener: OnImageLoadListener?) {
+        mOnImageLoadListener = listener
+    }
+
+    /**
+     * 打开每帧耗时的统计, 剪切框视图和图片视图的绘制耗时、触摸延迟等每帧回调一次。
+     *
+     * @param budgetMillis 帧预算, 超过时回调的 overBudget 为 true
+     * @param showHud      是否在剪切框视图左上角显示统计信息
+     */
+    fun enableFrameMetrics(listener: OverlayFrameMetrics.Listener?,
+                           budgetMillis: Float = OverlayFrameMetrics.DEFAULT_BUDGET_MILLIS,
+                           showHud: Boolean = false): OverlayFrameMetrics {
+        val metrics = mFrameMetrics ?: OverlayFrameMetrics()
+        metrics.setListener(listener)
+        metrics.setBudgetMillis(budgetMillis)
+        mFrameMetrics = metrics
+        crop_overlay_view.setFrameMetrics(metrics)
+        crop_overlay_view.setMetricsHudEnabled(showHud)
+        image_view.setFrameMetrics(metrics)
+        return metrics
+    }
+
+    /**
+     * 关闭每帧耗时的统计
+     */
+    fun disableFrameMetrics() {
+        mFrameMetrics = null
+        crop_overlay_view.setFrameMetrics(null)
+        image_view.setFrameMetrics(null)
+    }
+
+    fun getFrameMetrics(): OverlayFrameMetrics? {
+        return mFrameMetrics
+    }
+
+    private fun onImageStageLoaded(generation: Int, uri: Uri, stage: Int, sampled: BitmapUtils.BitmapSampled, degrees: Int) {
+        if (generation != mLoadGeneration || stage <= mLoadedStage) {
+            if (stage != ProgressiveImageLoader.STAGE_FULL) {
+                BitmapPool.getInstance().put(sampled.bitmap)
+            }
+            return
+        }
+        val previous = (image_view.drawable as? BitmapDrawable)?.bitmap
+        if (mLoadedStage == 0) {
+            setImageBitmap(sampled.bitmap, uri, sampled.sampleSize, degrees)
+        } else {
+            swapImageBitmap(sampled.bitmap, uri, sampled.sampleSize)
+            // 缩略图和预览图没有被缓存, 不再显示后可以重用
+            if (previous != null && previous != sampled.bitmap) {
+                BitmapPool.getInstance().put(previous)
+            }
+        }
+        mLoadedStage = stage
+        mOnImageLoadListener?.onImageStageLoaded(uri, stage, sampled.sampleSize)
+        if (stage == ProgressiveImageLoader.STAGE_FULL) {
+            mOnImageLoadListener?.onImageLoaded(uri, null)
+        }
+    }
+
+    private fun onImageLoadFailed(generation: Int, uri: Uri, error: Exception) {
+        if (generation == mLoadGeneration) {
+            mOnImageLoadListener?.onImageLoaded(uri, error)
+        }
+    }
+
+    /**
+     * 换成同一张图片的另一个分辨率, 剪切框通过 mBaseImageMatrix 和 mLoadedSampleSize 映射到新的位置
+     */
+    private fun swapImageBitmap(bitmap: Bitmap, uri: Uri, sampleSize: Int) {
+        val oldImageMatrix = Matrix(mBaseImageMatrix)
+        val oldSampleSize = mLoadedSampleSize
+        image_view.setImageBitmap(bitmap, uri, sampleSize)
+        mLoadedUri = uri
+        mLoadedSampleSize = sampleSize
+        mCropWindowOperator.swapImageMatrix(bitmap, oldImageMatrix, oldSampleSize, mBaseImageMatrix,
+                mBaseImageInverseMatrix, crop_overlay_view, mDegreesRotated, mScaleType, mAutoZoomEnabled, mZoom,
+                mZoomOffsetX, mZoomOffsetY, image_view, getAvailWidth().toFloat(), getAvailHeight().toFloat(),
+                mCropLayoutPadding.toFloat(), mLoadedSampleSize)
+        buildPageStatistics(bitmap, sampleSize)
+    }
+
+    /**
+     * 在调用线程中缩小显示的位图, 在后台建立积分图, 换图之后丢弃旧的统计
+     */
+    private fun buildPageStatistics(bitmap: Bitmap, sampleSize: Int) {
+        mPageStatistics = null
+        val generation = mLoadGeneration
+        val page = PageImage.from(bitmap, sampleSize, PageImage.DEFAULT_MAX_WIDTH)
+        mStatisticsPage = page
+        mLoadExecutor.execute {
+            val statistics = PageStatistics.build(page)
+            post {
+                // 加载了新的图片或者换成了更清晰的位图时, 以最后一次建立的为准
+                if (generation == mLoadGeneration && page === mStatisticsPage) {
+                    mPageStatistics = statistics
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前图片的积分图统计, 还没有建立完成时返回 null
+     */
+    fun getPageStatistics(): PageStatistics? {
+        return mPageStatistics
+    }
+
+    /**
+     * 给定的剪切框(视图坐标)是否是空白的, 统计还没有建立时返回 false
+     */
+    fun isBlankCropWindow(cropWindowRect: RectF): Boolean {
+        val statistics = mPageStatistics ?: return false
+        return statistics.isBlank(toImageRect(cropWindowRect))
+    }
+
+    /**
+     * 把全部剪切框收缩到其中内容的范围, 空白的剪切框保持不变, 统计还没有建立时不做任何修改
+     *
+     * @param padding 四周留出的空白(原图像素)
+     * @return 被收缩的剪切框数量
+     */
+    fun tightenCropWindows(padding: Float = 0f): Int {
+        val statistics = mPageStatistics ?: return 0
+        val rects = crop_overlay_view.getCropWindowRects()
+        val imageRects = ArrayList<RectF>(rects.size)
+        for (rect in rects) {
+            imageRects.add(toImageRect(rect))
+        }
+        val changed = statistics.tighten(imageRects, padding)
+        if (changed > 0) {
+            for (i in rects.indices) {
+                rects[i].set(toViewRect(imageRects[i]))
+            }
+            crop_overlay_view.updateCropWindowRects(rects)
+        }
+        return changed
+    }
+
+    // 剪切框(视图坐标)在原图中的外接矩形
+    private fun toImageRect(viewRect: RectF): RectF {
+        val points = getCropPoints(viewRect, mBaseImageMatrix)
+        return RectF(BitmapUtils.getRectLeft(points), BitmapUtils.getRectTop(points),
+                BitmapUtils.getRectRight(points), BitmapUtils.getRectBottom(points))
+    }
+
+    // 原图中的矩形在视图中的外接矩形
+    private fun toViewRect(imageRect: RectF): RectF {
+        val sampleSize = mLoadedSampleSize.toFloat()
+        val rect = RectF(imageRect.left / sampleSize, imageRect.top / sampleSize,
+                imageRect.right / sampleSize, imageRect.bottom / sampleSize)
+        mBaseImageMatrix.mapRect(rect)
+        return rect
     }
 
     // 打开或关闭裁剪功能
@@ -169,24 +462,116 @@ class CropImageView(context: Context, attributeSet: AttributeSet) : FrameLayout(
         }
     }
 
-    // 对拆题之后的单题进行剪切
+    /**
+     * 对当前显示的图片自动拆题, 拆出的题目作为拆题剪切框添加到剪切框视图中。
+     * 缩小图片在调用线程中完成, 投影的计算在后台线程中进行; 期间加载了新的图片时丢弃结果。
+     * 图片旋转了 90 或 270 度时屏幕上的竖直方向是原图的列, 按列拆分; 拆出的矩形用显示矩阵映射到视图,
+     * 按照屏幕上从上到下的顺序添加。
+     *
+     * @param listener 在 UI 线程中回调添加的剪切框数量
+     */
+    fun autoSplit(options: AutoSplitEngine.Options? = null, listener: ((Int) -> Unit)? = null) {
+        val bitmap = (image_view.drawable as? BitmapDrawable)?.bitmap
+        if (bitmap == null) {
+            listener?.invoke(0)
+            return
+        }
+        val generation = mLoadGeneration
+        val maxPageWidth = options?.maxPageWidth ?: PageImage.DEFAULT_MAX_WIDTH
+        // 统计已经建立时复用其中的灰度图, 不用再缩小一次
+        val statistics = mPageStatistics
+        val page = if (statistics != null && maxPageWidth == PageImage.DEFAULT_MAX_WIDTH) statistics.page
+                else PageImage.from(bitmap, mLoadedSampleSize, maxPageWidth)
+        val columns = mDegreesRotated % 180 != 0
+        mLoadExecutor.execute {
+            val bands = AutoSplitEngine.split(page, options, columns, AutoSplitEngine.getDefaultExecutor())
+            post {
+                var added = 0
+                // 期间旋转了图片时投影的方向已经不对, 同样丢弃
+                if (generation == mLoadGeneration && columns == (mDegreesRotated % 180 != 0)) {
+                    val viewRects = bands.map { toViewRect(it) }.sortedBy { it.top }
+                    crop_overlay_view.setCropWindowType(CREATE_SPLIT_CROP_WINDOW)
+                    added = crop_overlay_view.addSplitCropWindowsInView(viewRects)
+                }
+                listener?.invoke(added)
+            }
+        }
+    }
+
+    /**
+     * 对拆题之后的单题进行剪切, executor 不为空时各剪切框并行剪切。
+     * 显示的位图是从 uri 缩小解码的时候直接从原图剪切, 否则从 splitBitmap 剪切
+     *
+     * @param splitBitmap      当前显示的位图
+     * @param skipBlankWindows 为 true 时跳过空白的剪切框(需要统计已经建立), 跳过的剪切框不会产生结果,
+     *                         对应的 uri 也一起跳过
+     */
     fun cropSplitImage(splitBitmap: Bitmap, cropOverlayView: CropOverlayView, splitUriList: ArrayList<Uri>,
-                       splitCropWindowRects: MutableList<RectF>): ArrayList<CropResult> {
+                       splitCropWindowRects: MutableList<RectF>, executor: Executor? = null,
+                       skipBlankWindows: Boolean = false): ArrayList<CropResult> {
         val splitPoints = ArrayList<FloatArray>()
-        // 拆题剪切框区域列表
-        for (rect in splitCropWindowRects) {
-            if (rect.isEmpty) continue
-            val cropPoint = getCropPoints(rect, mBaseImageMatrix)
-            splitPoints.add(cropPoint)
+        val uriList = ArrayList<Uri>()
+        collectSplitWindows(splitCropWindowRects, splitUriList, skipBlankWindows, splitPoints, uriList)
+        val sourceUri = mLoadedUri
+        if (sourceUri != null && mLoadedSampleSize > 1) {
+            // 剪切点是原图坐标, 缩小的位图不能直接用, 从原图中只解码每个剪切框所在的区域
+            return CropImageTask.cropSplitAndEncloseImage(
+                    context,
+                    sourceUri,
+                    uriList,
+                    null,
+                    splitPoints,
+                    null,
+                    mDegreesRotated,
+                    cropOverlayView.isFixAspectRatio(),
+                    cropOverlayView.getAspectRatioX(),
+                    cropOverlayView.getAspectRatioY(),
+                    if (mOptions !== Enum.RequestSizeOptions.NONE) mOptions!!.maxCropResultWidth else 0,
+                    if (mOptions !== Enum.RequestSizeOptions.NONE) mOptions!!.maxCropResultHeight else 0,
+                    mOptions!!.outputRequestSizeOptions,
+                    mOptions!!.outputCompressFormat,
+                    mOptions!!.outputCompressQuality,
+                    mOptions!!.outputMaxBytes,
+                    executor)
         }
+        toBitmapPoints(splitPoints)
         return CropImageTask.cropSplitAndEncloseImage(
                 context,
                 splitBitmap,
-                splitUriList,
+                uriList,
                 null,
                 splitPoints,
                 null,
-                0,
+                mDegreesRotated,
+                cropOverlayView.isFixAspectRatio(),
+                cropOverlayView.getAspectRatioX(),
+                cropOverlayView.getAspectRatioY(),
+                if (mOptions !== Enum.RequestSizeOptions.NONE) mOptions!!.maxCropResultWidth else 0,
+                if (mOptions !== Enum.RequestSizeOptions.NONE) mOptions!!.maxCropResultHeight else 0,
+                mOptions!!.outputRequestSizeOptions,
+                mOptions!!.outputCompressFormat,
+                mOptions!!.outputCompressQuality,
+                mOptions!!.outputMaxBytes,
+                executor)
+    }
+
+    /**
+     * 通过分阶段的流水线([CropPipeline])剪切拆题的单题: 剪切在调用线程中进行, 压缩和写入在流水线自己的线程中同时进行,
+     * 同时存在的位图不超过 maxBitmapsInFlight 个, 剪切框很多时内存的峰值也是固定的。
+     * 剪切的来源和坐标的处理与 [cropSplitImage] 相同, 应该在后台线程中调用。
+     *
+     * @param splitBitmap 当前显示的位图
+     */
+    fun cropSplitImageInPipeline(splitBitmap: Bitmap, cropOverlayView: CropOverlayView, splitUriList: ArrayList<Uri>,
+                                 splitCropWindowRects: MutableList<RectF>,
+                                 maxBitmapsInFlight: Int = CropPipeline.DEFAULT_MAX_BITMAPS_IN_FLIGHT,
+                                 skipBlankWindows: Boolean = false): ArrayList<CropResult> {
+        val splitPoints = ArrayList<FloatArray>()
+        val uriList = ArrayList<Uri>()
+        collectSplitWindows(splitCropWindowRects, splitUriList, skipBlankWindows, splitPoints, uriList)
+        val pipeline = CropPipeline(
+                context,
+                mDegreesRotated,
                 cropOverlayView.isFixAspectRatio(),
                 cropOverlayView.getAspectRatioX(),
                 cropOverlayView.getAspectRatioY(),
@@ -194,13 +579,73 @@ class CropImageView(context: Context, attributeSet: AttributeSet) : FrameLayout(
                 if (mOptions !== Enum.RequestSizeOptions.NONE) mOptions!!.maxCropResultHeight else 0,
                 mOptions!!.outputRequestSizeOptions,
                 mOptions!!.outputCompressFormat,
-                mOptions!!.outputCompressQuality)
+                mOptions!!.outputCompressQuality,
+                mOptions!!.outputMaxBytes,
+                maxBitmapsInFlight,
+                Enum.SyncPolicy.NONE)
+        val sourceUri = mLoadedUri
+        if (sourceUri != null && mLoadedSampleSize > 1) {
+            // 剪切阶段只有调用线程一个, 一个区域解码器就够了
+            val session = try {
+                CropRegionSession.open(context, sourceUri, 1)
+            } catch (e: IOException) {
+                CropLog.w("CropImageView", "Failed to open $sourceUri", e)
+                // 每个剪切框都返回带有 error 的结果, 与剪切框一一对应
+                val results = ArrayList<CropResult>(uriList.size)
+                for (uri in uriList) {
+                    results.add(CropResult(uri, e))
+                }
+                return results
+            }
+            try {
+                return pipeline.run(session, CropPipeline.newWindows(uriList, null, splitPoints, null))
+            } finally {
+                session.close()
+            }
+        }
+        toBitmapPoints(splitPoints)
+        return pipeline.run(splitBitmap, CropPipeline.newWindows(uriList, null, splitPoints, null))
+    }
+
+    /**
+     * 拆题剪切框的剪切点(原图坐标)和对应的 uri, 跳过空的剪切框和(skipBlankWindows 时)空白的剪切框
+     */
+    private fun collectSplitWindows(splitCropWindowRects: List<RectF>, splitUriList: List<Uri>,
+                                    skipBlankWindows: Boolean, splitPoints: MutableList<FloatArray>,
+                                    uriList: MutableList<Uri>) {
+        val statistics = if (skipBlankWindows) mPageStatistics else null
+        for (i in splitCropWindowRects.indices) {
+            val rect = splitCropWindowRects[i]
+            if (rect.isEmpty) continue
+            val cropPoint = getCropPoints(rect, mBaseImageMatrix)
+            if (statistics != null && statistics.isBlank(RectF(BitmapUtils.getRectLeft(cropPoint),
+                            BitmapUtils.getRectTop(cropPoint), BitmapUtils.getRectRight(cropPoint),
+                            BitmapUtils.getRectBottom(cropPoint)))) {
+                continue
+            }
+            splitPoints.add(cropPoint)
+            uriList.add(splitUriList[i])
+        }
+    }
+
+    // 原图坐标换算为当前显示的位图中的坐标
+    private fun toBitmapPoints(points: List<FloatArray>) {
+        if (mLoadedSampleSize <= 1) {
+            return
+        }
+        val sampleSize = mLoadedSampleSize.toFloat()
+        for (point in points) {
+            for (i in point.indices) {
+                point[i] /= sampleSize
+            }
+        }
     }
 
     // 清除之前的图片及初始化一些数据
     fun reset() {
         mBaseImageMatrix.reset()
         mLoadedSampleSize = 1
+        mDegreesRotated = 0
     }
 
     // FragmentWidth就是屏幕宽度
@@ -249,7 +694,7 @@ class CropImageView(context: Context, attributeSet: AttributeSet) : FrameLayout(
             val file = CropFileUtils.createMediaFile(context, fileNameType)
             outputUri = Uri.fromFile(file)
         }
-        SimpleLog.i("CropManager", "outputUri: $outputUri")
+        CropLog.d("CropManager", "outputUri: %s", outputUri)
         return outputUri
     }
 
@@ -267,4 +712,29 @@ class CropImageView(context: Context, attributeSet: AttributeSet) : FrameLayout(
         }
         return points
     }
-}
\ No newline at end of file
+
+    /**
+     * 通过 uri 加载图片的监听器, 在主线程中回调
+     */
+    interface OnImageLoadListener {
+
+        /**
+         * 开始加载
+         */
+        fun onImageLoading(uri: Uri)
+
+        /**
+         * 显示了渐进式加载的一个阶段
+         *
+         * @param stage      [ProgressiveImageLoader.STAGE_THUMBNAIL], [ProgressiveImageLoader.STAGE_PREVIEW]
+         *                   或者 [ProgressiveImageLoader.STAGE_FULL]
+         * @param sampleSize 当前显示的位图相对原图的 inSampleSize
+         */
+        fun onImageStageLoaded(uri: Uri, stage: Int, sampleSize: Int)
+
+        /**
+         * 加载完成, 失败时 error 不为 null。被取消的加载不会回调。
+         */
+        fun onImageLoaded(uri: Uri, error: Exception?)
+    }
+}
@@ -19,23 +19,28 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Region;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
 
 import com.cherry.cropper.R;
+import com.cherry.cropper.handler.BitmapPool;
 import com.cherry.cropper.handler.BitmapUtils;
 import com.cherry.cropper.handler.CropImageOptions;
 import com.cherry.cropper.handler.CropWindowHandler;
 import com.cherry.cropper.handler.CropWindowMoveHandler;
 import com.cherry.cropper.utils.Enum;
-import com.cherry.cropper.utils.SimpleLog;
+import com.cherry.cropper.utils.CropLog;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -50,6 +55,32 @@ public class CropOverlayView extends View {
 
     private static final String TAG = "OCR:" + CropOverlayView.class.getName();
 
+    /**
+     * 圆形边角的半径
+     */
+    private static final float CORNER_HANDLE_RADIUS = 10;
+
+    /**
+     * 拆题剪切框的边框和边角颜色
+     */
+    private static final int SPLIT_WINDOW_COLOR = 0xFFFF9900;
+
+    /**
+     * 圈图剪切框的边框和边角颜色
+     */
+    private static final int ENCLOSE_WINDOW_COLOR = 0xFF7ACC52;
+
+    /**
+     * 调试信息的文字大小和边距(像素)
+     */
+    private static final float HUD_TEXT_SIZE = 28;
+    private static final float HUD_PADDING = 12;
+
+    /**
+     * 局部刷新时额外扩大的范围, 包含抗锯齿的像素
+     */
+    private static final float DIRTY_MARGIN = 2;
+
     /**
      * Gesture detector used for multi touch box scaling
      */
@@ -76,6 +107,89 @@ public class CropOverlayView extends View {
      */
     private final RectF mDrawRect = new RectF();
 
+    /**
+     * 绘制未激活的剪切框时复制剪切框的位置
+     */
+    private final RectF mWindowRect = new RectF();
+
+    /**
+     * 局部刷新的区域, 激活的剪切框变化前后绘制范围的并集
+     */
+    private final RectF mDirtyRect = new RectF();
+
+    /**
+     * 计算绘制范围时使用, 避免每次移动都创建新的矩形
+     */
+    private final RectF mDirtyBounds = new RectF();
+
+    private final Rect mInvalidateRect = new Rect();
+
+    /**
+     * 每帧耗时的统计, 为 null 时不统计
+     */
+    private OverlayFrameMetrics mFrameMetrics;
+
+    /**
+     * 是否在左上角显示每帧耗时的调试信息
+     */
+    private boolean mShowMetricsHud;
+
+    private Paint mHudTextPaint;
+    private Paint mHudBackgroundPaint;
+    private final RectF mHudRect = new RectF();
+
+    /**
+     * 最近一次触摸事件的时间, 用于统计触摸到刷新的延迟
+     */
+    private long mLastEventTime;
+
+    /**
+     * 拖动时的触摸点合并到下一帧统一处理, 高刷新率的触摸屏每帧会收到多个事件
+     */
+    private final Choreographer.FrameCallback mMoveFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mMoveFramePosted = false;
+            flushPendingMoves();
+        }
+    };
+
+    private boolean mMoveFramePosted;
+
+    /**
+     * 等待处理的触摸点(x0,y0,x1,y1...), 不保留历史点时只有最新的一个
+     */
+    private float[] mPendingMoves = new float[16];
+    private int mPendingMoveCount;
+
+    /**
+     * 是否按顺序处理事件中的全部历史触摸点, 吸附到边界和固定宽高比时轨迹更准确
+     */
+    private boolean mPreciseMoveEnabled;
+
+    /**
+     * 拖动中通知监听器的方式和间隔
+     */
+    private Enum.ChangeNotifyMode mChangeNotifyMode = Enum.ChangeNotifyMode.IMMEDIATE;
+    private long mChangeNotifyIntervalMillis;
+    private long mLastChangeNotifyTime;
+    private boolean mChangeNotifyPending;
+
+    private final Runnable mChangeNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mChangeNotifyPending = false;
+            mLastChangeNotifyTime = SystemClock.uptimeMillis();
+            callOnCropWindowChanged(true, null);
+        }
+    };
+
+    /**
+     * 这一帧添加到背景路径中的矩形数量, 是否重建了缓存
+     */
+    private int mFramePathRects;
+    private boolean mFrameLayerRebuilt;
+
     /**
      * 用于画矩形边线的Paint
      */
@@ -104,16 +218,33 @@ public class CropOverlayView extends View {
     private Path mPath = new Path();
 
     /**
-     * 用于记录被激活的裁剪区域
+     * 用于记录 未被激活裁剪区域 - 激活裁剪区域（两者取差集）
      * ADD BY OKAY: lucien liu
      */
-    private Path mActivatedPath = new Path();
+    private Path mUnactivatedPath = new Path();
 
     /**
-     * 用于记录 未被激活裁剪区域 - 激活裁剪区域（两者取差集）
-     * ADD BY OKAY: lucien liu
+     * 未激活的剪切框、它们的边框和背景的缓存。拖动剪切框时这些内容不变,
+     * 每帧只需要绘制缓存和激活的剪切框。
      */
-    private Path mUnactivatedPath = new Path();
+    private Bitmap mStaticLayer;
+
+    /**
+     * 不再使用的缓存, 上一帧的显示列表可能还在引用, 下一帧开始时才放回位图池
+     */
+    private final ArrayList<Bitmap> mRetiredStaticLayers = new ArrayList<>();
+
+    private final Canvas mStaticLayerCanvas = new Canvas();
+
+    /**
+     * 缓存对应的图像位置和样式是否还有效
+     */
+    private boolean mStaticLayerValid;
+
+    /**
+     * 缓存对应的未激活剪切框的版本, 见 {@link CropWindowHandler#getInactiveVersion()}
+     */
+    private int mStaticLayerVersion;
 
     /**
      * The bounding box around the Bitmap that we are cropping.
@@ -171,6 +302,16 @@ public class CropOverlayView extends View {
      */
     private CropWindowMoveHandler mMoveHandler;
 
+    /**
+     * 重用的移动处理对象, 每次按下时重新初始化, 不创建新的对象
+     */
+    private CropWindowMoveHandler mReusableMoveHandler;
+
+    /**
+     * 滑动创建剪切框时使用的矩形
+     */
+    private final RectF mNewWindowRect = new RectF();
+
     /**
      * Flag indicating if the crop area should always be a certain aspect ratio (indicated by mTargetAspectRatio).
      * 长宽比是否固定
@@ -240,7 +381,38 @@ public class CropOverlayView extends View {
         this.allowSlideRect = allow;
     }
 
+    /**
+     * 设置每帧耗时的统计, 为 null 时不统计
+     */
+    public void setFrameMetrics(OverlayFrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+        if (frameMetrics == null) {
+            setMetricsHudEnabled(false);
+        }
+    }
+
+    public OverlayFrameMetrics getFrameMetrics() {
+        return mFrameMetrics;
+    }
+
+    /**
+     * 是否在左上角显示每帧耗时的调试信息, 需要先设置 {@link #setFrameMetrics(OverlayFrameMetrics)}
+     */
+    public void setMetricsHudEnabled(boolean enabled) {
+        if (mShowMetricsHud != enabled) {
+            mShowMetricsHud = enabled;
+            if (enabled && mHudTextPaint == null) {
+                mHudTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                mHudTextPaint.setColor(Color.WHITE);
+                mHudTextPaint.setTextSize(HUD_TEXT_SIZE);
+                mHudBackgroundPaint = getNewPaint(0x99000000);
+            }
+            invalidate();
+        }
+    }
+
     public int setCropWindowType(int cropWindowType) {
+        invalidateStaticLayer();
         return this.cropWindowType = cropWindowType;
     }
 
@@ -275,6 +447,26 @@ public class CropOverlayView extends View {
         mCropWindowChangeListener = listener;
     }
 
+    /**
+     * 设置裁剪窗口变化的监听器, 拖动中按照给定的方式限制通知的频率, 拖动结束时总是立即通知
+     *
+     * @param intervalMillis 节流或者防抖的间隔, <= 0 时每次变化都通知
+     */
+    public void setCropWindowChangeListener(CropWindowChangeListener listener, Enum.ChangeNotifyMode mode,
+                                            long intervalMillis) {
+        mCropWindowChangeListener = listener;
+        mChangeNotifyMode = mode != null ? mode : Enum.ChangeNotifyMode.IMMEDIATE;
+        mChangeNotifyIntervalMillis = intervalMillis;
+        cancelPendingChangeNotify();
+    }
+
+    /**
+     * 是否按顺序处理每个触摸事件中的历史触摸点, 默认只处理每帧最新的触摸点
+     */
+    public void setPreciseMoveEnabled(boolean enabled) {
+        mPreciseMoveEnabled = enabled;
+    }
+
     /**
      * 获取激活状态下的裁剪窗口矩形
      */
@@ -289,6 +481,69 @@ public class CropOverlayView extends View {
         mCropWindowHandler.clearRects();
     }
 
+    /**
+     * 按照 {@link #getCropWindowRects()} 的顺序更新全部剪切框的位置, 顺序和激活状态不变
+     */
+    public void updateCropWindowRects(List<RectF> rects) {
+        int count = Math.min(rects.size(), mCropWindowHandler.getRectCount());
+        for (int z = 0; z < count; z++) {
+            mCropWindowHandler.setRectAt(z, rects.get(z));
+        }
+        invalidateStaticLayer();
+        invalidate();
+    }
+
+    /**
+     * 添加自动拆题或者从后台获取的拆题剪切框, 矩形是原图的坐标, 宽度铺满图像。
+     * 最后一个剪切框成为激活的剪切框。
+     *
+     * @return 添加的剪切框数量
+     */
+    public int addSplitCropWindows(List<RectF> imageRects) {
+        return addSplitCropWindows(imageRects, true);
+    }
+
+    /**
+     * 添加已经映射到视图坐标的拆题剪切框, 比如按照图片的显示矩阵(包括旋转)映射的自动拆题结果。
+     * 剪切框的宽度铺满图像, 超出图像的部分被截掉, 最后一个剪切框成为激活的剪切框。
+     *
+     * @return 添加的剪切框数量
+     */
+    public int addSplitCropWindowsInView(List<RectF> viewRects) {
+        return addSplitCropWindows(viewRects, false);
+    }
+
+    private int addSplitCropWindows(List<RectF> rects, boolean imageCoords) {
+        float leftLimit = Math.max(BitmapUtils.getRectLeft(mBoundsPoints), 0);
+        float topLimit = Math.max(BitmapUtils.getRectTop(mBoundsPoints), 0);
+        float rightLimit = Math.min(BitmapUtils.getRectRight(mBoundsPoints), mViewRight);
+        float bottomLimit = Math.min(BitmapUtils.getRectBottom(mBoundsPoints), mViewBottom);
+        if (rightLimit <= leftLimit || bottomLimit <= topLimit) {
+            return 0;
+        }
+        int added = 0;
+        for (RectF rect : rects) {
+            mNewWindowRect.set(rect);
+            if (imageCoords) {
+                scaleRect(mNewWindowRect, leftLimit, topLimit);
+            }
+            mNewWindowRect.left = leftLimit;
+            mNewWindowRect.right = rightLimit;
+            mNewWindowRect.top = Math.max(mNewWindowRect.top, topLimit);
+            mNewWindowRect.bottom = Math.min(mNewWindowRect.bottom, bottomLimit);
+            if (mNewWindowRect.height() < mCropWindowHandler.getMinCropHeight()) {
+                continue;
+            }
+            mCropWindowHandler.addRect(mNewWindowRect);
+            added++;
+        }
+        if (added > 0) {
+            invalidateStaticLayer();
+            invalidate();
+        }
+        return added;
+    }
+
     /**
      * 获取全部 CropOverlayView 下的裁剪窗口
      *
@@ -324,7 +579,16 @@ public class CropOverlayView extends View {
      * @param boundsPoints 图像的边界点
      */
     public void setBounds(float[] boundsPoints, int viewRight, int viewBottom) {
-        SimpleLog.i("CropOverlayView", "setBounds()");
+        CropLog.v(TAG, "setBounds()");
+        updateBounds(boundsPoints, viewRight, viewBottom);
+        initCropWindow();
+    }
+
+    /**
+     * 更新图像的边界点, 不重新初始化剪切框。
+     * 用于换成同一张图片的另一个分辨率, 剪切框由 {@link #mapCropWindows(Matrix)} 映射到新的位置
+     */
+    public void updateBounds(float[] boundsPoints, int viewRight, int viewBottom) {
         if (boundsPoints == null) {
             Arrays.fill(mBoundsPoints, 0);
         } else if (!Arrays.equals(mBoundsPoints, boundsPoints)) {
@@ -334,11 +598,20 @@ public class CropOverlayView extends View {
         viewTop = (int)BitmapUtils.getRectTop(mBoundsPoints);
         mViewRight = viewRight;
         mViewBottom = viewBottom;
+        invalidateStaticLayer();
 //        SimpleLog.i("CropOverlayView", "viewLeft: " + viewLeft);
 //        SimpleLog.i("CropOverlayView", "viewTop: " + viewTop);
 //        SimpleLog.i("CropOverlayView", "viewRight: " + viewRight);
 //        SimpleLog.i("CropOverlayView", "mViewBottom: " + mViewBottom);
-        initCropWindow();
+        invalidate();
+    }
+
+    /**
+     * 用给定的矩阵变换全部剪切框
+     */
+    public void mapCropWindows(Matrix matrix) {
+        mCropWindowHandler.mapRects(matrix);
+        invalidate();
     }
 
     /**
@@ -354,6 +627,7 @@ public class CropOverlayView extends View {
     public void setCropShape(Enum.CropShape cropShape) {
         if (mCropShape != cropShape) {
             mCropShape = cropShape;
+            invalidateStaticLayer();
             if (Build.VERSION.SDK_INT >= 11 && Build.VERSION.SDK_INT <= 17) {
                 if (mCropShape == Enum.CropShape.OVAL) {
                     mOriginalLayerType = getLayerType();
@@ -407,7 +681,7 @@ public class CropOverlayView extends View {
             mFixAspectRatio = fixAspectRatio;
             if (initializedCropWindow) {
                 initCropWindow();
-                SimpleLog.i("CropOverlayView", "setFixedAspectRatio()");
+                CropLog.d(TAG, "setFixedAspectRatio()");
                 invalidate();
             }
         }
@@ -431,7 +705,7 @@ public class CropOverlayView extends View {
             mTargetAspectRatio = ((float) mAspectRatioX) / mAspectRatioY;
 
             if (initializedCropWindow) {
-                SimpleLog.i("CropOverlayView", "setAspectRatioX()");
+                CropLog.d(TAG, "setAspectRatioX()");
                 initCropWindow();
                 invalidate();
             }
@@ -456,7 +730,7 @@ public class CropOverlayView extends View {
             mTargetAspectRatio = ((float) mAspectRatioX) / mAspectRatioY;
 
             if (initializedCropWindow) {
-                SimpleLog.i("CropOverlayView", "setAspectRatioY()");
+                CropLog.d(TAG, "setAspectRatioY()");
                 initCropWindow();
                 invalidate();
             }
@@ -500,9 +774,12 @@ public class CropOverlayView extends View {
      */
     public void setInitialCropWindowRect() {
         if (initializedCropWindow) {
-            SimpleLog.i("CropOverlayView", "setInitialCropWindowRect()");
-            initCropWindow();
-            invalidate();
+            CropLog.d(TAG, "setInitialCropWindowRect()");
+            // 新的剪切框成为激活的剪切框, 只有原来激活的剪切框和新剪切框的范围需要重绘
+            beginDirtyRegion(mCropWindowHandler.getRect());
+            if (addInitialCropWindow()) {
+                invalidateDirtyRegion(mCropWindowHandler.getRect());
+            }
             callOnCropWindowChanged(false, null);
         }
     }
@@ -549,18 +826,29 @@ public class CropOverlayView extends View {
 
         // 裁剪框关闭按钮
         delBtnBM = BitmapFactory.decodeResource(getResources(), R.drawable.icon_close);
+
+        invalidateStaticLayer();
     }
 
     /**
      * 设置初始裁剪窗口的大小和位置。 这取决于被裁剪图像的大小和位置。
      */
     public void initCropWindow() {
+        if (addInitialCropWindow()) {
+            invalidate(); // 刷新界面
+        }
+    }
+
+    /**
+     * 按照图像的位置添加初始的剪切框, 图像不在视图内时返回 false
+     */
+    private boolean addInitialCropWindow() {
         float leftLimit = Math.max(BitmapUtils.getRectLeft(mBoundsPoints), 0);
         float topLimit = Math.max(BitmapUtils.getRectTop(mBoundsPoints), 0);
         float rightLimit = Math.min(BitmapUtils.getRectRight(mBoundsPoints), mViewRight);
         float bottomLimit = Math.min(BitmapUtils.getRectBottom(mBoundsPoints), mViewBottom);
         if (rightLimit <= leftLimit || bottomLimit <= topLimit) {
-            return;
+            return false;
         }
         // 告诉属性函数裁剪窗口已经初始化
         initializedCropWindow = true;
@@ -579,7 +867,7 @@ public class CropOverlayView extends View {
             fixCropWindowRectByRules(rect);
             mCropWindowHandler.addRect(rect);
         }
-        invalidate(); // 刷新界面
+        return true;
     }
 
     // 对从后台获取的矩形坐标进行等比例放大及位置处理
@@ -600,7 +888,7 @@ public class CropOverlayView extends View {
             rectF.right = width;
             rectF.bottom = (rectF.bottom - topLimit) * mCropWindowHandler.mScaleFactorHeight;
             primitiveRectF.add(rectF);
-            SimpleLog.i(TAG, "primitiveRectF: " + rectF);
+            CropLog.d(TAG, "primitiveRectF: %s", rectF);
         }
         return primitiveRectF;
     }
@@ -669,7 +957,12 @@ public class CropOverlayView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        SimpleLog.i("CropOverlayView", "onDraw");
+        recycleRetiredStaticLayers();
+        if (mFrameMetrics != null) {
+            mFrameMetrics.beginFrame();
+            mFramePathRects = 0;
+            mFrameLayerRebuilt = false;
+        }
         if (mCropWindowHandler.showGuidelines()) {
             // 决定是否要显示剪切框内的分割线
             if (mGuidelines == Enum.Guidelines.ON) {
@@ -680,94 +973,233 @@ public class CropOverlayView extends View {
             }
         }
 
-        drawBackground(canvas);
-        drawBorders(canvas);
+        if (mCropShape == Enum.CropShape.RECTANGLE) {
+            drawRectangleWindows(canvas);
+        } else {
+            drawBackground(canvas);
+            drawBorders(canvas);
+        }
         drawCorners(canvas);
+
+        if (mFrameMetrics != null) {
+            mFrameMetrics.endFrame(mCropWindowHandler.getRectCount(), mFramePathRects, mFrameLayerRebuilt);
+            if (mShowMetricsHud) {
+                drawMetricsHud(canvas);
+            }
+        }
+    }
+
+    /**
+     * 在左上角显示最近的帧耗时百分位数、输入延迟和最后一帧的布局状态
+     */
+    private void drawMetricsHud(Canvas canvas) {
+        OverlayFrameMetrics metrics = mFrameMetrics;
+        String frame = "frame p50/p90/p99: " + formatMillis(metrics.getFramePercentileNanos(50))
+                + "/" + formatMillis(metrics.getFramePercentileNanos(90))
+                + "/" + formatMillis(metrics.getFramePercentileNanos(99)) + "ms"
+                + " slow: " + metrics.getSlowFrameCount() + "/" + metrics.getFrameCount();
+        String latency = "input p50/p90: " + metrics.getInputLatencyPercentileMillis(50)
+                + "/" + metrics.getInputLatencyPercentileMillis(90) + "ms";
+        String layout = "windows: " + metrics.getLastWindowCount() + " pathRects: " + metrics.getLastPathRects()
+                + (metrics.isLastLayerRebuilt() ? " rebuilt" : "");
+        float lineHeight = HUD_TEXT_SIZE * 1.2f;
+        float width = Math.max(mHudTextPaint.measureText(frame),
+                Math.max(mHudTextPaint.measureText(latency), mHudTextPaint.measureText(layout)));
+        mHudRect.set(0, 0, width + HUD_PADDING * 2, lineHeight * 3 + HUD_PADDING * 2);
+        canvas.drawRect(mHudRect, mHudBackgroundPaint);
+        float x = HUD_PADDING;
+        float y = HUD_PADDING + HUD_TEXT_SIZE;
+        canvas.drawText(frame, x, y, mHudTextPaint);
+        canvas.drawText(latency, x, y + lineHeight, mHudTextPaint);
+        canvas.drawText(layout, x, y + lineHeight * 2, mHudTextPaint);
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.valueOf(Math.round(nanos / 100000f) / 10f);
     }
 
     /**
-     * 为裁剪区域绘制半透明背景。
+     * 记录触摸事件到刷新的延迟
      */
-    private void drawBackground(Canvas canvas) {
+    private void recordInputLatency() {
+        if (mFrameMetrics != null && mLastEventTime > 0) {
+            mFrameMetrics.recordInputLatency(SystemClock.uptimeMillis() - mLastEventTime);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mCropWindowHandler.setViewSize(w, h);
+        invalidateStaticLayer();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelPendingMoves();
+        cancelPendingChangeNotify();
+        releaseStaticLayer();
+        // 已经不再显示, 不会再有下一帧, 缓存不再放回位图池
+        mRetiredStaticLayers.clear();
+    }
+
+    /**
+     * 图像位置或者样式变化之后, 下次绘制时重新生成未激活剪切框的缓存
+     */
+    private void invalidateStaticLayer() {
+        mStaticLayerValid = false;
+    }
+
+    private void releaseStaticLayer() {
+        if (mStaticLayer != null) {
+            // 可能是在 onDraw 中替换的, 其它线程从位图池中取出后会被覆盖
+            mRetiredStaticLayers.add(mStaticLayer);
+            mStaticLayer = null;
+        }
+        mStaticLayerValid = false;
+    }
+
+    /**
+     * 把之前的帧中不再使用的缓存放回位图池, 在 onDraw 开始时调用
+     */
+    private void recycleRetiredStaticLayers() {
+        for (int i = 0; i < mRetiredStaticLayers.size(); i++) {
+            BitmapPool.getInstance().put(mRetiredStaticLayers.get(i));
+        }
+        mRetiredStaticLayers.clear();
+    }
+
+    /**
+     * 绘制矩形剪切框: 背景和未激活的剪切框来自缓存, 只有激活的剪切框每帧重新绘制
+     */
+    private void drawRectangleWindows(Canvas canvas) {
+        if (!ensureStaticLayer()) {
+            return;
+        }
         RectF rect = mCropWindowHandler.getRect();
+        canvas.save();
+        // 激活的剪切框内不显示背景和未激活剪切框的颜色
+        canvas.clipRect(rect, Region.Op.DIFFERENCE);
+        canvas.drawBitmap(mStaticLayer, 0, 0, null);
+        canvas.restore();
+
+        if (mBorderPaint != null && mCropWindowHandler.getRectCount() > 0) {
+            float w = mBorderPaint.getStrokeWidth();
+            updateBorderColor();
+            rect.inset(w / 2, w / 2);
+            canvas.drawRect(rect, mBorderPaint);
+        }
+    }
+
+    /**
+     * 检查缓存是否有效, 无效时重新绘制。视图还没有大小时返回 false。
+     */
+    private boolean ensureStaticLayer() {
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (mStaticLayer == null || mStaticLayer.getWidth() != width || mStaticLayer.getHeight() != height) {
+            releaseStaticLayer();
+            mStaticLayer = BitmapPool.getInstance().obtain(width, height, Bitmap.Config.ARGB_8888);
+        }
+        int version = mCropWindowHandler.getInactiveVersion();
+        if (!mStaticLayerValid || mStaticLayerVersion != version) {
+            mFrameLayerRebuilt = true;
+            mStaticLayer.eraseColor(Color.TRANSPARENT);
+            mStaticLayerCanvas.setBitmap(mStaticLayer);
+            drawInactiveWindows(mStaticLayerCanvas);
+            mStaticLayerCanvas.setBitmap(null);
+            mStaticLayerValid = true;
+            mStaticLayerVersion = version;
+        }
+        return true;
+    }
+
+    /**
+     * 在缓存中绘制背景、未激活的剪切框和它们的边框。
+     * 背景覆盖激活的剪切框所在的位置, 绘制缓存时再去掉激活的剪切框, 所以激活的剪切框移动时缓存不变。
+     */
+    private void drawInactiveWindows(Canvas canvas) {
         float left = Math.max(BitmapUtils.getRectLeft(mBoundsPoints), 0);
         float top = Math.max(BitmapUtils.getRectTop(mBoundsPoints), 0);
         float right = Math.min(BitmapUtils.getRectRight(mBoundsPoints), mViewRight);
         float bottom = Math.min(BitmapUtils.getRectBottom(mBoundsPoints), mViewBottom);
 
-        if (mCropShape == Enum.CropShape.RECTANGLE) {
-
-           /* if (!isNonStraightAngleRotated() || Build.VERSION.SDK_INT <= 17) {
-                canvas.drawRect(left, top, right, rect.top, mBackgroundPaint);
-                canvas.drawRect(left, rect.bottom, right, bottom, mBackgroundPaint);
-                canvas.drawRect(left, rect.top, rect.left, rect.bottom, mBackgroundPaint);
-                canvas.drawRect(rect.right, rect.top, right, rect.bottom, mBackgroundPaint);
-            } else {
-                mPath.reset();
-                mPath.moveTo(mBoundsPoints[0], mBoundsPoints[1]);
-                mPath.lineTo(mBoundsPoints[2], mBoundsPoints[3]);
-                mPath.lineTo(mBoundsPoints[4], mBoundsPoints[5]);
-                mPath.lineTo(mBoundsPoints[6], mBoundsPoints[7]);
-                mPath.close();
-
-                canvas.save();
-                canvas.clipPath(mPath, Region.Op.INTERSECT);
-                canvas.clipRect(rect, Region.Op.XOR);
-                canvas.drawRect(left, top, right, bottom, mBackgroundPaint);
-                canvas.restore();
-//            }*/
-
-            List<RectF> rectFs = mCropWindowHandler.getRects();
-            mPath.reset();
-            mPath.moveTo(mBoundsPoints[0], mBoundsPoints[1]);
-            mPath.lineTo(mBoundsPoints[2], mBoundsPoints[3]);
-            mPath.lineTo(mBoundsPoints[4], mBoundsPoints[5]);
-            mPath.lineTo(mBoundsPoints[6], mBoundsPoints[7]);
-            mPath.close();
-
-            mActivatedPath.reset();
-            mUnactivatedPath.reset();
-
-            //激活的裁剪区域
-            mActivatedPath.addRect(mCropWindowHandler.getRect(), Path.Direction.CW);
-
-            //未激活的裁剪区域
-            for (int i = 0; i < rectFs.size() - 1; i++) {
-                mUnactivatedPath.addRect(rectFs.get(i), Path.Direction.CW);
-            }
-
-            //未激活裁剪区域 - 激活裁剪区域
-            if (rectFs.size() > 1) {
-                canvas.save();
-                canvas.clipPath(mUnactivatedPath, Region.Op.INTERSECT);
-                canvas.clipPath(mActivatedPath, Region.Op.DIFFERENCE);
-                canvas.drawRect(left, top, right, bottom, mUnactivatedPaint);
-                canvas.restore();
+        mPath.reset();
+        mPath.moveTo(mBoundsPoints[0], mBoundsPoints[1]);
+        mPath.lineTo(mBoundsPoints[2], mBoundsPoints[3]);
+        mPath.lineTo(mBoundsPoints[4], mBoundsPoints[5]);
+        mPath.lineTo(mBoundsPoints[6], mBoundsPoints[7]);
+        mPath.close();
+
+        //未激活的裁剪区域, 最后一个是激活的剪切框。只处理可见区域内的剪切框
+        int activeIndex = mCropWindowHandler.getRectCount() - 1;
+        int count = mCropWindowHandler.queryRects(left, top, right, bottom);
+        boolean hasInactive = false;
+        mUnactivatedPath.reset();
+        for (int n = 0; n < count; n++) {
+            int z = mCropWindowHandler.getQueryResult(n);
+            if (z != activeIndex) {
+                mUnactivatedPath.addRect(mCropWindowHandler.getLeft(z), mCropWindowHandler.getTop(z),
+                        mCropWindowHandler.getRight(z), mCropWindowHandler.getBottom(z), Path.Direction.CW);
+                hasInactive = true;
+                mFramePathRects++;
             }
+        }
 
-            //全集 - （未激活裁剪区域 与 激活裁剪区域的 并集）
-            mUnactivatedPath.addPath(mActivatedPath);
+        if (hasInactive) {
             canvas.save();
-            canvas.clipPath(mPath, Region.Op.INTERSECT);
-            canvas.clipPath(mUnactivatedPath, Region.Op.DIFFERENCE);
-            canvas.drawRect(left, top, right, bottom, mBackgroundPaint);
+            canvas.clipPath(mUnactivatedPath, Region.Op.INTERSECT);
+            canvas.drawRect(left, top, right, bottom, mUnactivatedPaint);
             canvas.restore();
+        }
 
-        } else {
-            mPath.reset();
-            if (Build.VERSION.SDK_INT >= 11 && Build.VERSION.SDK_INT <= 17 && mCropShape == Enum.CropShape.OVAL) {
-                mDrawRect.set(rect.left + 2, rect.top + 2, rect.right - 2, rect.bottom - 2);
-            } else {
-                mDrawRect.set(rect.left, rect.top, rect.right, rect.bottom);
+        //全集 - 未激活裁剪区域
+        canvas.save();
+        canvas.clipPath(mPath, Region.Op.INTERSECT);
+        canvas.clipPath(mUnactivatedPath, Region.Op.DIFFERENCE);
+        canvas.drawRect(left, top, right, bottom, mBackgroundPaint);
+        canvas.restore();
+
+        if (mBorderPaint != null) {
+            float w = mBorderPaint.getStrokeWidth();
+            updateBorderColor();
+            for (int n = 0; n < count; n++) {
+                int z = mCropWindowHandler.getQueryResult(n);
+                if (z != activeIndex) {
+                    canvas.drawRect(mCropWindowHandler.getLeft(z) + w / 2, mCropWindowHandler.getTop(z) + w / 2,
+                            mCropWindowHandler.getRight(z) - w / 2, mCropWindowHandler.getBottom(z) - w / 2, mBorderPaint);
+                }
             }
-            mPath.addOval(mDrawRect, Path.Direction.CW);
-            canvas.save();
-            canvas.clipPath(mPath, Region.Op.XOR);
-            canvas.drawRect(left, top, right, bottom, mBackgroundPaint);
-            canvas.restore();
         }
     }
 
+    /**
+     * 为椭圆裁剪区域绘制半透明背景。矩形的背景见 {@link #drawInactiveWindows(Canvas)}
+     */
+    private void drawBackground(Canvas canvas) {
+        RectF rect = mCropWindowHandler.getRect();
+        float left = Math.max(BitmapUtils.getRectLeft(mBoundsPoints), 0);
+        float top = Math.max(BitmapUtils.getRectTop(mBoundsPoints), 0);
+        float right = Math.min(BitmapUtils.getRectRight(mBoundsPoints), mViewRight);
+        float bottom = Math.min(BitmapUtils.getRectBottom(mBoundsPoints), mViewBottom);
+
+        mPath.reset();
+        if (Build.VERSION.SDK_INT >= 11 && Build.VERSION.SDK_INT <= 17 && mCropShape == Enum.CropShape.OVAL) {
+            mDrawRect.set(rect.left + 2, rect.top + 2, rect.right - 2, rect.bottom - 2);
+        } else {
+            mDrawRect.set(rect.left, rect.top, rect.right, rect.bottom);
+        }
+        mPath.addOval(mDrawRect, Path.Direction.CW);
+        canvas.save();
+        canvas.clipPath(mPath, Region.Op.XOR);
+        canvas.drawRect(left, top, right, bottom, mBackgroundPaint);
+        canvas.restore();
+    }
+
     /**
      * 在裁剪区域内画两条垂直和两条水平的线，将其分成9等份。
      */
@@ -821,26 +1253,13 @@ public class CropOverlayView extends View {
     private void drawBorders(Canvas canvas) {
         if (mBorderPaint != null) {
 
-            List<RectF> rectFs = mCropWindowHandler.getRects();
             float w = mBorderPaint.getStrokeWidth();
+            updateBorderColor();
 
-            int borderColor = options.borderLineColor;
-            switch (cropWindowType) {
-                case CREATE_SPLIT_CROP_WINDOW:
-                    borderColor = Color.parseColor("#FF9900");
-                    break;
-                case CREATE_ENCLOSE_CROP_WINDOW:
-                    borderColor = Color.parseColor("#7ACC52");
-                    break;
-            }
-            // 不同类型的裁剪框具有不同颜色的corner
-            mBorderPaint.setColor(borderColor);
-
-            for (RectF rect : rectFs) {
-//                SimpleLog.i("CropOverlayView", "left: " + rect.left);
-//                SimpleLog.i("CropOverlayView", "top: " + rect.top);
-//                SimpleLog.i("CropOverlayView", "right: " + rect.right);
-//                SimpleLog.i("CropOverlayView", "bottom: " + rect.bottom);
+            // 只绘制视图内的剪切框
+            int count = mCropWindowHandler.queryRects(0, 0, getWidth(), getHeight());
+            for (int n = 0; n < count; n++) {
+                RectF rect = mCropWindowHandler.getRectAt(mCropWindowHandler.getQueryResult(n), mWindowRect);
                 rect.inset(w / 2, w / 2);
                 if (mCropShape == Enum.CropShape.RECTANGLE) {
                     // 绘制矩形裁剪窗口边框
@@ -855,6 +1274,22 @@ public class CropOverlayView extends View {
     }
 
 
+    /**
+     * 不同类型的裁剪框具有不同颜色的边框
+     */
+    private void updateBorderColor() {
+        int borderColor = options.borderLineColor;
+        switch (cropWindowType) {
+            case CREATE_SPLIT_CROP_WINDOW:
+                borderColor = SPLIT_WINDOW_COLOR;
+                break;
+            case CREATE_ENCLOSE_CROP_WINDOW:
+                borderColor = ENCLOSE_WINDOW_COLOR;
+                break;
+        }
+        mBorderPaint.setColor(borderColor);
+    }
+
     /**
      * 绘制剪切框的角落。
      */
@@ -872,7 +1307,7 @@ public class CropOverlayView extends View {
             float cornerExtension = cornerWidth / 2 + cornerOffset;
 
             float middleLineRadius = 20;  //中线长度的一半
-            float radius = 10;
+            float radius = CORNER_HANDLE_RADIUS;
 
             float middleLineCenterX = (rect.left + rect.right) / 2;
             float middleLineCenterY = (rect.top + rect.bottom) / 2;
@@ -882,10 +1317,10 @@ public class CropOverlayView extends View {
             int cornerColor = options.borderCornerColor;
             switch (cropWindowType) {
                 case CREATE_SPLIT_CROP_WINDOW:
-                    cornerColor = Color.parseColor("#FF9900");
+                    cornerColor = SPLIT_WINDOW_COLOR;
                     break;
                 case CREATE_ENCLOSE_CROP_WINDOW:
-                    cornerColor = Color.parseColor("#7ACC52");
+                    cornerColor = ENCLOSE_WINDOW_COLOR;
                     break;
             }
             // 不同类型的裁剪框具有不同颜色的corner
@@ -980,12 +1415,14 @@ public class CropOverlayView extends View {
 //        SimpleLog.e(TAG, "onTouch CropOverlayView: " + this.toString());
         // 如果未启用此视图，则不允许触摸交互。
         if (isEnabled() && allowSlideRect) {
+            mLastEventTime = event.getEventTime();
             if (mMultiTouchEnabled) {
                 mScaleDetector.onTouchEvent(event);
             }
 
             switch (event.getAction()) {
                 case MotionEvent.ACTION_DOWN:
+                    cancelPendingMoves();
                     startX = event.getX();
                     startY = event.getY();
                     onActionDown(event.getX(), event.getY());
@@ -993,6 +1430,8 @@ public class CropOverlayView extends View {
                 case MotionEvent.ACTION_UP:
                 case MotionEvent.ACTION_CANCEL:
 //                    getParent().requestDisallowInterceptTouchEvent(false);
+                    // 抬起之前先处理还没有处理的触摸点, 结束时的位置与手指一致
+                    flushPendingMoves();
                     onActionUp();
                     return true;
                 case MotionEvent.ACTION_MOVE:
@@ -1005,13 +1444,16 @@ public class CropOverlayView extends View {
                         calculateBounds(mCropWindowHandler.getRect());
                         // 裁剪边界内才允许创建裁剪框
                         if (mCalcBounds.contains(startX, startY)) {
-                            mCropWindowHandler.addRect(new RectF(startX, startY, curX, curY));
+                            mNewWindowRect.set(startX, startY, curX, curY);
+                            mCropWindowHandler.addRect(mNewWindowRect);
                             CropWindowMoveHandler.Type type = getTypeByDirection(startX, startY, curX, curY);
 //                            SimpleLog.d(TAG, "type = "+type+ String.format(" sx= %f, sy=%f, cx=%f, cy=%f", startX, startY, curX, curY));
-                            mMoveHandler = new CropWindowMoveHandler(type, mCropWindowHandler, curX, curY);
+                            mMoveHandler = obtainMoveHandler(type, curX, curY);
+                            // 原来激活的剪切框变为未激活, 需要全部重绘
+                            invalidate();
                         }
                     }
-                    onActionMove(event.getX(), event.getY());
+                    queueMove(event);
                     return true;
                 default:
                     return false;
@@ -1045,40 +1487,193 @@ public class CropOverlayView extends View {
         if (cropWindowType == CREATE_CROP_CROP_WINDOW) {
             delPosi = CropWindowMoveHandler.Type.DELETE;  //设置 Type.DELETE 表示不设置可点击删除的位置
         }
-        mMoveHandler = mCropWindowHandler.getMoveHandler(x, y, mTouchRadius, mCropShape, delPosi);
+        mMoveHandler = mCropWindowHandler.getMoveHandler(x, y, mTouchRadius, mCropShape, delPosi, mReusableMoveHandler);
         if (mMoveHandler != null) {
+            mReusableMoveHandler = mMoveHandler;
             invalidate();
         }
     }
 
+    /**
+     * 获取重用的移动处理对象, 第一次使用时创建
+     */
+    private CropWindowMoveHandler obtainMoveHandler(CropWindowMoveHandler.Type type, float x, float y) {
+        if (mReusableMoveHandler == null) {
+            mReusableMoveHandler = new CropWindowMoveHandler(type, mCropWindowHandler, x, y);
+        } else {
+            mReusableMoveHandler.reset(type, mCropWindowHandler, x, y);
+        }
+        return mReusableMoveHandler;
+    }
+
     /**
      * 拖动剪切框完成
      */
     private void onActionUp() {
         if (mMoveHandler != null) {
             mMoveHandler = null;
+            cancelPendingChangeNotify();
             callOnCropWindowChanged(false, mCropWindowHandler.getRect());
             invalidate();
         }
     }
 
+    /**
+     * 记录触摸点, 在下一帧开始时统一处理
+     */
+    private void queueMove(MotionEvent event) {
+        if (mMoveHandler == null) {
+            return;
+        }
+        if (mPreciseMoveEnabled) {
+            int history = event.getHistorySize();
+            ensurePendingMoveCapacity(mPendingMoveCount + history + 1);
+            for (int i = 0; i < history; i++) {
+                addPendingMove(event.getHistoricalX(i), event.getHistoricalY(i));
+            }
+        } else {
+            // 只有最终的位置影响结果
+            mPendingMoveCount = 0;
+        }
+        addPendingMove(event.getX(), event.getY());
+        if (!mMoveFramePosted) {
+            mMoveFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(mMoveFrameCallback);
+        }
+    }
+
+    private void ensurePendingMoveCapacity(int count) {
+        if (count * 2 > mPendingMoves.length) {
+            mPendingMoves = Arrays.copyOf(mPendingMoves, Math.max(count * 2, mPendingMoves.length * 2));
+        }
+    }
+
+    private void addPendingMove(float x, float y) {
+        ensurePendingMoveCapacity(mPendingMoveCount + 1);
+        mPendingMoves[mPendingMoveCount * 2] = x;
+        mPendingMoves[mPendingMoveCount * 2 + 1] = y;
+        mPendingMoveCount++;
+    }
+
+    /**
+     * 处理等待中的触摸点, 一帧只刷新和通知一次
+     */
+    private void flushPendingMoves() {
+        if (mMoveFramePosted) {
+            mMoveFramePosted = false;
+            Choreographer.getInstance().removeFrameCallback(mMoveFrameCallback);
+        }
+        int count = mPendingMoveCount;
+        mPendingMoveCount = 0;
+        if (count > 0) {
+            onActionMove(mPendingMoves, count);
+        }
+    }
+
+    private void cancelPendingMoves() {
+        if (mMoveFramePosted) {
+            mMoveFramePosted = false;
+            Choreographer.getInstance().removeFrameCallback(mMoveFrameCallback);
+        }
+        mPendingMoveCount = 0;
+    }
+
     /**
      * Handle move of crop window using the move handler created in {@link #onActionDown(float, float)}.<br>
      * The move handler will do the proper move/resize of the crop window.
+     * 按顺序处理给定的触摸点(x0,y0,x1,y1...), 处理完之后只刷新和通知一次。
      */
-    private void onActionMove(float x, float y) {
+    private void onActionMove(float[] points, int count) {
         if (mMoveHandler != null) {
-            float snapRadius = mSnapRadius;
             RectF rect = mCropWindowHandler.getRect();
-
-            if (calculateBounds(rect)) {
-                snapRadius = 0;
+            beginDirtyRegion(rect);
+            for (int i = 0; i < count; i++) {
+                float snapRadius = mSnapRadius;
+                if (calculateBounds(rect)) {
+                    snapRadius = 0;
+                }
+                mMoveHandler.move(rect, points[i * 2], points[i * 2 + 1], mCalcBounds, mViewRight, mViewBottom,
+                        snapRadius, mFixAspectRatio, mTargetAspectRatio);
             }
-
-            mMoveHandler.move(rect, x, y, mCalcBounds, mViewRight, mViewBottom, snapRadius, mFixAspectRatio, mTargetAspectRatio);
             mCropWindowHandler.setRect(rect);
+            notifyCropWindowChanging();
+            invalidateDirtyRegion(rect);
+            recordInputLatency();
+        }
+    }
+
+    /**
+     * 拖动中通知监听器, 按照设置的方式节流或者防抖
+     */
+    private void notifyCropWindowChanging() {
+        if (mCropWindowChangeListener == null) {
+            return;
+        }
+        long interval = mChangeNotifyIntervalMillis;
+        if (interval <= 0 || mChangeNotifyMode == Enum.ChangeNotifyMode.IMMEDIATE) {
             callOnCropWindowChanged(true, null);
-            invalidate();
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mChangeNotifyMode == Enum.ChangeNotifyMode.DEBOUNCE) {
+            removeCallbacks(mChangeNotifyRunnable);
+            mChangeNotifyPending = true;
+            postDelayed(mChangeNotifyRunnable, interval);
+        } else if (now - mLastChangeNotifyTime >= interval) {
+            removeCallbacks(mChangeNotifyRunnable);
+            mChangeNotifyPending = false;
+            mLastChangeNotifyTime = now;
+            callOnCropWindowChanged(true, null);
+        } else if (!mChangeNotifyPending) {
+            // 间隔内的变化在间隔结束时通知一次
+            mChangeNotifyPending = true;
+            postDelayed(mChangeNotifyRunnable, interval - (now - mLastChangeNotifyTime));
+        }
+    }
+
+    private void cancelPendingChangeNotify() {
+        if (mChangeNotifyPending) {
+            mChangeNotifyPending = false;
+            removeCallbacks(mChangeNotifyRunnable);
+        }
+    }
+
+    /**
+     * 记录激活的剪切框变化之前的绘制范围
+     */
+    private void beginDirtyRegion(RectF activeRect) {
+        getWindowDrawBounds(activeRect, mDirtyRect);
+    }
+
+    /**
+     * 只刷新激活的剪切框变化前后的范围, 其它剪切框和背景没有变化
+     */
+    private void invalidateDirtyRegion(RectF activeRect) {
+        getWindowDrawBounds(activeRect, mDirtyBounds);
+        mDirtyRect.union(mDirtyBounds);
+        if (mShowMetricsHud) {
+            // 调试信息每帧都会变化
+            mDirtyRect.union(mHudRect);
+        }
+        mDirtyRect.roundOut(mInvalidateRect);
+        invalidate(mInvalidateRect);
+    }
+
+    /**
+     * 剪切框绘制的范围, 包含边框、边角和删除按钮
+     */
+    private void getWindowDrawBounds(RectF rect, RectF out) {
+        float lineWidth = mBorderPaint != null ? mBorderPaint.getStrokeWidth() : 0;
+        float cornerWidth = mBorderCornerPaint != null ? mBorderCornerPaint.getStrokeWidth() : 0;
+        // 线条型边角超出边框的长度不超过两倍的边角线宽, 圆形边角超出圆的半径
+        float margin = lineWidth + cornerWidth * 2 + Math.abs(mBorderCornerOffset) + CORNER_HANDLE_RADIUS + DIRTY_MARGIN;
+        out.set(rect);
+        out.sort();
+        out.inset(-margin, -margin);
+        if (delBtnBM != null && cropWindowType != CREATE_CROP_CROP_WINDOW) {
+            float halfWidth = delBtnBM.getWidth() / 2f + DIRTY_MARGIN;
+            float halfHeight = delBtnBM.getHeight() / 2f + DIRTY_MARGIN;
+            out.union(rect.right - halfWidth, rect.top - halfHeight, rect.right + halfWidth, rect.top + halfHeight);
         }
     }
 
@@ -1179,7 +1774,7 @@ public class CropOverlayView extends View {
                 mCropWindowChangeListener.onCropWindowChanged(inProgress, rectF);
             }
         } catch (Exception e) {
-            SimpleLog.e("AIC", "Exception in crop window changed: " + e);
+            CropLog.e("AIC", "Exception in crop window changed", e);
         }
     }
 
@@ -1222,9 +1817,11 @@ public class CropOverlayView extends View {
                     newTop >= 0 &&
                     newBottom <= mCropWindowHandler.getMaxCropHeight()) {
 
+                beginDirtyRegion(rect);
                 rect.set(newLeft, newTop, newRight, newBottom);
                 mCropWindowHandler.setRect(rect);
-                invalidate();
+                invalidateDirtyRegion(rect);
+                recordInputLatency();
             }
 
             return true;
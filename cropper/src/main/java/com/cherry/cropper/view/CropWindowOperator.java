@@ -3,13 +3,12 @@ package com.cherry.cropper.view;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.RectF;
-import android.util.Log;
 import android.widget.ImageView;
 
 import com.cherry.cropper.handler.BitmapUtils;
 import com.cherry.cropper.handler.CropImageAnimation;
 import com.cherry.cropper.utils.Enum;
-import com.cherry.cropper.utils.SimpleLog;
+import com.cherry.cropper.utils.CropLog;
 
 
 /**
@@ -103,9 +102,51 @@ public class CropWindowOperator {
                                  float mZoom, float mZoomOffsetX, float mZoomOffsetY,
                                  ImageView mImageView, float width, float height, float padding, boolean center,
                                  int mLoadedSampleSize, boolean animate) {
+        applyImageMatrix(bitmap, rect, mImageMatrix, mImageInverseMatrix, cropOverlayView, mDegreesRotated,
+                mScaleType, mAutoZoomEnabled, mZoom, mZoomOffsetX, mZoomOffsetY, mImageView, width, height,
+                padding, center, mLoadedSampleSize, animate, true);
+    }
+
+    /**
+     * 把显示的图片换成同一张图片的另一个分辨率(例如渐进式加载时从预览图换成最终的位图)。
+     * 重新计算图像矩阵, 剪切框通过 旧矩阵的逆 -> 原图坐标 -> 新矩阵 映射, 在原图中的位置保持不变。
+     *
+     * @param oldImageMatrix    换图之前的图像矩阵
+     * @param oldSampleSize     换图之前位图的 inSampleSize
+     * @param mLoadedSampleSize 新位图的 inSampleSize
+     */
+    public void swapImageMatrix(Bitmap bitmap, Matrix oldImageMatrix, int oldSampleSize,
+                                Matrix mImageMatrix, Matrix mImageInverseMatrix,
+                                CropOverlayView cropOverlayView, int mDegreesRotated,
+                                Enum.ScaleType mScaleType, boolean mAutoZoomEnabled,
+                                float mZoom, float mZoomOffsetX, float mZoomOffsetY,
+                                ImageView mImageView, float width, float height, float padding,
+                                int mLoadedSampleSize) {
+        applyImageMatrix(bitmap, null, mImageMatrix, mImageInverseMatrix, cropOverlayView, mDegreesRotated,
+                mScaleType, mAutoZoomEnabled, mZoom, mZoomOffsetX, mZoomOffsetY, mImageView, width, height,
+                padding, true, mLoadedSampleSize, false, false);
+        Matrix remap = new Matrix();
+        if (bitmap != null && oldImageMatrix.invert(remap)) {
+            float scale = oldSampleSize / (float) mLoadedSampleSize;
+            remap.postScale(scale, scale);
+            remap.postConcat(mImageMatrix);
+            cropOverlayView.mapCropWindows(remap);
+        }
+    }
+
+    /**
+     * @param initCropWindow 是否按照新的图像边界初始化剪切框
+     */
+    private void applyImageMatrix(Bitmap bitmap, RectF rect, Matrix mImageMatrix, Matrix mImageInverseMatrix,
+                                  CropOverlayView cropOverlayView, int mDegreesRotated,
+                                  Enum.ScaleType mScaleType, boolean mAutoZoomEnabled,
+                                  float mZoom, float mZoomOffsetX, float mZoomOffsetY,
+                                  ImageView mImageView, float width, float height, float padding, boolean center,
+                                  int mLoadedSampleSize, boolean animate, boolean initCropWindow) {
         if (bitmap != null && width > 0 && height > 0) {
-            SimpleLog.i(TAG, "width: " + width);
-            SimpleLog.i(TAG, "height: " + height);
+            if (CropLog.D && CropLog.isLoggable(CropLog.DEBUG)) {
+                CropLog.d(TAG, "width: %s, height: %s", width, height);
+            }
 
             // TODO 注释掉以下第一行和第三行，避免在一个 CropOverlayView 中创建多个裁剪框时，相互造成干扰，尚不清楚这两句之前的作用！！！
 //            mImageMatrix.invert(mImageInverseMatrix);
@@ -181,7 +222,7 @@ public class CropWindowOperator {
                 mImageView.setImageMatrix(mImageMatrix);
             }
             // 更新剪切框视图
-            updateImageBounds(bitmap, mLoadedSampleSize, cropOverlayView, width, height);
+            updateImageBounds(bitmap, mLoadedSampleSize, cropOverlayView, width, height, initCropWindow);
         }
     }
 
@@ -204,7 +245,14 @@ public class CropWindowOperator {
 
     // 设置剪切框的位置
     public void updateImageBounds(Bitmap bitmap, int mLoadedSampleSize, CropOverlayView cropOverlayView, float width, float height) {
-        Log.i(TAG, "mBitmap: " + (bitmap != null) + " mLoadedSampleSize: " + mLoadedSampleSize);
+        updateImageBounds(bitmap, mLoadedSampleSize, cropOverlayView, width, height, true);
+    }
+
+    private void updateImageBounds(Bitmap bitmap, int mLoadedSampleSize, CropOverlayView cropOverlayView,
+                                   float width, float height, boolean initCropWindow) {
+        if (CropLog.D && CropLog.isLoggable(CropLog.DEBUG)) {
+            CropLog.d(TAG, "mBitmap: %s mLoadedSampleSize: %s", bitmap != null, mLoadedSampleSize);
+        }
         if (bitmap != null) {
             // 获取实际位图尺寸和显示的宽度/高度尺寸之间的比例
             float scaleFactorWidth = bitmap.getWidth() * mLoadedSampleSize / BitmapUtils.getRectWidth(mImagePoints);
@@ -217,6 +265,10 @@ public class CropWindowOperator {
 //        }
         // 设置剪切框矩形图片，并在设置比例后更新剪切框的位置
 //        cropOverlayView.setBounds(clear ? null : mImagePoints, cropFrameLayout.getAvailWidth(), cropFrameLayout.getAvailHeight());
-        cropOverlayView.setBounds(mImagePoints, (int)BitmapUtils.getRectRight(mImagePoints), (int)BitmapUtils.getRectBottom(mImagePoints));
+        if (initCropWindow) {
+            cropOverlayView.setBounds(mImagePoints, (int)BitmapUtils.getRectRight(mImagePoints), (int)BitmapUtils.getRectBottom(mImagePoints));
+        } else {
+            cropOverlayView.updateBounds(mImagePoints, (int)BitmapUtils.getRectRight(mImagePoints), (int)BitmapUtils.getRectBottom(mImagePoints));
+        }
     }
 }
@@ -0,0 +1,291 @@
+package com.cherry.cropper.view;
+
+import com.cherry.cropper.utils.CropLog;
+
+import java.util.Arrays;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 剪切界面每帧的耗时统计
+ * 记录剪切框视图 onDraw 的耗时、图片视图 onDraw 的耗时、触摸事件到刷新的延迟、剪切框数量和背景路径的复杂度,
+ * 保存在固定大小的环形缓冲区中, 可以计算百分位数。超过预算的帧连同当时的布局状态一起标记。
+ * 只在 UI 线程中使用, 记录时不创建对象。
+ */
+public final class OverlayFrameMetrics {
+
+    private static final String TAG = "OCR:" + OverlayFrameMetrics.class.getName();
+
+    /**
+     * 默认保存的帧数
+     */
+    public static final int DEFAULT_CAPACITY = 120;
+
+    /**
+     * 默认的帧预算, 60fps
+     */
+    public static final float DEFAULT_BUDGET_MILLIS = 16.6f;
+
+    /**
+     * 每帧统计完成时的回调
+     */
+    public interface Listener {
+
+        /**
+         * 在 UI 线程中回调, metrics 只能在回调中读取, 不能保存
+         *
+         * @param overBudget 这一帧的耗时是否超过预算
+         */
+        void onFrameMetrics(OverlayFrameMetrics metrics, boolean overBudget);
+    }
+
+    private final int mCapacity;
+
+    /**
+     * 剪切框视图 onDraw 的耗时(纳秒)
+     */
+    private final long[] mDrawNanos;
+
+    /**
+     * 图片视图 onDraw 的耗时(纳秒)
+     */
+    private final long[] mImageDrawNanos;
+
+    /**
+     * 触摸事件到调用 invalidate 的延迟(毫秒), 不是由触摸引起的帧为 -1
+     */
+    private final long[] mInputLatencyMillis;
+
+    private final int[] mWindowCounts;
+
+    /**
+     * 这一帧添加到背景路径中的矩形数量, 缓存没有重建时为 0
+     */
+    private final int[] mPathRects;
+
+    private final boolean[] mLayerRebuilt;
+
+    /**
+     * 计算百分位数时复制数据用
+     */
+    private final long[] mScratch;
+
+    private int mHead;
+    private int mSize;
+    private long mFrameCount;
+    private long mSlowFrameCount;
+
+    private long mBudgetNanos;
+
+    /**
+     * 正在绘制的帧的数据, {@link #endFrame} 时写入缓冲区
+     */
+    private long mFrameStartNanos;
+    private long mPendingImageDrawNanos;
+    private long mPendingInputLatencyMillis = -1;
+
+    private Listener mListener;
+
+    public OverlayFrameMetrics() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public OverlayFrameMetrics(int capacity) {
+        mCapacity = Math.max(1, capacity);
+        mDrawNanos = new long[mCapacity];
+        mImageDrawNanos = new long[mCapacity];
+        mInputLatencyMillis = new long[mCapacity];
+        mWindowCounts = new int[mCapacity];
+        mPathRects = new int[mCapacity];
+        mLayerRebuilt = new boolean[mCapacity];
+        mScratch = new long[mCapacity];
+        setBudgetMillis(DEFAULT_BUDGET_MILLIS);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 设置帧预算, 剪切框视图和图片视图绘制的总耗时超过预算的帧被标记
+     */
+    public void setBudgetMillis(float budgetMillis) {
+        mBudgetNanos = (long) (budgetMillis * 1000000);
+    }
+
+    public float getBudgetMillis() {
+        return mBudgetNanos / 1000000f;
+    }
+
+    /**
+     * 剪切框视图开始绘制
+     */
+    void beginFrame() {
+        mFrameStartNanos = System.nanoTime();
+    }
+
+    /**
+     * 图片视图绘制的耗时, 计入下一个剪切框视图的帧
+     */
+    void recordImageDraw(long nanos) {
+        mPendingImageDrawNanos += nanos;
+    }
+
+    /**
+     * 触摸事件到调用 invalidate 的延迟, 计入下一帧
+     */
+    void recordInputLatency(long millis) {
+        mPendingInputLatencyMillis = Math.max(mPendingInputLatencyMillis, millis);
+    }
+
+    /**
+     * 剪切框视图绘制完成
+     *
+     * @param windowCount  剪切框的数量
+     * @param pathRects    这一帧添加到背景路径中的矩形数量
+     * @param layerRebuilt 这一帧是否重建了未激活剪切框的缓存
+     */
+    void endFrame(int windowCount, int pathRects, boolean layerRebuilt) {
+        long drawNanos = System.nanoTime() - mFrameStartNanos;
+        int i = mHead;
+        mDrawNanos[i] = drawNanos;
+        mImageDrawNanos[i] = mPendingImageDrawNanos;
+        mInputLatencyMillis[i] = mPendingInputLatencyMillis;
+        mWindowCounts[i] = windowCount;
+        mPathRects[i] = pathRects;
+        mLayerRebuilt[i] = layerRebuilt;
+        mHead = (mHead + 1) % mCapacity;
+        mSize = Math.min(mSize + 1, mCapacity);
+        mFrameCount++;
+        mPendingImageDrawNanos = 0;
+        mPendingInputLatencyMillis = -1;
+
+        boolean overBudget = drawNanos + mImageDrawNanos[i] > mBudgetNanos;
+        if (overBudget) {
+            mSlowFrameCount++;
+            // 慢帧交给 Listener 处理, 这里只在调试时输出, 避免每个慢帧都拼接字符串
+            if (CropLog.D && CropLog.isLoggable(CropLog.DEBUG)) {
+                CropLog.d(TAG, "slow frame: " + describeLastFrame());
+            }
+        }
+        if (mListener != null) {
+            mListener.onFrameMetrics(this, overBudget);
+        }
+    }
+
+    /**
+     * 清空统计数据
+     */
+    public void reset() {
+        mHead = 0;
+        mSize = 0;
+        mFrameCount = 0;
+        mSlowFrameCount = 0;
+        mPendingImageDrawNanos = 0;
+        mPendingInputLatencyMillis = -1;
+    }
+
+    /**
+     * 统计过的帧数
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * 超过预算的帧数
+     */
+    public long getSlowFrameCount() {
+        return mSlowFrameCount;
+    }
+
+    public long getLastDrawNanos() {
+        return mSize > 0 ? mDrawNanos[last()] : 0;
+    }
+
+    public long getLastImageDrawNanos() {
+        return mSize > 0 ? mImageDrawNanos[last()] : 0;
+    }
+
+    /**
+     * 最后一帧的输入延迟(毫秒), 不是由触摸引起时为 -1
+     */
+    public long getLastInputLatencyMillis() {
+        return mSize > 0 ? mInputLatencyMillis[last()] : -1;
+    }
+
+    public int getLastWindowCount() {
+        return mSize > 0 ? mWindowCounts[last()] : 0;
+    }
+
+    public int getLastPathRects() {
+        return mSize > 0 ? mPathRects[last()] : 0;
+    }
+
+    public boolean isLastLayerRebuilt() {
+        return mSize > 0 && mLayerRebuilt[last()];
+    }
+
+    /**
+     * 剪切框视图和图片视图绘制总耗时的百分位数(纳秒)
+     *
+     * @param percentile 0 - 100
+     */
+    public long getFramePercentileNanos(float percentile) {
+        for (int i = 0; i < mSize; i++) {
+            mScratch[i] = mDrawNanos[i] + mImageDrawNanos[i];
+        }
+        return percentile(mSize, percentile);
+    }
+
+    /**
+     * 输入延迟的百分位数(毫秒), 没有由触摸引起的帧时返回 -1
+     *
+     * @param percentile 0 - 100
+     */
+    public long getInputLatencyPercentileMillis(float percentile) {
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mInputLatencyMillis[i] >= 0) {
+                mScratch[count++] = mInputLatencyMillis[i];
+            }
+        }
+        return count > 0 ? percentile(count, percentile) : -1;
+    }
+
+    /**
+     * 最后一帧的耗时和布局状态
+     */
+    public String describeLastFrame() {
+        return "draw=" + getLastDrawNanos() / 1000 + "us"
+                + " image=" + getLastImageDrawNanos() / 1000 + "us"
+                + " latency=" + getLastInputLatencyMillis() + "ms"
+                + " windows=" + getLastWindowCount()
+                + " pathRects=" + getLastPathRects()
+                + " layerRebuilt=" + isLastLayerRebuilt();
+    }
+
+    private int last() {
+        return (mHead - 1 + mCapacity) % mCapacity;
+    }
+
+    private long percentile(int count, float percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(mScratch, 0, count);
+        int index = (int) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100f * count) - 1;
+        return mScratch[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    @Override
+    public String toString() {
+        return "OverlayFrameMetrics:{" +
+                "frames:" + mFrameCount + "," +
+                "slowFrames:" + mSlowFrameCount + "," +
+                "p50:" + getFramePercentileNanos(50) / 1000 + "us," +
+                "p90:" + getFramePercentileNanos(90) / 1000 + "us," +
+                "p99:" + getFramePercentileNanos(99) / 1000 + "us" +
+                "}";
+    }
+}
@@ -0,0 +1,435 @@
+package com.cherry.cropper.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.support.v7.widget.AppCompatImageView;
+import android.util.AttributeSet;
+import android.util.LruCache;
+
+import com.cherry.cropper.handler.BitmapPool;
+import com.cherry.cropper.handler.CropRegionSession;
+import com.cherry.cropper.utils.CropLog;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author pengxiaobao
+ * @date 2026/10/18
+ * @description 分块显示大图的 ImageView
+ * 通过 setImageBitmap 设置的位图是按照 baseSampleSize 解码的基础层, 一直保留在内存中;
+ * 放大到基础层不够清晰时, 只把可见区域按照需要的 inSampleSize 分块从原图中解码并缓存,
+ * 不管放大多少倍, 内存占用都是固定的。
+ */
+public class TiledImageView extends AppCompatImageView {
+
+    private static final String TAG = "OCR:" + TiledImageView.class.getName();
+
+    /**
+     * 每个分块解码后的边长(像素)
+     */
+    private static final int TILE_SIZE = 512;
+
+    /**
+     * 分块缓存的屏幕数, 平移时附近的分块不需要重新解码
+     */
+    private static final int CACHED_SCREENS = 3;
+
+    private final Paint mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * 用于 onDraw 中的计算, 避免每帧分配
+     */
+    private final Matrix mDrawMatrix = new Matrix();
+    private final Matrix mInverseMatrix = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mTileDstRect = new RectF();
+    private final Rect mTileSrcRect = new Rect();
+
+    /**
+     * 单线程解码分块, 后提交的先执行, 优先解码最新的可见区域
+     */
+    private final ThreadPoolExecutor mTileExecutor;
+
+    /**
+     * 每帧耗时的统计, 为 null 时不统计
+     */
+    private OverlayFrameMetrics mFrameMetrics;
+
+    /**
+     * 已经提交但还没有完成的分块
+     */
+    private final Set<Long> mPendingTiles = new HashSet<>();
+
+    private LruCache<Long, Bitmap> mTileCache;
+
+    /**
+     * 从缓存中移除的分块, 当前帧的显示列表可能还在使用, 下一帧开始时才放回位图池
+     */
+    private final ArrayList<Bitmap> mRemovedTiles = new ArrayList<>();
+
+    /**
+     * 原图的 uri, 为 null 时只显示基础层
+     */
+    private Uri mSourceUri;
+
+    /**
+     * 原图的尺寸, 从解码器读取, 还没有读取时为 0
+     */
+    private int mSourceWidth;
+    private int mSourceHeight;
+
+    /**
+     * 是否已经提交了读取原图尺寸的请求
+     */
+    private boolean mSourceSizeRequested;
+
+    /**
+     * 基础层解码时的 inSampleSize
+     */
+    private int mBaseSampleSize = 1;
+
+    /**
+     * 当前需要的分块 inSampleSize, 解码线程用来跳过已经过时的请求
+     */
+    private volatile int mWantedSampleSize;
+
+    /**
+     * 每次更换原图时加1, 用来丢弃旧原图的分块
+     */
+    private volatile int mSourceGeneration;
+
+    /**
+     * 只在解码线程中访问
+     */
+    private CropRegionSession mSession;
+    private Uri mSessionUri;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mTileExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>() {
+            @Override
+            public boolean offer(Runnable runnable) {
+                return offerFirst(runnable);
+            }
+        });
+        mTileExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 显示按照 baseSampleSize 解码的位图, 放大后从 uri 分块解码可见区域。
+     *
+     * @param bitmap         基础层, 原图按照 baseSampleSize 解码的结果
+     * @param uri            原图, 为 null 时不分块
+     * @param baseSampleSize 基础层解码时的 inSampleSize
+     */
+    public void setImageBitmap(Bitmap bitmap, Uri uri, int baseSampleSize) {
+        super.setImageBitmap(bitmap);
+        setTileSource(bitmap != null ? uri : null, baseSampleSize);
+    }
+
+    @Override
+    public void setImageBitmap(Bitmap bitmap) {
+        super.setImageBitmap(bitmap);
+        setTileSource(null, 1);
+    }
+
+    /**
+     * 原图的 uri, 没有分块时为 null
+     */
+    public Uri getTileSourceUri() {
+        return mSourceUri;
+    }
+
+    private void setTileSource(Uri uri, int baseSampleSize) {
+        mSourceGeneration++;
+        clearTiles();
+        mSourceUri = uri;
+        // 基础层的尺寸 x inSampleSize 可能比原图大(向上取整), 第一次需要分块时从解码器读取原图的尺寸
+        mSourceWidth = 0;
+        mSourceHeight = 0;
+        mSourceSizeRequested = false;
+        mBaseSampleSize = Math.max(1, baseSampleSize);
+        invalidate();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // 保留 uri, 重新显示时再解码需要的分块
+        mSourceGeneration++;
+        clearTiles();
+        // 已经不再显示, 移除的分块不再放回位图池
+        mRemovedTiles.clear();
+        if (mSourceWidth <= 0 || mSourceHeight <= 0) {
+            // 读取尺寸的请求已经被丢弃, 重新显示时再读取
+            mSourceSizeRequested = false;
+        }
+        mTileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeSession();
+            }
+        });
+    }
+
+    /**
+     * 设置每帧耗时的统计, 图片的绘制耗时计入剪切框视图的帧
+     */
+    public void setFrameMetrics(OverlayFrameMetrics frameMetrics) {
+        mFrameMetrics = frameMetrics;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        long start = mFrameMetrics != null ? System.nanoTime() : 0;
+        releaseRemovedTiles();
+        super.onDraw(canvas);
+        drawTiles(canvas);
+        if (mFrameMetrics != null) {
+            mFrameMetrics.recordImageDraw(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 在基础层上方绘制可见区域中已经解码的分块
+     */
+    private void drawTiles(Canvas canvas) {
+        if (mSourceUri == null || getDrawable() == null) {
+            return;
+        }
+        // 基础层坐标 -> 视图坐标
+        mDrawMatrix.set(getImageMatrix());
+        mDrawMatrix.postTranslate(getPaddingLeft(), getPaddingTop());
+
+        // 原图中的一个像素在屏幕上的大小, 分块的像素不少于屏幕像素即可
+        float displayPerSource = mDrawMatrix.mapRadius(1f) / mBaseSampleSize;
+        int sampleSize = 1;
+        while (sampleSize * 2 * displayPerSource <= 1) {
+            sampleSize *= 2;
+        }
+        if (sampleSize >= mBaseSampleSize) {
+            // 基础层已经足够清晰
+            mWantedSampleSize = 0;
+            return;
+        }
+        mWantedSampleSize = sampleSize;
+        if (mSourceWidth <= 0 || mSourceHeight <= 0) {
+            requestSourceSize();
+            return;
+        }
+
+        // 可见区域在原图中的位置
+        if (!mDrawMatrix.invert(mInverseMatrix)) {
+            return;
+        }
+        mVisibleRect.set(0, 0, getWidth(), getHeight());
+        mInverseMatrix.mapRect(mVisibleRect);
+        float left = Math.max(0, mVisibleRect.left * mBaseSampleSize);
+        float top = Math.max(0, mVisibleRect.top * mBaseSampleSize);
+        float right = Math.min(mSourceWidth, mVisibleRect.right * mBaseSampleSize);
+        float bottom = Math.min(mSourceHeight, mVisibleRect.bottom * mBaseSampleSize);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+
+        ensureTileCache();
+        int tileSourceSize = TILE_SIZE * sampleSize;
+        int firstCol = (int) (left / tileSourceSize);
+        int lastCol = (int) ((right - 1) / tileSourceSize);
+        int firstRow = (int) (top / tileSourceSize);
+        int lastRow = (int) ((bottom - 1) / tileSourceSize);
+
+        canvas.save();
+        canvas.concat(mDrawMatrix);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                long key = tileKey(sampleSize, col, row);
+                Bitmap tile = mTileCache.get(key);
+                if (tile == null) {
+                    // 还没有解码的分块先显示基础层
+                    requestTile(key, sampleSize, col, row);
+                    continue;
+                }
+                getTileRect(sampleSize, col, row, mTileSrcRect);
+                mTileDstRect.set(mTileSrcRect.left / (float) mBaseSampleSize, mTileSrcRect.top / (float) mBaseSampleSize,
+                        mTileSrcRect.right / (float) mBaseSampleSize, mTileSrcRect.bottom / (float) mBaseSampleSize);
+                canvas.drawBitmap(tile, null, mTileDstRect, mTilePaint);
+            }
+        }
+        canvas.restore();
+    }
+
+    /**
+     * 在解码线程中打开原图, 读取原图的尺寸
+     */
+    private void requestSourceSize() {
+        if (mSourceSizeRequested) {
+            return;
+        }
+        mSourceSizeRequested = true;
+        final Uri uri = mSourceUri;
+        final int generation = mSourceGeneration;
+        mTileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mSourceGeneration) {
+                    return;
+                }
+                int width = 0;
+                int height = 0;
+                try {
+                    CropRegionSession session = openSession(uri);
+                    width = session.getWidth();
+                    height = session.getHeight();
+                } catch (Exception e) {
+                    CropLog.w(TAG, "Failed to open tile source: " + uri, e);
+                }
+                final int sourceWidth = width;
+                final int sourceHeight = height;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSourceSizeDecoded(generation, sourceWidth, sourceHeight);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onSourceSizeDecoded(int generation, int width, int height) {
+        if (generation != mSourceGeneration || width <= 0 || height <= 0) {
+            return;
+        }
+        mSourceWidth = width;
+        mSourceHeight = height;
+        invalidate();
+    }
+
+    private void requestTile(final long key, final int sampleSize, int col, int row) {
+        if (!mPendingTiles.add(key)) {
+            return;
+        }
+        final Rect rect = new Rect();
+        getTileRect(sampleSize, col, row, rect);
+        final Uri uri = mSourceUri;
+        final int generation = mSourceGeneration;
+        mTileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap tile = null;
+                // 已经换了原图或者缩放级别的请求直接跳过
+                if (generation == mSourceGeneration && sampleSize == mWantedSampleSize) {
+                    try {
+                        tile = openSession(uri).decodeRegion(rect, sampleSize).bitmap;
+                    } catch (Exception e) {
+                        CropLog.w(TAG, "Failed to decode tile " + rect + ": " + uri, e);
+                    }
+                }
+                final Bitmap result = tile;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileDecoded(key, generation, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onTileDecoded(long key, int generation, Bitmap tile) {
+        if (generation != mSourceGeneration) {
+            BitmapPool.getInstance().put(tile);
+            return;
+        }
+        mPendingTiles.remove(key);
+        if (tile != null) {
+            ensureTileCache();
+            mTileCache.put(key, tile);
+            invalidate();
+        }
+    }
+
+    private void ensureTileCache() {
+        if (mTileCache == null) {
+            int screenBytes = Math.max(1, getWidth() * getHeight() * 4);
+            mTileCache = new LruCache<Long, Bitmap>(screenBytes * CACHED_SCREENS) {
+                @Override
+                protected int sizeOf(Long key, Bitmap value) {
+                    return value.getAllocationByteCount();
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                    // 可能是在 onDraw 中移除的, 当前帧的显示列表还在引用, 不能马上重用
+                    mRemovedTiles.add(oldValue);
+                }
+            };
+        }
+    }
+
+    /**
+     * 把之前的帧中移除的分块放回位图池, 在 onDraw 开始时调用, 此时上一帧已经不再使用这些分块
+     */
+    private void releaseRemovedTiles() {
+        for (int i = 0; i < mRemovedTiles.size(); i++) {
+            BitmapPool.getInstance().put(mRemovedTiles.get(i));
+        }
+        mRemovedTiles.clear();
+    }
+
+    private void clearTiles() {
+        mPendingTiles.clear();
+        if (mTileCache != null) {
+            mTileCache.evictAll();
+            mTileCache = null;
+        }
+    }
+
+    /**
+     * 分块在原图中的位置
+     */
+    private void getTileRect(int sampleSize, int col, int row, Rect out) {
+        int tileSourceSize = TILE_SIZE * sampleSize;
+        out.set(col * tileSourceSize, row * tileSourceSize,
+                Math.min(mSourceWidth, (col + 1) * tileSourceSize), Math.min(mSourceHeight, (row + 1) * tileSourceSize));
+    }
+
+    private static long tileKey(int sampleSize, int col, int row) {
+        return ((long) Integer.numberOfTrailingZeros(sampleSize) << 48) | ((long) col << 24) | row;
+    }
+
+    /**
+     * 在解码线程中打开原图, 同一个 uri 只读取一次
+     */
+    private CropRegionSession openSession(Uri uri) throws Exception {
+        if (mSession == null || !uri.equals(mSessionUri)) {
+            closeSession();
+            mSession = CropRegionSession.open(getContext(), uri, 1);
+            mSessionUri = uri;
+        }
+        return mSession;
+    }
+
+    private void closeSession() {
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+            mSessionUri = null;
+        }
+    }
+}